@@ -1,6 +1,7 @@
 package simpledb.execution;
 
 import simpledb.common.Database;
+import simpledb.storage.BufferAccessStrategy;
 import simpledb.storage.DbFile;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
@@ -45,7 +46,7 @@ public class SeqScan implements OpIterator {
         this.transactionId = tid;
         this.tableId = tableId;
         this.tableAlias = tableAlias;
-        this.dbFileIterator = Database.getCatalog().getDatabaseFile(tableId).iterator(this.transactionId);
+        this.dbFileIterator = openIterator();
     }
 
     /**
@@ -79,7 +80,17 @@ public class SeqScan implements OpIterator {
         // some code goes here
         this.tableId = tableId;
         this.tableAlias = tableAlias;
-        this.dbFileIterator = Database.getCatalog().getDatabaseFile(tableId).iterator(this.transactionId);
+        this.dbFileIterator = openIterator();
+    }
+
+    /**
+     * Return an iterator over the table. A table larger than the buffer pool
+     * is scanned through a small ring of frames so that it does not evict
+     * the pool's working set; see {@link BufferAccessStrategy}.
+     */
+    private DbFileIterator openIterator() {
+        DbFile file = Database.getCatalog().getDatabaseFile(this.tableId);
+        return file.iterator(this.transactionId, Database.getBufferPool().scanStrategy(file));
     }
 
     public SeqScan(TransactionId tid, int tableId) {
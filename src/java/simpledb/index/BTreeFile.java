@@ -29,6 +29,7 @@ import simpledb.transaction.TransactionId;
 public class BTreeFile implements DbFile {
 
 	private final File f;
+	private final FileHandle handle;
 	private final TupleDesc td;
 	private final int tableId;
 	private final int keyField;
@@ -43,6 +44,7 @@ public class BTreeFile implements DbFile {
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
 		this.f = f;
+		this.handle = new FileHandle(f);
 		this.tableId = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
@@ -87,45 +89,57 @@ public class BTreeFile implements DbFile {
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
 
-        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(f))) {
-            if (id.pgcateg() == BTreePageId.ROOT_PTR) {
-                byte[] pageBuf = new byte[BTreeRootPtrPage.getPageSize()];
-                int retVal = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-                if (retVal == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retVal < BTreeRootPtrPage.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read " + BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
-                }
-                Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-                return new BTreeRootPtrPage(id, pageBuf);
-            } else {
-                byte[] pageBuf = new byte[BufferPool.getPageSize()];
-                if (bis.skip(BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) != BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to seek to correct place in BTreeFile");
-                }
-                int retVal = bis.read(pageBuf, 0, BufferPool.getPageSize());
-                if (retVal == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retVal < BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read " + BufferPool.getPageSize() + " bytes from BTreeFile");
-                }
-                Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-                if (id.pgcateg() == BTreePageId.INTERNAL) {
-                    return new BTreeInternalPage(id, pageBuf, keyField);
-                } else if (id.pgcateg() == BTreePageId.LEAF) {
-                    return new BTreeLeafPage(id, pageBuf, keyField);
-                } else {
-                    return new BTreeHeaderPage(id, pageBuf);
-                }
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-        // Close the file on success or error
-        // Ignore failures closing the file
-    }
+		int pageSize = id.pgcateg() == BTreePageId.ROOT_PTR ? BTreeRootPtrPage.getPageSize() : BufferPool.getPageSize();
+		try {
+			byte[] pageBuf = new byte[pageSize];
+			long begin = System.nanoTime();
+			int retVal = handle.read(pageOffset(id), pageBuf);
+			StorageMetrics.get().pageRead(getId(), retVal, System.nanoTime() - begin);
+			if (retVal == 0) {
+				throw new IllegalArgumentException("Read past end of table");
+			}
+			if (retVal < pageSize) {
+				throw new IllegalArgumentException("Unable to read " + pageSize + " bytes from BTreeFile");
+			}
+			Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
+			return decodePage(id, pageBuf);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Returns the byte offset of the given page in the file: the root pointer
+	 * page comes first, followed by the numbered pages starting at 1.
+	 */
+	private static long pageOffset(BTreePageId id) {
+		if (id.pgcateg() == BTreePageId.ROOT_PTR) {
+			return 0;
+		}
+		return BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize();
+	}
+
+	/**
+	 * Construct the page identified by pid from its serialized bytes, without
+	 * touching the disk.
+	 * 
+	 * @param pid - the id of the page
+	 * @param data - the page contents, as produced by {@link Page#getPageData()}
+	 * @return the decoded page
+	 */
+	public Page decodePage(PageId pid, byte[] data) throws IOException {
+		BTreePageId id = (BTreePageId) pid;
+		switch (id.pgcateg()) {
+		case BTreePageId.ROOT_PTR:
+			return new BTreeRootPtrPage(id, data);
+		case BTreePageId.INTERNAL:
+			return new BTreeInternalPage(id, data, keyField);
+		case BTreePageId.LEAF:
+			return new BTreeLeafPage(id, data, keyField);
+		default:
+			return new BTreeHeaderPage(id, data);
+		}
+	}
 
 	/**
 	 * Write a page to disk.  This should not be called directly but should 
@@ -137,12 +151,16 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		if (id.pgcateg() != BTreePageId.ROOT_PTR) {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (long) (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
-		}
-		rf.write(data);
-		rf.close();
+		long begin = System.nanoTime();
+		handle.write(pageOffset(id), data);
+		StorageMetrics.get().pageWritten(getId(), data.length, System.nanoTime() - begin);
+	}
+
+	/**
+	 * Force every page written so far to disk.
+	 */
+	public void force() throws IOException {
+		handle.force();
 	}
 	
 	/**
@@ -150,7 +168,11 @@ public class BTreeFile implements DbFile {
 	 */
 	public int numPages() {
 		// we only ever write full pages
-		return (int) ((f.length() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
+		try {
+			return (int) ((handle.length() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
 	}
 
 	/**
@@ -181,25 +203,39 @@ public class BTreeFile implements DbFile {
 		// some code goes here
 		BTreePageId temp = pid;
 		while (temp.pgcateg() != BTreePageId.LEAF) {
-			BTreeInternalPage internalPage = (BTreeInternalPage) getPage(tid, dirtyPages, temp, Permissions.READ_ONLY);
-			Iterator<BTreeEntry> iterator = internalPage.iterator();
-			while (iterator.hasNext()) {
-				BTreeEntry entry = iterator.next();
-				if (f == null) {
-					temp = entry.getLeftChild();
-					break;
-				} else {
-					Field bTreeField = entry.getKey();
-					if (f.compare(Op.LESS_THAN_OR_EQ, bTreeField)) {
+			// keep the internal page pinned while its entries are searched
+			BufferPool.Frame frame = null;
+			BTreeInternalPage internalPage;
+			if (dirtyPages.containsKey(temp)) {
+				internalPage = (BTreeInternalPage) dirtyPages.get(temp);
+			} else {
+				frame = Database.getBufferPool().pinPage(tid, temp, Permissions.READ_ONLY);
+				internalPage = (BTreeInternalPage) frame.getPage();
+			}
+			try {
+				Iterator<BTreeEntry> iterator = internalPage.iterator();
+				while (iterator.hasNext()) {
+					BTreeEntry entry = iterator.next();
+					if (f == null) {
 						temp = entry.getLeftChild();
 						break;
-					} else if (!iterator.hasNext()) {
-						temp = entry.getRightChild();
+					} else {
+						Field bTreeField = entry.getKey();
+						if (f.compare(Op.LESS_THAN_OR_EQ, bTreeField)) {
+							temp = entry.getLeftChild();
+							break;
+						} else if (!iterator.hasNext()) {
+							temp = entry.getRightChild();
+						}
 					}
 				}
+			} finally {
+				if (frame != null) {
+					Database.getBufferPool().unpin(tid, frame);
+				}
 			}
 		}
-        return (BTreeLeafPage) Database.getBufferPool().getPage(tid, temp, perm);
+        return (BTreeLeafPage) getPage(tid, dirtyPages, temp, perm);
 	}
 	
 	/**
@@ -943,15 +979,10 @@ public class BTreeFile implements DbFile {
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, Map<PageId, Page> dirtyPages) throws DbException, IOException, TransactionAbortedException {
 		synchronized(this) {
-			if(f.length() == 0) {
+			if(handle.length() == 0) {
 				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
-				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
+				handle.append(BTreeRootPtrPage.createEmptyPageData());
+				handle.append(BTreeLeafPage.createEmptyPageData());
 			}
 		}
 
@@ -1003,10 +1034,7 @@ public class BTreeFile implements DbFile {
 		if(headerId == null) {		
 			synchronized(this) {
 				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(f, true));
-				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
+				handle.append(BTreeInternalPage.createEmptyPageData());
 				emptyPageNo = numPages();
 			}
 		}
@@ -1033,10 +1061,7 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableId, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (long) (emptyPageNo - 1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		handle.write(pageOffset(newPageId), BTreePage.createEmptyPageData());
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
@@ -1163,6 +1188,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	/** frame of curp, pinned while its tuples are read */
+	BufferPool.Frame pinned = null;
 
 	final TransactionId tid;
 	final BTreeFile f;
@@ -1184,10 +1211,38 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
 				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
 		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, null);
+		pin(f.findLeafPage(tid, root, null).getId());
+		readAhead();
 		it = curp.iterator();
 	}
 
+	/**
+	 * Make the leaf pid the current page, moving the pin from the previous one.
+	 */
+	private void pin(BTreePageId pid) throws DbException, TransactionAbortedException {
+		unpin();
+		pinned = Database.getBufferPool().pinPage(tid, pid, Permissions.READ_ONLY);
+		curp = (BTreeLeafPage) pinned.getPage();
+	}
+
+	private void unpin() {
+		if (pinned != null) {
+			Database.getBufferPool().unpin(tid, pinned);
+			pinned = null;
+		}
+	}
+
+	/**
+	 * Ask the buffer pool to prefetch the leaf after the current one, so it
+	 * is read while the tuples of this one are consumed.
+	 */
+	private void readAhead() {
+		BTreePageId nextp = curp.getRightSiblingId();
+		if (nextp != null) {
+			Database.getBufferPool().prefetch(nextp);
+		}
+	}
+
 	/**
 	 * Read the next tuple either from the current page if it has more tuples or
 	 * from the next page by following the right sibling pointer.
@@ -1203,10 +1258,11 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 			BTreePageId nextp = curp.getRightSiblingId();
 			if(nextp == null) {
 				curp = null;
+				unpin();
 			}
 			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
+				pin(nextp);
+				readAhead();
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1233,6 +1289,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		super.close();
 		it = null;
 		curp = null;
+		unpin();
 	}
 }
 
@@ -1244,6 +1301,8 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	/** frame of curp, pinned while its tuples are read */
+	BufferPool.Frame pinned = null;
 
 	final TransactionId tid;
 	final BTreeFile f;
@@ -1271,14 +1330,42 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		BTreePageId root = rootPtr.getRootId();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, ipred.getField());
+			pin(f.findLeafPage(tid, root, ipred.getField()).getId());
 		}
 		else {
-			curp = f.findLeafPage(tid, root, null);
+			pin(f.findLeafPage(tid, root, null).getId());
 		}
+		readAhead();
 		it = curp.iterator();
 	}
 
+	/**
+	 * Make the leaf pid the current page, moving the pin from the previous one.
+	 */
+	private void pin(BTreePageId pid) throws DbException, TransactionAbortedException {
+		unpin();
+		pinned = Database.getBufferPool().pinPage(tid, pid, Permissions.READ_ONLY);
+		curp = (BTreeLeafPage) pinned.getPage();
+	}
+
+	private void unpin() {
+		if (pinned != null) {
+			Database.getBufferPool().unpin(tid, pinned);
+			pinned = null;
+		}
+	}
+
+	/**
+	 * Ask the buffer pool to prefetch the leaf after the current one, unless
+	 * the search is for a single key and is unlikely to get there.
+	 */
+	private void readAhead() {
+		BTreePageId nextp = curp.getRightSiblingId();
+		if (nextp != null && ipred.getOp() != Op.EQUALS) {
+			Database.getBufferPool().prefetch(nextp);
+		}
+	}
+
 	/**
 	 * Read the next tuple either from the current page if it has more tuples matching
 	 * the predicate or from the next page by following the right sibling pointer.
@@ -1298,12 +1385,14 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
 					// if the predicate was not satisfied and the operation is less than, we have
 					// hit the end
+					unpin();
 					return null;
 				}
 				else if(ipred.getOp() == Op.EQUALS && 
 						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
 					// if the tuple is now greater than the field passed in and the operation
 					// is equals, we have reached the end
+					unpin();
 					return null;
 				}
 			}
@@ -1311,11 +1400,12 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 			BTreePageId nextp = curp.getRightSiblingId();
 			// if there are no more pages to the right, end the iteration
 			if(nextp == null) {
+				unpin();
 				return null;
 			}
 			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
+				pin(nextp);
+				readAhead();
 				it = curp.iterator();
 			}
 		}
@@ -1337,5 +1427,6 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	public void close() {
 		super.close();
 		it = null;
+		unpin();
 	}
 }
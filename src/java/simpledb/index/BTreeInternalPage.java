@@ -13,6 +13,8 @@ import simpledb.storage.BufferPool;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
 import simpledb.storage.RecordId;
+import simpledb.storage.SlotLayout;
+import simpledb.storage.SlottedPage;
 
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and 
@@ -22,7 +24,7 @@ import simpledb.storage.RecordId;
  * @see BufferPool
  *
  */
-public class BTreeInternalPage extends BTreePage {
+public class BTreeInternalPage extends BTreePage implements SlottedPage {
 	private final byte[] header;
 	private final Field[] keys;
 	private final int[] children;
@@ -569,6 +571,16 @@ public class BTreeInternalPage extends BTreePage {
 		return numSlots - getNumEmptySlots() - 1;
 	}
 	
+	/**
+	 * The parent pointer and child category, the header, then the keys and
+	 * the child pointers: slot i is key i and child i, and slot 0 just child
+	 * 0, as the first key slot is not stored.
+	 */
+	public SlotLayout getSlotLayout() {
+		int keySize = td.getFieldType(keyField).getLen();
+		return new SlotLayout(INDEX_SIZE + 1, numSlots, new int[] { keySize, INDEX_SIZE }, new int[] { 1, 0 });
+	}
+
 	/**
 	 * Returns the number of empty slots on this page.
 	 */
@@ -19,7 +19,7 @@ import java.io.*;
  * @see BufferPool
  *
  */
-public class BTreeLeafPage extends BTreePage {
+public class BTreeLeafPage extends BTreePage implements SlottedPage {
 	private final byte[] header;
 	private final Tuple[] tuples;
 	private final int numSlots;
@@ -444,6 +444,13 @@ public class BTreeLeafPage extends BTreePage {
 		return numSlots - getNumEmptySlots();
 	}
 
+	/**
+	 * The parent and sibling pointers, the header, then one slot per tuple.
+	 */
+	public SlotLayout getSlotLayout() {
+		return new SlotLayout(3 * INDEX_SIZE, numSlots, td.getSize());
+	}
+
 	/**
 	 * Returns the number of empty slots on this page.
 	 */
@@ -0,0 +1,123 @@
+package simpledb.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.function.Predicate;
+
+/**
+ * Adaptive Replacement Cache (Megiddo and Modha). Resident pages live in T1
+ * (seen once recently) or T2 (seen at least twice); B1 and B2 remember the
+ * ids of pages recently evicted from each. A miss that hits a ghost list
+ * shifts the target size p of T1 towards the side that would have kept the
+ * page, so the policy tunes itself between recency and frequency, and a long
+ * scan only churns T1.
+ */
+public class ArcPolicy implements ReplacementPolicy {
+
+    private final int capacity;
+    private int p;
+
+    /** Iteration order of all four sets is LRU first. */
+    private final LinkedHashSet<PageId> t1;
+    private final LinkedHashSet<PageId> t2;
+    private final LinkedHashSet<PageId> b1;
+    private final LinkedHashSet<PageId> b2;
+
+    /** Ghost hit already accounted for by {@link #evict}, so admit does not adapt twice. */
+    private PageId adaptedFor;
+
+    public ArcPolicy(int capacity) {
+        this.capacity = capacity;
+        this.p = 0;
+        this.t1 = new LinkedHashSet<>();
+        this.t2 = new LinkedHashSet<>();
+        this.b1 = new LinkedHashSet<>();
+        this.b2 = new LinkedHashSet<>();
+    }
+
+    public synchronized void admit(PageId pid) {
+        if (b1.contains(pid) || b2.contains(pid)) {
+            if (!pid.equals(adaptedFor)) {
+                adapt(pid);
+            }
+            b1.remove(pid);
+            b2.remove(pid);
+            t2.add(pid);
+        } else {
+            // keep the ghost directories within the bounds ARC relies on
+            while (t1.size() + b1.size() >= capacity && !b1.isEmpty()) {
+                removeLru(b1);
+            }
+            while (t1.size() + t2.size() + b1.size() + b2.size() >= 2 * capacity && !b2.isEmpty()) {
+                removeLru(b2);
+            }
+            t1.add(pid);
+        }
+        adaptedFor = null;
+    }
+
+    public synchronized void access(PageId pid) {
+        if (t1.remove(pid) || t2.remove(pid)) {
+            t2.add(pid);
+        }
+    }
+
+    public synchronized PageId evict(PageId incoming, Predicate<PageId> evictable) {
+        if (incoming != null && (b1.contains(incoming) || b2.contains(incoming))) {
+            adapt(incoming);
+            adaptedFor = incoming;
+        }
+        boolean fromT1 = !t1.isEmpty()
+                && (t1.size() > p || (t1.size() == p && incoming != null && b2.contains(incoming)));
+        PageId victim = fromT1 ? lru(t1, evictable) : lru(t2, evictable);
+        if (victim == null) {
+            victim = fromT1 ? lru(t2, evictable) : lru(t1, evictable);
+        }
+        if (victim == null) {
+            return null;
+        }
+        if (t1.remove(victim)) {
+            b1.add(victim);
+        } else {
+            t2.remove(victim);
+            b2.add(victim);
+        }
+        return victim;
+    }
+
+    /** A page is hot once it has reached T2. */
+    public synchronized boolean isReferenced(PageId pid) {
+        return t2.contains(pid);
+    }
+
+    public synchronized void remove(PageId pid) {
+        t1.remove(pid);
+        t2.remove(pid);
+        b1.remove(pid);
+        b2.remove(pid);
+    }
+
+    /** Move the target size of T1 towards the ghost list pid was found in. */
+    private void adapt(PageId pid) {
+        if (b1.contains(pid)) {
+            p = Math.min(capacity, p + Math.max(1, b2.size() / Math.max(1, b1.size())));
+        } else {
+            p = Math.max(0, p - Math.max(1, b1.size() / Math.max(1, b2.size())));
+        }
+    }
+
+    private static PageId lru(LinkedHashSet<PageId> list, Predicate<PageId> evictable) {
+        for (PageId pid : list) {
+            if (evictable.test(pid)) {
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    private static void removeLru(LinkedHashSet<PageId> list) {
+        Iterator<PageId> it = list.iterator();
+        it.next();
+        it.remove();
+    }
+}
@@ -0,0 +1,71 @@
+package simpledb.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.function.Predicate;
+
+/**
+ * BufferAccessStrategy confines the pages one large scan brings into a
+ * {@link BufferPool} to a small ring of frames, so that scanning a table
+ * bigger than the pool does not evict everybody else's working set.
+ * <p>
+ * The ring remembers, oldest first, the pages the scan read in on a miss.
+ * When the scan needs a frame in a full shard it recycles the oldest of its
+ * own pages there instead of asking the replacement policy for a victim, and
+ * once the ring is full the oldest page is evicted as the next one comes in.
+ * Pages the scan finds already resident are not added to the ring; neither
+ * are ring pages that are dirty or locked by another transaction evicted.
+ * <p>
+ * Obtain one from {@link BufferPool#scanStrategy(DbFile)}; a strategy
+ * belongs to one scan and must not be shared.
+ */
+public class BufferAccessStrategy {
+    /** Largest number of frames a scan's ring holds. */
+    public static final int DEFAULT_RING_PAGES = 32;
+
+    private final int ringPages;
+    private final LinkedHashSet<PageId> ring = new LinkedHashSet<>();
+
+    /** Create a strategy whose ring holds at most ringPages pages. */
+    public BufferAccessStrategy(int ringPages) {
+        this.ringPages = Math.max(1, ringPages);
+    }
+
+    /** Return the number of frames the ring may hold. */
+    public int ringPages() {
+        return ringPages;
+    }
+
+    /** Return the number of pages currently in the ring. */
+    public synchronized int size() {
+        return ring.size();
+    }
+
+    /**
+     * Add a page the scan brought into the pool.
+     *
+     * @return the oldest page, now dropped from the ring, if the ring was full
+     */
+    synchronized PageId add(PageId pid) {
+        ring.add(pid);
+        if (ring.size() <= ringPages) {
+            return null;
+        }
+        Iterator<PageId> it = ring.iterator();
+        PageId oldest = it.next();
+        it.remove();
+        return oldest;
+    }
+
+    /** Drop and return the oldest page in the ring that matches, or null. */
+    synchronized PageId takeOldest(Predicate<PageId> matches) {
+        for (Iterator<PageId> it = ring.iterator(); it.hasNext(); ) {
+            PageId pid = it.next();
+            if (matches.test(pid)) {
+                it.remove();
+                return pid;
+            }
+        }
+        return null;
+    }
+}
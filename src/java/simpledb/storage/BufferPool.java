@@ -10,6 +10,9 @@ import java.io.*;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -19,8 +22,41 @@ import java.util.concurrent.ConcurrentHashMap;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Frames are partitioned into shards by PageId hash. Each shard runs its own
+ * instance of a pluggable {@link ReplacementPolicy} (CLOCK by default) and is
+ * locked independently, and page hits only touch a concurrent map and the
+ * policy's access hook, so lookups scale with cores.
+ * <p>
+ * By default the pool runs NO STEAL / FORCE: dirty pages are never evicted and
+ * a committing transaction writes its pages to disk. {@link #setStealNoForce}
+ * switches to STEAL / NO FORCE, where commit only logs the pages, a full shard
+ * writes back dirty pages to make room, and a {@link PageWriter} thread
+ * trickles committed pages out in the background. Recovery relies on the log
+ * in that mode, so transactions must commit through
+ * {@link simpledb.transaction.Transaction}.
+ * <p>
+ * {@link #setRowLocking} makes heap files lock single rows instead of whole
+ * pages for inserts, deletes and scans, so writers of different rows of one
+ * page run concurrently with each other and with readers. Pages then hold uncommitted rows of several
+ * transactions; the pool only ever writes and logs their committed images,
+ * see {@link PendingRowChanges}, and an abort undoes just its own rows.
+ * <p>
+ * With {@link #setReadAhead} the pool prefetches the next pages of scans in
+ * the background; see {@link ReadAhead}. Scans of tables larger than the
+ * pool can confine themselves to a small ring of frames; see
+ * {@link BufferAccessStrategy}. {@link #setWarmRestart} keeps a snapshot of
+ * the resident pages so that a restarted pool can reload its hot set.
+ * Hits, misses, evictions and write-backs are counted in {@link StorageMetrics}.
  *
- * @Threadsafe all fields are final
+ * @Threadsafe No method locks the pool as a whole. Frames live in
+ * concurrent maps, and a shard's monitor guards installing and evicting
+ * its frames and its replacement policy. A frame's latch guards the bytes
+ * of its page and a per-frame flush lock keeps writing, logging and
+ * restoring the page from interleaving. Those three take a pool-wide lock
+ * shared, which beginning a snapshot and the checkpoints, rollbacks and
+ * recovery of {@link LogFile} take exclusively; see {@link #quiesce}. The
+ * settings and background workers are volatile.
  */
 public class BufferPool {
     /** Bytes per page, including header. */
@@ -47,27 +83,298 @@ public class BufferPool {
         BufferPool.pageSize = DEFAULT_PAGE_SIZE;
     }
 
-    static class ClockItem {
+    /** Smallest number of frames a shard is given before the pool is split further. */
+    static final int MIN_PAGES_PER_SHARD = 64;
+
+    /**
+     * A resident page. A frame obtained from {@link #pinPage} stays resident
+     * until it is unpinned or its transaction completes: eviction skips frames
+     * with a positive pin count.
+     * <p>
+     * Each frame also has a reader/writer latch guarding the bytes of its
+     * page. Unlike a transaction's locks, a latch is held only for the
+     * duration of one physical read or change of the page, never across
+     * operations, and it is invisible to deadlock detection, so a thread
+     * holding a latch must not wait for a lock. Threads changing a page
+     * take it exclusively; the pool takes it shared to write or log a
+     * consistent image of the page.
+     */
+    public static class Frame {
         private final PageId pageId;
-        public boolean flag;
+        private volatile Page page;
+        /** Number of pins, or -1 once the frame has been evicted. */
+        private final AtomicInteger pins = new AtomicInteger();
+        private final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
+        /** Held while the pool writes, logs or restores the page, so that those never interleave on one frame. */
+        private final Object flushLock = new Object();
+        /** LSN at the end of the last log record holding an image of the page. */
+        private volatile long pageLsn;
 
-        public ClockItem(PageId pageId, boolean flag) {
+        Frame(PageId pageId, Page page) {
             this.pageId = pageId;
-            this.flag = flag;
+            this.page = page;
         }
 
         public PageId getPageId() {
             return pageId;
         }
+
+        /** Return the current version of the page; it changes if the page is replaced or restored. */
+        public Page getPage() {
+            return page;
+        }
+
+        /**
+         * Return the page's pageLSN: the log must be on disk up to it
+         * before the page is written to its file, or 0 if no image of it
+         * has been logged since it was read.
+         */
+        public long getPageLsn() {
+            return pageLsn;
+        }
+
+        /** Return the number of times this frame is pinned. */
+        public int getPinCount() {
+            return Math.max(0, pins.get());
+        }
+
+        /** Latch the page for reading its bytes; blocks while another thread changes it. */
+        public void latchShared() {
+            latch.readLock().lock();
+        }
+
+        public void unlatchShared() {
+            latch.readLock().unlock();
+        }
+
+        /** Latch the page for changing its bytes; blocks while other threads read or change it. */
+        public void latchExclusive() {
+            latch.writeLock().lock();
+        }
+
+        public void unlatchExclusive() {
+            latch.writeLock().unlock();
+        }
+
+        /** Return true if the calling thread holds this frame's exclusive latch. */
+        boolean isLatchedExclusive() {
+            return latch.isWriteLockedByCurrentThread();
+        }
+
+        /** Pin this frame unless it has already been evicted. */
+        boolean tryPin() {
+            while (true) {
+                int n = pins.get();
+                if (n < 0) {
+                    return false;
+                }
+                if (pins.compareAndSet(n, n + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void unpin() {
+            if (pins.decrementAndGet() < 0) {
+                pins.incrementAndGet();
+                throw new IllegalStateException("frame of " + pageId + " is not pinned");
+            }
+        }
+
+        /** Mark this unpinned frame evicted, so that it can no longer be pinned. */
+        boolean tryRetire() {
+            return pins.compareAndSet(0, -1);
+        }
     }
 
-    private final Map<PageId, Page> pageMap;
+    /**
+     * One independent partition of the buffer pool. Lookups go straight to the
+     * concurrent page table; only installing and evicting frames takes the
+     * shard's monitor, so misses in different shards never contend. Each shard
+     * runs its own instance of the pool's {@link ReplacementPolicy}.
+     * <p>
+     * A shard starts with an even share of the pool's frames. A shard that
+     * has no victim left takes over a frame of another one, see
+     * {@link #borrowFrame}, so shares drift with the load while the pool as
+     * a whole keeps its size.
+     */
+    static class Shard {
+        private final Map<PageId, Frame> frames;
+        /** Frames this shard may fill; changed only under the shard's monitor. */
+        private int capacity;
+        private final ReplacementPolicy policy;
+        private final PageArena arena;
+
+        Shard(int capacity, int arenaPages, ReplacementPolicy.Type policy) {
+            this.frames = new ConcurrentHashMap<>();
+            this.capacity = capacity;
+            this.policy = policy.create(capacity);
+            this.arena = arenaPages > 0 ? new PageArena(arenaPages) : null;
+        }
+
+        int capacity() {
+            return capacity;
+        }
+
+        /**
+         * Give up one frame of capacity to another shard, evicting a clean,
+         * unpinned page if this shard is full. A shard keeps at least one
+         * frame. Must be called while holding the shard's monitor.
+         *
+         * @return false if there is no frame to give up
+         */
+        boolean lendFrame() {
+            if (capacity <= 1 || frames.size() >= capacity && !evict(null)) {
+                return false;
+            }
+            capacity--;
+            return true;
+        }
+
+        Frame get(PageId pid) {
+            Frame frame = frames.get(pid);
+            if (frame != null) {
+                policy.access(pid);
+            }
+            return frame;
+        }
+
+        /**
+         * Install page in this shard, replacing any cached version of the
+         * same page, evicting a clean page first if the shard is full.
+         * Must be called while holding the shard's monitor.
+         *
+         * @return the frame now holding page, or null if the shard is full
+         *         and every resident page is dirty
+         */
+        Frame install(Page page) {
+            PageId pid = page.getId();
+            if (arena != null) {
+                arena.remove(pid);
+            }
+            Frame frame = frames.get(pid);
+            if (frame != null) {
+                frame.page = page;
+                policy.access(pid);
+                return frame;
+            }
+            if (frames.size() >= capacity && !evict(pid)) {
+                return null;
+            }
+            frame = new Frame(pid, page);
+            frames.put(pid, frame);
+            policy.admit(pid);
+            return frame;
+        }
+
+        /** Drop pid from this shard. Must be called while holding the shard's monitor. */
+        void remove(PageId pid) {
+            if (frames.remove(pid) != null) {
+                policy.remove(pid);
+            }
+            if (arena != null) {
+                arena.remove(pid);
+            }
+        }
+
+        /**
+         * Take the off-heap image of pid out of the arena, if there is one.
+         * Must be called while holding the shard's monitor.
+         */
+        byte[] takeImage(PageId pid) {
+            if (arena == null) return null;
+            byte[] image = arena.get(pid);
+            arena.remove(pid);
+            return image;
+        }
+
+        /**
+         * Ask the replacement policy for a clean, unpinned victim and release
+         * its frame. Dirty pages are never evicted; in STEAL mode the pool
+         * writes them back first, outside the shard's monitor.
+         * Must be called while holding the shard's monitor.
+         *
+         * @return false if the shard is entirely dirty or pinned
+         */
+        private boolean evict(PageId incoming) {
+            PageId victim;
+            Frame frame;
+            while (true) {
+                victim = policy.evict(incoming, pid -> {
+                    Frame f = frames.get(pid);
+                    return f.page.isDirty() == null && f.pins.get() == 0;
+                });
+                if (victim == null) {
+                    StorageMetrics.get().evictFailure();
+                    return false;
+                }
+                frame = frames.get(victim);
+                if (frame.tryRetire()) {
+                    break;
+                }
+                // pinned without the monitor since the policy chose it; keep it
+                policy.admit(victim);
+            }
+            frames.remove(victim);
+            StorageMetrics.get().eviction();
+            if (arena != null) {
+                // demote the clean image off-heap instead of dropping it
+                byte[] image = frame.page.getPageData();
+                if (image.length == getPageSize()) {
+                    arena.put(victim, image);
+                }
+            }
+            return true;
+        }
+    }
+
+    private final Shard[] shards;
     private final int numPages;
+    private final int arenaPages;
+    private final ReplacementPolicy.Type policy;
+    private volatile Consumer<PageId> accessTrace;
+
+    private volatile boolean stealNoForce;
+    private volatile PageWriter pageWriter;
+    /** Takes shared locks on pages written back on behalf of no transaction. */
+    private final TransactionId writeBackTid = new TransactionId();
+
+    private volatile ReadAhead readAhead;
+    /** Takes shared locks on pages read ahead on behalf of no transaction. */
+    private final TransactionId readAheadTid = new TransactionId();
 
-    private final ClockItem[] clocks;
-    private int clockIndex;
+    private volatile PoolSnapshotter snapshotter;
+    /** Takes shared locks on pages reloaded from a snapshot. */
+    private final TransactionId warmUpTid = new TransactionId();
 
     private final LockManager lockManager;
+    private final StorageMetrics metrics = StorageMetrics.get();
+
+    private volatile boolean rowLocking = Boolean.getBoolean("simpledb.storage.BufferPool.rowLocking");
+    /** Uncommitted row changes on heap pages under row locking. */
+    private final PendingRowChanges rowChanges = new PendingRowChanges();
+    /** Committed page images replaced while snapshots that may read them run. */
+    private final VersionStore versions = new VersionStore();
+
+    /**
+     * Pages each running transaction has write-locked or dirtied. Commit and
+     * abort visit only these, so their cost follows the write set rather than
+     * the size of the pool.
+     */
+    private final Map<TransactionId, Set<PageId>> writeSets = new ConcurrentHashMap<>();
+    /**
+     * Held shared while pages are written, logged or restored, and
+     * exclusively while they must stand still; see {@link #quiesce}.
+     */
+    private final ReentrantReadWriteLock quiescer = new ReentrantReadWriteLock();
+
+    /**
+     * Pins each transaction holds, and how many times, so that completing
+     * it releases the pins of operators that were never closed, e.g. after
+     * a {@link TransactionAbortedException}. Each map is locked while it
+     * is changed.
+     */
+    private final Map<TransactionId, Map<Frame, Integer>> pinsHeld = new ConcurrentHashMap<>();
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -75,17 +382,465 @@ public class BufferPool {
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
-        // some code goes here
+        this(numPages, defaultShards(numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, split into
+     * numShards independently locked partitions keyed by PageId hash.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param numShards number of partitions; clamped to [1, numPages].
+     */
+    public BufferPool(int numPages, int numShards) {
+        this(numPages, numShards, 0);
+    }
+
+    /**
+     * Creates a BufferPool that keeps up to numPages decoded pages on the heap
+     * and, in addition, up to arenaPages clean page images off-heap in a
+     * preallocated {@link PageArena}. Clean pages evicted from the heap are
+     * demoted to the arena and revived from it on a later miss without disk
+     * I/O, so a large pool costs the garbage collector only numPages pages.
+     *
+     * @param numPages maximum number of decoded pages in this buffer pool.
+     * @param numShards number of partitions; clamped to [1, numPages].
+     * @param arenaPages number of off-heap page frames, or 0 to disable the arena.
+     */
+    public BufferPool(int numPages, int numShards, int arenaPages) {
+        this(numPages, numShards, arenaPages, ReplacementPolicy.Type.fromProperty());
+    }
+
+    /**
+     * Creates a BufferPool as above whose shards evict pages according to
+     * the given replacement policy.
+     *
+     * @param numPages maximum number of decoded pages in this buffer pool.
+     * @param numShards number of partitions; clamped to [1, numPages].
+     * @param arenaPages number of off-heap page frames, or 0 to disable the arena.
+     * @param policy the replacement policy each shard runs.
+     */
+    public BufferPool(int numPages, int numShards, int arenaPages, ReplacementPolicy.Type policy) {
         this.numPages = numPages;
-        this.pageMap = new ConcurrentHashMap<>();
-        this.clocks = new ClockItem[this.numPages];
-        clockIndex = 0;
+        this.arenaPages = arenaPages;
+        this.policy = policy;
+        numShards = Math.max(1, Math.min(numShards, numPages));
+        this.shards = new Shard[numShards];
+        for (int i = 0; i < numShards; i++) {
+            this.shards[i] = new Shard(share(numPages, numShards, i), share(arenaPages, numShards, i), policy);
+        }
 
         this.lockManager = new LockManager();
+        setReadAhead(ReadAhead.windowFromProperty());
+    }
+
+    /**
+     * One shard per core, as long as every shard keeps at least
+     * {@link #MIN_PAGES_PER_SHARD} frames; small pools stay unpartitioned.
+     */
+    private static int defaultShards(int numPages) {
+        return Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), numPages / MIN_PAGES_PER_SHARD));
+    }
+
+    /** Split total as evenly as possible over parts; return the share of part i. */
+    private static int share(int total, int parts, int i) {
+        return total / parts + (i < total % parts ? 1 : 0);
+    }
+
+    /** Return the number of independently locked partitions of this pool. */
+    public int getNumShards() {
+        return shards.length;
+    }
+
+    /** Return the replacement policy this pool's shards run. */
+    public ReplacementPolicy.Type getReplacementPolicy() {
+        return policy;
+    }
+
+    /**
+     * Report the id of every page requested through {@link #getPage} to trace,
+     * e.g. to record a workload for {@link ReplacementSimulator}; pass null
+     * to stop tracing.
+     */
+    public void setAccessTrace(Consumer<PageId> trace) {
+        this.accessTrace = trace;
     }
 
-    private void nextClockIndex() {
-        this.clockIndex = (this.clockIndex + 1) % this.numPages;
+    /**
+     * Switch between NO STEAL / FORCE (the default) and STEAL / NO FORCE.
+     * <p>
+     * With STEAL / NO FORCE enabled, committing only logs the transaction's
+     * dirty pages and leaves them cached; the commit record's log force is the
+     * only synchronous write. A shard that fills up with dirty pages writes
+     * back what it safely can instead of failing, and if writerIntervalMillis
+     * is positive a background {@link PageWriter} writes back committed pages
+     * every writerIntervalMillis.
+     * <p>
+     * Switching back writes out every dirty page no running transaction
+     * holds, so that NO STEAL eviction can find clean victims again.
+     *
+     * @param enabled true for STEAL / NO FORCE, false for NO STEAL / FORCE
+     * @param writerIntervalMillis period of the background writer, or 0 for none
+     */
+    public void setStealNoForce(boolean enabled, long writerIntervalMillis) throws IOException {
+        PageWriter writer = this.pageWriter;
+        if (writer != null) {
+            writer.shutdown();
+            this.pageWriter = null;
+        }
+        this.stealNoForce = enabled;
+        if (!enabled) {
+            writeBackPages();
+        } else if (writerIntervalMillis > 0) {
+            writer = new PageWriter(this, writerIntervalMillis);
+            this.pageWriter = writer;
+            writer.start();
+        }
+    }
+
+    /** Return true if this pool runs STEAL / NO FORCE; see {@link #setStealNoForce}. */
+    public boolean isStealNoForce() {
+        return stealNoForce;
+    }
+
+    /**
+     * Make heap files take row locks instead of page write locks when they
+     * insert and delete tuples: an exclusive lock on the row, under IX
+     * intention locks on its page and table. Scans likewise take IS locks on
+     * the pages they read and a shared lock on every row they return, so a
+     * scan and a writer of other rows of the same page do not wait for each
+     * other.
+     * Switch only while no transaction is running. The default comes from
+     * the system property simpledb.storage.BufferPool.rowLocking.
+     *
+     * @param enabled true for row locks, false for page locks
+     */
+    public void setRowLocking(boolean enabled) {
+        this.rowLocking = enabled;
+    }
+
+    /** Return true if heap files lock rows for writes; see {@link #setRowLocking}. */
+    public boolean isRowLocking() {
+        return rowLocking;
+    }
+
+    /**
+     * Make tid a read-only snapshot of the data committed so far. Its heap
+     * pages are then served as they were committed when it began, without
+     * locks, so that it neither waits for writers nor makes them wait, and
+     * is never chosen as a deadlock victim. Pages that commits replace
+     * meanwhile are kept in memory until no running snapshot can read them.
+     * Asking for a page READ_WRITE fails; B+ tree pages are still locked.
+     * The snapshot ends when tid completes.
+     *
+     * @param tid a transaction that has not yet read or written anything
+     */
+    public void beginSnapshot(TransactionId tid) {
+        // no commit is half way through changing its pages
+        quiesce();
+        try {
+            versions.begin(tid);
+        } finally {
+            resume();
+        }
+    }
+
+    /**
+     * Wait until no page is being written, logged or restored, and keep
+     * it so until {@link #resume}, for a snapshot beginning and for the
+     * checkpoints, rollbacks and recovery of {@link LogFile}, which need the
+     * pages to stand still. The caller may write pages itself meanwhile.
+     */
+    void quiesce() {
+        quiescer.writeLock().lock();
+    }
+
+    /** Let page writes, commits and aborts go on after {@link #quiesce}. */
+    void resume() {
+        quiescer.writeLock().unlock();
+    }
+
+    /** Return true if tid reads a snapshot; see {@link #beginSnapshot}. */
+    public boolean isSnapshot(TransactionId tid) {
+        return versions.isSnapshot(tid);
+    }
+
+    /**
+     * Resolve lock deadlocks according to policy, running the detector, if
+     * the policy uses one, every detectionMillis while transactions wait.
+     * The defaults come from the system properties
+     * simpledb.storage.LockManager.deadlockPolicy and
+     * simpledb.storage.LockManager.detectionInterval.
+     *
+     * @see LockManager.DeadlockPolicy
+     */
+    public void setDeadlockPolicy(LockManager.DeadlockPolicy policy, long detectionMillis) {
+        lockManager.setDeadlockPolicy(policy);
+        lockManager.setDetectionInterval(detectionMillis);
+    }
+
+    /** Return how this pool resolves lock deadlocks. */
+    public LockManager.DeadlockPolicy getDeadlockPolicy() {
+        return lockManager.getDeadlockPolicy();
+    }
+
+    /**
+     * Replace a transaction's page locks on a table by one table lock once
+     * it holds more than threshold of them, or never if threshold is 0. The
+     * default comes from the system property
+     * simpledb.storage.LockManager.escalationThreshold.
+     */
+    public void setEscalationThreshold(int threshold) {
+        lockManager.setEscalationThreshold(threshold);
+    }
+
+    /**
+     * Lock a whole table for tid, e.g. before scanning all of it, so that
+     * its pages need no locks of their own. READ_ONLY takes a shared and
+     * READ_WRITE an exclusive lock; this may block.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param tableId the table to lock
+     * @param perm the requested permissions on every page of the table
+     */
+    public void lockTable(TransactionId tid, int tableId, Permissions perm)
+        throws TransactionAbortedException {
+        lockManager.LockTable(tableId, tid, perm);
+    }
+
+    /**
+     * Lock a single row for tid, after intention locks on its page and
+     * table. May block.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param rid the row to lock
+     * @param perm READ_ONLY for a shared, READ_WRITE for an exclusive lock
+     */
+    public void lockRow(TransactionId tid, RecordId rid, Permissions perm)
+        throws TransactionAbortedException {
+        lockManager.LockRow(rid, tid, perm);
+    }
+
+    /** Lock a row like {@link #lockRow} if that needs no waiting; tid must hold its page's intention lock. */
+    boolean tryLockRow(TransactionId tid, RecordId rid, Permissions perm) {
+        return lockManager.tryLockRow(rid, tid, perm);
+    }
+
+    /**
+     * Prefetch up to maxWindow pages ahead of sequential heap file scans and
+     * honour {@link #prefetch} requests, or turn read-ahead off with 0. The
+     * default comes from the system property simpledb.storage.ReadAhead.window.
+     *
+     * @param maxWindow largest number of pages read ahead of a scan
+     */
+    public void setReadAhead(int maxWindow) {
+        this.readAhead = maxWindow > 0 ? new ReadAhead(this, maxWindow) : null;
+    }
+
+    /** Return the read-ahead window in pages, or 0 if read-ahead is off. */
+    public int getReadAhead() {
+        ReadAhead ra = this.readAhead;
+        return ra == null ? 0 : ra.maxWindow();
+    }
+
+    /**
+     * Hint that pid will be read soon, e.g. the next leaf of a B+ tree scan.
+     * If read-ahead is on and the page is not resident, it is read into the
+     * pool in the background. No lock is acquired on behalf of the caller.
+     */
+    public void prefetch(PageId pid) {
+        ReadAhead ra = this.readAhead;
+        if (ra != null && !shardFor(pid).frames.containsKey(pid)) {
+            ra.prefetch(pid);
+        }
+    }
+
+    /** Read pid into the pool for {@link ReadAhead}. */
+    void loadAhead(PageId pid) {
+        load(pid, readAheadTid, true, false);
+    }
+
+    /**
+     * Read pid into the pool on behalf of no transaction. Holds a shared lock
+     * under lockTid while reading so that no transaction changes the page in
+     * between, and skips the page if that lock is not free. Never writes back
+     * dirty pages to make room.
+     *
+     * @param evict whether a clean page may be evicted to make room
+     * @param referenced whether to count the page as accessed once installed
+     * @return true if the page was installed
+     */
+    private boolean load(PageId pid, TransactionId lockTid, boolean evict, boolean referenced) {
+        Shard shard = shardFor(pid);
+        if (shard.frames.containsKey(pid) || !lockManager.tryLockPage(pid, lockTid, Permissions.READ_ONLY)) {
+            return false;
+        }
+        try {
+            Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+            synchronized (shard) {
+                if (shard.frames.containsKey(pid) || !evict && shard.frames.size() >= shard.capacity()
+                        || shard.install(page) == null) {
+                    return false;
+                }
+                if (referenced) {
+                    shard.get(pid);
+                }
+                return true;
+            }
+        } catch (RuntimeException e) {
+            // e.g. the table is gone or the file shrank; a reader will find out
+            return false;
+        } finally {
+            lockManager.ReleasePage(pid, lockTid);
+        }
+    }
+
+    /**
+     * Write the ids and reference bits of the pages now resident to file,
+     * replacing it atomically. See {@link #loadResidentPages}.
+     */
+    public void saveResidentPages(File file) throws IOException {
+        List<PageSnapshot.Entry> entries = new ArrayList<>();
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                for (PageId pid : shard.frames.keySet()) {
+                    entries.add(new PageSnapshot.Entry(pid, shard.policy.isReferenced(pid)));
+                }
+            }
+        }
+        PageSnapshot.write(file, entries);
+    }
+
+    /**
+     * Read the pages listed in a snapshot written by {@link #saveResidentPages}
+     * back into the pool, in table and page order so the reads are as
+     * sequential as possible. If the snapshot lists more pages than the pool
+     * holds, the referenced ones are kept. Pages that are already resident or
+     * write-locked, pages of tables no longer in the catalog, and pages that
+     * would not fit without evicting are skipped, so loading never displaces
+     * pages that queries have brought in meanwhile.
+     *
+     * @return the number of pages read in
+     * @throws IOException if the file is not a readable snapshot
+     */
+    public int loadResidentPages(File file) throws IOException {
+        List<PageSnapshot.Entry> entries = PageSnapshot.read(file);
+        if (entries.size() > numPages) {
+            entries.sort(Comparator.comparing(e -> !e.referenced));
+            entries = new ArrayList<>(entries.subList(0, numPages));
+        }
+        entries.sort(PageSnapshot.BY_LOCATION);
+        int loaded = 0;
+        for (PageSnapshot.Entry e : entries) {
+            if (load(e.pid, warmUpTid, false, e.referenced)) {
+                loaded++;
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Turn on warm restart: reload the pages listed in file in the background
+     * while queries run, then snapshot the resident pages to file every
+     * snapshotIntervalMillis, and once more when warm restart is turned off.
+     * Pass a null file to turn it off. Call this after the catalog is loaded,
+     * since only pages of known tables are reloaded.
+     *
+     * @param file the snapshot file, or null to stop snapshotting
+     * @param snapshotIntervalMillis period of the snapshots, or 0 to snapshot only when stopped
+     */
+    public void setWarmRestart(File file, long snapshotIntervalMillis) {
+        PoolSnapshotter old = this.snapshotter;
+        if (old != null) {
+            old.shutdown();
+            this.snapshotter = null;
+        }
+        if (file != null) {
+            PoolSnapshotter s = new PoolSnapshotter(this, file, snapshotIntervalMillis);
+            this.snapshotter = s;
+            s.start();
+        }
+    }
+
+    private Shard shardFor(PageId pid) {
+        int h = pid.hashCode();
+        h ^= (h >>> 16);
+        return shards[(h & 0x7fffffff) % shards.length];
+    }
+
+    /** Cache page for tid, replacing any older version, evicting within its shard if needed. */
+    private void cachePage(Page page, TransactionId tid) throws DbException {
+        Shard shard = shardFor(page.getId());
+        while (true) {
+            synchronized (shard) {
+                if (shard.install(page) != null) {
+                    return;
+                }
+            }
+            makeRoom(shard, tid);
+        }
+    }
+
+    /**
+     * Called without the shard's monitor when shard is full of dirty pages.
+     * Take over a frame of another shard, or in STEAL mode write back what
+     * can be written so eviction can proceed.
+     */
+    private void makeRoom(Shard shard, TransactionId tid) throws DbException {
+        if (borrowFrame(shard)) {
+            return;
+        }
+        if (!stealNoForce) {
+            throw new DbException("All dirty page");
+        }
+        try {
+            if (writeBack(new ArrayList<>(shard.frames.values()), tid) == 0) {
+                throw new DbException("All dirty page");
+            }
+        } catch (IOException e) {
+            throw new DbException("write back failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Move one frame of capacity to shard from the first other shard, in
+     * turn after it, that can spare one, so that a transaction fails for
+     * lack of room only once no shard has a clean, unpinned page left.
+     * Called without any shard's monitor; the two shards are locked one
+     * after the other, never together.
+     *
+     * @return true if shard may now hold one more page
+     */
+    private boolean borrowFrame(Shard shard) {
+        int home = Arrays.asList(shards).indexOf(shard);
+        for (int i = 1; i < shards.length; i++) {
+            Shard donor = shards[(home + i) % shards.length];
+            boolean lent;
+            synchronized (donor) {
+                lent = donor.lendFrame();
+            }
+            if (lent) {
+                synchronized (shard) {
+                    shard.capacity++;
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return a ring {@link BufferAccessStrategy} for a sequential scan of file
+     * if the file is larger than this pool, counting the off-heap arena, or
+     * null if the scan should share the pool like any other reader. The ring
+     * gets an eighth of the pool, at most
+     * {@link BufferAccessStrategy#DEFAULT_RING_PAGES} frames.
+     */
+    public BufferAccessStrategy scanStrategy(DbFile file) {
+        if (file.numPages() <= numPages + arenaPages) {
+            return null;
+        }
+        return new BufferAccessStrategy(Math.min(BufferAccessStrategy.DEFAULT_RING_PAGES, numPages / 8));
     }
 
     /**
@@ -106,19 +861,325 @@ public class BufferPool {
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
         // some code goes here
+        return getPage(tid, pid, perm, null);
+    }
+
+    /**
+     * Retrieve the specified page like {@link #getPage(TransactionId, PageId, Permissions)},
+     * but on a miss bring it into the ring of strategy rather than into the
+     * pool at large. Read-ahead does not apply to ring scans.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @param strategy the scan's ring, or null to use the pool normally
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, BufferAccessStrategy strategy)
+        throws TransactionAbortedException, DbException {
+        return fetch(tid, pid, perm, strategy, false).page;
+    }
+
+    /**
+     * Retrieve the specified page like {@link #getPage(TransactionId, PageId, Permissions)}
+     * and pin its frame, so that the page stays resident, and its frame keeps
+     * serving the current version, until {@link #unpin} is called or the
+     * transaction completes. Readers holding a pin can use the page without
+     * calling getPage again; they still lock it like getPage does.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @return the pinned frame holding the page
+     */
+    public Frame pinPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        return pinnedBy(tid, fetch(tid, pid, perm, null, true));
+    }
+
+    /**
+     * Pin the specified page as above, bringing it into the ring of strategy
+     * on a miss; see {@link #getPage(TransactionId, PageId, Permissions, BufferAccessStrategy)}.
+     */
+    public Frame pinPage(TransactionId tid, PageId pid, Permissions perm, BufferAccessStrategy strategy)
+        throws TransactionAbortedException, DbException {
+        return pinnedBy(tid, fetch(tid, pid, perm, strategy, true));
+    }
+
+    /** Record that tid holds one more pin of frame. */
+    private Frame pinnedBy(TransactionId tid, Frame frame) {
+        Map<Frame, Integer> held = pinsHeld.computeIfAbsent(tid, k -> new HashMap<>());
+        synchronized (held) {
+            held.merge(frame, 1, Integer::sum);
+        }
+        return frame;
+    }
+
+    /**
+     * Release a pin tid took by {@link #pinPage}. The page stays locked by
+     * the transaction; only its frame becomes evictable again. Once tid has
+     * completed, its pins are already released and this does nothing.
+     *
+     * @throws IllegalStateException if tid does not hold a pin of the frame
+     */
+    public void unpin(TransactionId tid, Frame frame) {
+        Map<Frame, Integer> held = pinsHeld.get(tid);
+        if (held == null) {
+            return;
+        }
+        synchronized (held) {
+            if (pinsHeld.get(tid) != held) {
+                return;
+            }
+            Integer n = held.get(frame);
+            if (n == null) {
+                throw new IllegalStateException("frame of " + frame.pageId + " is not pinned by transaction " + tid.getId());
+            }
+            if (n == 1) {
+                held.remove(frame);
+            } else {
+                held.put(frame, n - 1);
+            }
+            frame.unpin();
+        }
+    }
+
+    /** Release the pins tid still holds; see {@link #pinsHeld}. */
+    private void releasePins(TransactionId tid) {
+        Map<Frame, Integer> held = pinsHeld.remove(tid);
+        if (held == null) {
+            return;
+        }
+        synchronized (held) {
+            for (Map.Entry<Frame, Integer> e : held.entrySet()) {
+                for (int i = 0; i < e.getValue(); i++) {
+                    e.getKey().unpin();
+                }
+            }
+            held.clear();
+        }
+    }
+
+    /**
+     * Pin the specified page like {@link #pinPage}, locking it and its table
+     * only in the intention mode for perm, for a caller that locks the rows
+     * it reads or changes itself; see {@link #lockRow}. The caller must
+     * hold the frame's exclusive latch while changing the page.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the permissions the caller will request on rows of the page
+     * @return the pinned frame holding the page
+     */
+    public Frame pinPageForRows(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        return pinPageForRows(tid, pid, perm, null);
+    }
+
+    /**
+     * Pin the specified page like {@link #pinPageForRows(TransactionId, PageId, Permissions)},
+     * reading it into the ring of strategy if it is not in the pool.
+     */
+    public Frame pinPageForRows(TransactionId tid, PageId pid, Permissions perm, BufferAccessStrategy strategy)
+        throws TransactionAbortedException, DbException {
+        if (versions.isSnapshot(tid)) {
+            return pinnedBy(tid, fetchVersion(tid, pid, perm, strategy, true));
+        }
+        this.lockManager.LockPageIntention(pid, tid, perm);
+        return pinnedBy(tid, fetchLocked(tid, pid, perm, strategy, true));
+    }
+
+    /** Lock, look up and if needed read pid; pin its frame if pin is set. */
+    private Frame fetch(TransactionId tid, PageId pid, Permissions perm, BufferAccessStrategy strategy, boolean pin)
+        throws TransactionAbortedException, DbException {
+        if (pid instanceof HeapPageId && versions.isSnapshot(tid)) {
+            return fetchVersion(tid, pid, perm, strategy, pin);
+        }
         this.lockManager.LockPage(pid, tid, perm);
-        Page res = pageMap.getOrDefault(pid, null);
-        if(res == null) {
+        return fetchLocked(tid, pid, perm, strategy, pin);
+    }
+
+    /**
+     * Return a private frame holding pid as the snapshot of tid sees it,
+     * pinned if pin is set. The page's committed image is its before image
+     * in the pool, or the image the version store kept when a running
+     * transaction's changes to it were stolen; the shared latch keeps a
+     * commit from replacing it between looking for an older version and
+     * copying it.
+     */
+    private Frame fetchVersion(TransactionId tid, PageId pid, Permissions perm, BufferAccessStrategy strategy, boolean pin)
+        throws DbException {
+        if (perm != Permissions.READ_ONLY) {
+            throw new DbException("snapshot transaction " + tid.getId() + " cannot write " + pid);
+        }
+        Frame frame = fetchLocked(tid, pid, perm, strategy, true);
+        Page image;
+        try {
+            frame.latchShared();
+            try {
+                image = versions.get(tid, pid);
+                if (image == null) {
+                    image = frame.page.getBeforeImage();
+                }
+            } finally {
+                frame.unlatchShared();
+            }
+        } finally {
+            frame.unpin();
+        }
+        Frame version = new Frame(pid, image);
+        if (pin) {
+            version.tryPin();
+        }
+        return version;
+    }
+
+    /** Look up and if needed read pid, which tid has locked; pin its frame if pin is set. */
+    private Frame fetchLocked(TransactionId tid, PageId pid, Permissions perm, BufferAccessStrategy strategy, boolean pin)
+        throws DbException {
+        if (perm == Permissions.READ_WRITE) {
+            addToWriteSet(tid, pid);
+        }
+        Consumer<PageId> trace = this.accessTrace;
+        if (trace != null) {
+            trace.accept(pid);
+        }
+        ReadAhead ra = strategy == null ? this.readAhead : null;
+        if (ra != null && pid instanceof HeapPageId) {
             DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            if (file instanceof HeapFile) {
+                ra.accessed(tid, pid.getTableId(), pid.getPageNumber(), ((HeapFile) file).numPages());
+            }
+        }
+        Shard shard = shardFor(pid);
+        Frame frame = shard.get(pid);
+        if (frame == null && ra != null) {
+            ra.await(pid);
+            frame = shard.get(pid);
+        }
+        if (frame != null && (!pin || frame.tryPin())) {
+            metrics.hit();
+            return frame;
+        }
+        metrics.miss();
+        // read outside the shard lock so one slow miss does not stall the shard
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        byte[] image;
+        synchronized (shard) {
+            image = shard.takeImage(pid);
+        }
+        Page res = null;
+        if (image != null) {
+            try {
+                res = file.decodePage(pid, image);
+            } catch (IOException e) {
+                res = null;
+            }
+        }
+        if (res == null) {
             res = file.readPage(pid);
-            if (pageMap.size() >= numPages) {
-                this.evictPage();
+        }
+        PageId overflow = null;
+        while (true) {
+            synchronized (shard) {
+                frame = shard.get(pid);
+                if (frame == null) {
+                    if (strategy != null) {
+                        recycle(shard, strategy, tid);
+                    }
+                    frame = shard.install(res);
+                    if (frame != null && strategy != null) {
+                        overflow = strategy.add(pid);
+                    }
+                }
+                if (frame != null) {
+                    // frames in the page table are never retired outside the monitor
+                    if (pin) {
+                        frame.tryPin();
+                    }
+                    break;
+                }
+            }
+            makeRoom(shard, tid);
+        }
+        if (overflow != null) {
+            Shard other = shardFor(overflow);
+            synchronized (other) {
+                retireRingPage(other, overflow, tid);
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * Evict the pages left in the ring of tid's finished scan, so that they
+     * do not linger in the pool as ordinary pages once the scan is over.
+     * Pages that are dirty or that another transaction has locked stay.
+     */
+    public void releaseStrategy(TransactionId tid, BufferAccessStrategy strategy) {
+        PageId pid;
+        while ((pid = strategy.takeOldest(p -> true)) != null) {
+            Shard shard = shardFor(pid);
+            synchronized (shard) {
+                retireRingPage(shard, pid, tid);
             }
-            pageMap.put(pid, res);
-            this.clocks[this.clockIndex] = new ClockItem(pid, true);
-            this.nextClockIndex();
         }
-        return res;
+    }
+
+    /**
+     * Make room in a full shard for a page of strategy's scan by evicting the
+     * oldest of the scan's ring pages there that can be recycled.
+     * Must be called while holding the shard's monitor.
+     */
+    private void recycle(Shard shard, BufferAccessStrategy strategy, TransactionId tid) {
+        if (shard.frames.size() < shard.capacity()) {
+            return;
+        }
+        strategy.takeOldest(p -> shardFor(p) == shard && retireRingPage(shard, p, tid));
+    }
+
+    /**
+     * Evict the ring page pid of tid's scan from shard if it is resident,
+     * clean, unpinned and not locked by any other transaction.
+     * Must be called while holding the shard's monitor.
+     *
+     * @return true if the page was evicted
+     */
+    private boolean retireRingPage(Shard shard, PageId pid, TransactionId tid) {
+        Frame frame = shard.frames.get(pid);
+        if (frame == null || frame.page.isDirty() != null || lockManager.isLockedByOther(pid, tid)
+                || !frame.tryRetire()) {
+            return false;
+        }
+        shard.remove(pid);
+        metrics.eviction();
+        return true;
+    }
+
+    /**
+     * Retrieve the specified page for reading, without caching it. Locks the
+     * page like {@link #getPage} with READ_ONLY permission and returns the
+     * cached version if the page is resident; otherwise reads it from its
+     * file and returns it without installing it, so a large scan does not
+     * displace the pool's working set. The returned page must not be
+     * modified.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     */
+    public Page getPageBypassingCache(TransactionId tid, PageId pid)
+        throws TransactionAbortedException, DbException {
+        this.lockManager.LockPage(pid, tid, Permissions.READ_ONLY);
+        Consumer<PageId> trace = this.accessTrace;
+        if (trace != null) {
+            trace.accept(pid);
+        }
+        Frame frame = shardFor(pid).get(pid);
+        if (frame != null) {
+            metrics.hit();
+            return frame.page;
+        }
+        metrics.miss();
+        return Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
     }
 
     /**
@@ -154,6 +1215,57 @@ public class BufferPool {
         return this.lockManager.holdsLock(p, tid);
     }
 
+    /** Return true if the specified transaction has a lock on the specified row, or on its page or table */
+    public boolean holdsLock(TransactionId tid, RecordId rid) {
+        return this.lockManager.holdsLock(rid, tid);
+    }
+
+    /**
+     * Record that tid has just inserted tuple into the page of frame, or
+     * deleted it if inserted is false, under row locking. Must be called
+     * while holding the frame's exclusive latch taken for the change.
+     */
+    void rowChanged(TransactionId tid, Frame frame, Tuple tuple, boolean inserted) {
+        rowChanges.record(frame, tid, tuple, inserted);
+        addToWriteSet(tid, frame.pageId);
+    }
+
+    /**
+     * Return the rows of the heap page of frame that tid may read under row
+     * locking: the committed ones plus tid's own, without the rows it has
+     * deleted, in slot order. Other transactions' uncommitted changes are
+     * left out, so a reader locks only rows that exist for it.
+     */
+    List<Tuple> visibleRows(TransactionId tid, Frame frame) throws IOException {
+        return rowChanges.visibleTuples(frame, tid);
+    }
+
+    /** Return true if the page of frame has uncommitted row changes of tid; see {@link #setRowLocking}. */
+    private boolean hasRowChanges(Frame frame, TransactionId tid) {
+        return rowLocking && frame.page instanceof HeapPage && rowChanges.contains(frame, tid);
+    }
+
+    /**
+     * Mark the page of frame, whose committed image has just been written
+     * or logged, dirty by a transaction that still has row changes pending
+     * on it, or else clean if written, or else dirty by tid.
+     */
+    private void settleRowPage(Frame frame, TransactionId tid, boolean written) {
+        frame.latchExclusive();
+        try {
+            TransactionId pending = rowChanges.otherWriter(frame, null);
+            if (pending != null) {
+                frame.page.markDirty(true, pending);
+            } else if (written) {
+                frame.page.markDirty(false, null);
+            } else {
+                frame.page.markDirty(true, tid);
+            }
+        } finally {
+            frame.unlatchExclusive();
+        }
+    }
+
     /**
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
@@ -164,15 +1276,49 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid, boolean commit) {
         // some code goes here
         // not necessary for lab1|lab2
+        completePages(tid, commit);
+        releaseTransaction(tid);
+    }
+
+    /**
+     * The first half of {@link #transactionComplete}: commit or roll back
+     * tid's pages, keeping its locks. A committing transaction then makes its
+     * commit record durable before {@link #releaseTransaction} lets other
+     * transactions read its changes.
+     *
+     * @param tid the ID of the completing transaction
+     * @param commit a flag indicating whether we should commit or abort
+     */
+    public void completePages(TransactionId tid, boolean commit) {
         try {
             if (commit) {
-                this.flushPages(tid);
+                if (stealNoForce) {
+                    this.logPages(tid);
+                } else {
+                    this.flushPages(tid);
+                }
             } else {
                 this.restorePages(tid);
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
+    }
+
+    /**
+     * The second half of {@link #transactionComplete}: release tid's pins
+     * and locks and forget its pages.
+     *
+     * @param tid the ID of the completed transaction
+     */
+    public void releaseTransaction(TransactionId tid) {
+        releasePins(tid);
+        ReadAhead ra = this.readAhead;
+        if (ra != null) {
+            ra.forget(tid);
+        }
+        this.writeSets.remove(tid);
+        this.versions.end(tid);
         this.lockManager.releaseAllLocks(tid);
     }
 
@@ -198,14 +1344,9 @@ public class BufferPool {
         DbFile file = Database.getCatalog().getDatabaseFile(tableId);
         List<Page> dirties = file.insertTuple(tid, t);
         for (Page page : dirties) {
-            if (!this.pageMap.containsKey(page.getId()) && pageMap.size() >= numPages) {
-                this.evictPage();
-                this.pageMap.put(page.getId(), page);
-                this.clocks[this.clockIndex] = new ClockItem(page.getId(), true);
-                this.nextClockIndex();
-            }
             page.markDirty(true, tid);
-            this.pageMap.put(page.getId(), page);
+            addToWriteSet(tid, page.getId());
+            cachePage(page, tid);
         }
     }
 
@@ -229,14 +1370,9 @@ public class BufferPool {
         DbFile file = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
         List<Page> dirties = file.deleteTuple(tid, t);
         for (Page page : dirties) {
-            if (!this.pageMap.containsKey(page.getId()) && pageMap.size() >= numPages) {
-                this.evictPage();
-                this.pageMap.put(page.getId(), page);
-                this.clocks[this.clockIndex] = new ClockItem(page.getId(), true);
-                this.nextClockIndex();
-            }
             page.markDirty(true, tid);
-            this.pageMap.put(page.getId(), page);
+            addToWriteSet(tid, page.getId());
+            cachePage(page, tid);
         }
     }
 
@@ -245,13 +1381,18 @@ public class BufferPool {
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
-        // some code goes here
-        // not necessary for lab1
-        for (Map.Entry<PageId, Page> entry : pageMap.entrySet()) {
-            if (entry.getValue().isDirty() != null) {
-                flushPage(entry.getKey());
+    public void flushAllPages() throws IOException {
+        quiescer.readLock().lock();
+        try {
+            Map<PageId, Long> written = new HashMap<>();
+            for (Shard shard : shards) {
+                for (PageId pid : shard.frames.keySet()) {
+                    flushPage(pid, written);
+                }
             }
+            forceFiles(written);
+        } finally {
+            quiescer.readLock().unlock();
         }
     }
 
@@ -263,97 +1404,349 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
-        // some code goes here
-        // not necessary for lab1
-        pageMap.remove(pid);
-        for (int i = 0; i < clocks.length; i++) {
-            if (clocks[i] != null && clocks[i].pageId.equals(pid)) {
-                clocks[i] = null;
-                this.clockIndex = i;
-                break;
-            }
+    public void discardPage(PageId pid) {
+        Shard shard = shardFor(pid);
+        synchronized (shard) {
+            shard.remove(pid);
         }
     }
 
     /**
-     * Flushes a certain page to disk
+     * Flushes a certain page to disk. The write is not forced; callers force
+     * the files they wrote once, see {@link #forceFiles}.
      * @param pid an ID indicating the page to flush
+     * @param written gets pid and the pageLSN of the image written
+     * @return true if the page was dirty and has been written
      */
-    private synchronized void flushPage(PageId pid) throws IOException {
-        // some code goes here
-        // not necessary for lab1
-        Page page = pageMap.getOrDefault(pid, null);
-        if (page == null) return;
-        if (page.isDirty() == null) return;
+    private boolean flushPage(PageId pid, Map<PageId, Long> written) throws IOException {
+        return flushPage(pid, null, written);
+    }
 
-        Database.getLogFile().logWrite(page.isDirty(), page.getBeforeImage(), page);
-        Database.getLogFile().force();
-        Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
-        page.markDirty(false, null);
+    /**
+     * Flush pid as above. Under row locking a heap page may hold rows of
+     * running transactions: then only its committed image is written,
+     * including keep's rows if keep is not null, and the page stays dirty
+     * while other rows are pending. A committed image needs no log record of
+     * its own, as commits log the images they produce; writing keep's rows
+     * logs them as keep's update, which is how keep commits them.
+     *
+     * @return true if the page was written
+     */
+    private boolean flushPage(PageId pid, TransactionId keep, Map<PageId, Long> written) throws IOException {
+        Frame frame = shardFor(pid).frames.get(pid);
+        if (frame == null) return false;
+        quiescer.readLock().lock();
+        try {
+            synchronized (frame.flushLock) {
+                return flushFrame(frame, keep, written);
+            }
+        } finally {
+            quiescer.readLock().unlock();
+        }
     }
 
-    /** Write all pages of the specified transaction to disk.
+    /** Flush the page of frame as {@link #flushPage} does, holding the frame's flush lock. */
+    private boolean flushFrame(Frame frame, TransactionId keep, Map<PageId, Long> written) throws IOException {
+        PageId pid = frame.pageId;
+        Page page = frame.page;
+        if (page.isDirty() == null) return false;
+
+        if (rowLocking && page instanceof HeapPage) {
+            HeapPage heapPage = (HeapPage) page;
+            HeapPage image = rowChanges.committedImage(frame, keep);
+            if (keep != null) {
+                frame.pageLsn = Database.getLogFile().logWrite(keep, heapPage.getBeforeImage(), image);
+            }
+            // WAL: the log holds the committed rows up to the pageLSN
+            Database.getLogFile().force(frame.pageLsn);
+            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(image);
+            if (keep != null) {
+                heapPage.setBeforeImage(image);
+                rowChanges.forget(frame, keep);
+            }
+            settleRowPage(frame, keep, true);
+            written.put(pid, frame.pageLsn);
+            metrics.dirtyPageWrite();
+            return true;
+        }
+        // the shared latch keeps the logged and the written image the same
+        frame.latchShared();
+        try {
+            TransactionId dirtier = page.isDirty();
+            if (pid instanceof HeapPageId && dirtier != null && writeSets.containsKey(dirtier)) {
+                // stolen: the disk is about to lose the committed image
+                versions.keepOverwritten(pid, page.getBeforeImage());
+            }
+            frame.pageLsn = Database.getLogFile().logWrite(dirtier, page.getBeforeImage(), page);
+            Database.getLogFile().force(frame.pageLsn);
+            Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
+            page.markDirty(false, null);
+        } finally {
+            frame.unlatchShared();
+        }
+        written.put(pid, frame.pageLsn);
+        metrics.dirtyPageWrite();
+        return true;
+    }
+
+    /**
+     * Force the files of the pages written to disk, then log that they
+     * are there as of their pageLSNs, so that recovery can skip redoing
+     * what they already hold.
      */
-    public synchronized void flushPages(TransactionId tid) throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2
-        for (PageId pageId : pageMap.keySet()) {
-            Page page = this.pageMap.get(pageId);
-            page.setBeforeImage();
-            if (page.isDirty() == tid) {
-                flushPage(pageId);
+    private void forceFiles(Map<PageId, Long> written) throws IOException {
+        Set<Integer> tableIds = new HashSet<>();
+        Map<PageId, Long> logged = new HashMap<>();
+        for (Map.Entry<PageId, Long> e : written.entrySet()) {
+            tableIds.add(e.getKey().getTableId());
+            // a committed row image written before any was logged holds no update
+            if (e.getValue() > 0) {
+                logged.put(e.getKey(), e.getValue());
             }
         }
+        for (int tableId : tableIds) {
+            Database.getCatalog().getDatabaseFile(tableId).force();
+        }
+        Database.getLogFile().logPagesWritten(logged);
     }
 
-    /** Restore all pages of the specified transaction from disk.
+    /** Record that tid may dirty pid, so that commit and abort visit it. */
+    private void addToWriteSet(TransactionId tid, PageId pid) {
+        writeSets.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(pid);
+    }
+
+    /**
+     * Return true if committing tid should refresh the before image of pid,
+     * last dirtied by dirtier: the page is dirty by tid, or clean (perhaps
+     * written back early) and not since locked by a transaction that could
+     * be changing it right now.
      */
-    public synchronized void restorePages(TransactionId tid) {
-        // some code goes here
-        // not necessary for lab1|lab2
-        for (PageId pageId : pageMap.keySet()) {
-            Page page = this.pageMap.get(pageId);
-            if (page.isDirty() == tid) {
-                DbFile file = Database.getCatalog().getDatabaseFile(pageId.getTableId());
-                this.pageMap.put(pageId, file.readPage(pageId));
+    private boolean ownsBeforeImage(TransactionId tid, PageId pid, TransactionId dirtier) {
+        return dirtier == null ? !lockManager.isLockedByOther(pid, tid) : dirtier.equals(tid);
+    }
+
+    /** Return the resident frames of the pages in tid's write set. */
+    private List<Frame> writeSetFrames(TransactionId tid) {
+        Set<PageId> pids = writeSets.get(tid);
+        if (pids == null) {
+            return Collections.emptyList();
+        }
+        List<Frame> frames = new ArrayList<>(pids.size());
+        for (PageId pid : pids) {
+            Frame frame = shardFor(pid).frames.get(pid);
+            if (frame != null) {
+                frames.add(frame);
             }
         }
+        return frames;
     }
 
     /**
-     * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Keep the committed images of tid's pages, which its commit is about to
+     * replace, for the running snapshots; see {@link #beginSnapshot}. A page
+     * whose changes were stolen has its committed image in the version
+     * store, whether or not it is still in the pool.
      */
-    private synchronized void evictPage() throws DbException {
-        // some code goes here
-        // not necessary for lab1
-        Set<PageId> pageIdSet = new HashSet<>();
-        while(true) {
-            if (this.clocks[this.clockIndex] == null) {
-                break;
-            }
-            if (this.pageMap.get(this.clocks[this.clockIndex].pageId).isDirty() != null) {
-                this.nextClockIndex();
-                pageIdSet.add(this.clocks[this.clockIndex].pageId);
-                if (pageIdSet.containsAll(this.pageMap.keySet())) {
-                    throw new DbException("All dirty page");
+    private void keepVersions(TransactionId tid) {
+        Set<PageId> pids = writeSets.get(tid);
+        if (pids == null || !versions.hasSnapshots()) {
+            return;
+        }
+        for (PageId pid : pids) {
+            if (!(pid instanceof HeapPageId)) {
+                continue;
+            }
+            Page overwritten = versions.getOverwritten(pid);
+            Frame frame = shardFor(pid).frames.get(pid);
+            if (frame == null) {
+                if (overwritten != null) {
+                    versions.keep(pid, overwritten);
                 }
+                continue;
+            }
+            frame.latchExclusive();
+            try {
+                versions.keep(pid, overwritten != null ? overwritten : frame.page.getBeforeImage());
+            } finally {
+                frame.unlatchExclusive();
             }
-            if (this.clocks[this.clockIndex].flag) {
-                this.clocks[this.clockIndex].flag = false;
-                this.nextClockIndex();
+        }
+    }
+
+    /** Forget the committed images kept for tid's stolen pages, once its changes are committed or undone. */
+    private void forgetOverwritten(TransactionId tid) {
+        Set<PageId> pids = writeSets.get(tid);
+        if (pids != null) {
+            versions.forgetOverwritten(pids);
+        }
+    }
+
+    /** Write all pages of the specified transaction to disk.
+     * Pages in its write set that are clean by now, e.g. written back early,
+     * only get their before images refreshed.
+     */
+    public void flushPages(TransactionId tid) throws IOException {
+        quiescer.readLock().lock();
+        try {
+            Map<PageId, Long> written = new HashMap<>();
+            List<Frame> frames = writeSetFrames(tid);
+            keepVersions(tid);
+            for (Frame frame : frames) {
+                synchronized (frame.flushLock) {
+                    if (hasRowChanges(frame, tid)) {
+                        flushFrame(frame, tid, written);
+                        continue;
+                    }
+                    Page page = frame.page;
+                    TransactionId dirtier = page.isDirty();
+                    if (tid.equals(dirtier)) {
+                        flushFrame(frame, null, written);
+                    }
+                    if (ownsBeforeImage(tid, frame.pageId, dirtier)) {
+                        page.setBeforeImage();
+                    }
+                }
+            }
+            forgetOverwritten(tid);
+            versions.committed();
+            forceFiles(written);
+        } finally {
+            quiescer.readLock().unlock();
+        }
+    }
+
+    /**
+     * Log all pages of the specified transaction and make their current
+     * contents the new before images, leaving them dirty in the pool. This
+     * is commit under NO FORCE; the caller's commit record forces the log.
+     */
+    private void logPages(TransactionId tid) throws IOException {
+        quiescer.readLock().lock();
+        try {
+            List<Frame> frames = writeSetFrames(tid);
+            keepVersions(tid);
+            for (Frame frame : frames) {
+                synchronized (frame.flushLock) {
+                    logFrame(frame, tid);
+                }
+            }
+            forgetOverwritten(tid);
+            versions.committed();
+        } finally {
+            quiescer.readLock().unlock();
+        }
+    }
+
+    /** Log tid's changes to the page of frame for its commit, holding the frame's flush lock. */
+    private void logFrame(Frame frame, TransactionId tid) throws IOException {
+        Page page = frame.page;
+        if (hasRowChanges(frame, tid)) {
+            HeapPage heapPage = (HeapPage) page;
+            HeapPage image = rowChanges.committedImage(frame, tid);
+            frame.pageLsn = Database.getLogFile().logWrite(tid, heapPage.getBeforeImage(), image);
+            heapPage.setBeforeImage(image);
+            rowChanges.forget(frame, tid);
+            settleRowPage(frame, tid, false);
+            return;
+        }
+        TransactionId dirtier = page.isDirty();
+        if (tid.equals(dirtier)) {
+            frame.pageLsn = Database.getLogFile().logWrite(tid, page.getBeforeImage(), page);
+        }
+        if (ownsBeforeImage(tid, frame.pageId, dirtier)) {
+            page.setBeforeImage();
+        }
+    }
+
+    /** Restore all pages of the specified transaction from disk.
+     * Under NO FORCE the disk may lag behind committed data, so pages are
+     * restored from their before images instead and stay dirty. Under row
+     * locking only the transaction's own rows are undone.
+     */
+    public void restorePages(TransactionId tid) {
+        quiescer.readLock().lock();
+        try {
+            for (Frame frame : writeSetFrames(tid)) {
+                synchronized (frame.flushLock) {
+                    restoreFrame(frame, tid);
+                }
+            }
+            // the rollback has written the committed images of stolen pages back
+            forgetOverwritten(tid);
+        } finally {
+            quiescer.readLock().unlock();
+        }
+    }
+
+    /** Undo tid's changes to the page of frame, holding the frame's flush lock. */
+    private void restoreFrame(Frame frame, TransactionId tid) {
+        if (hasRowChanges(frame, tid)) {
+            rowChanges.rollback(frame, tid);
+            // under FORCE the committed rows left are what was last written
+            settleRowPage(frame, tid, !stealNoForce);
+            return;
+        }
+        if (tid.equals(frame.page.isDirty())) {
+            if (stealNoForce) {
+                Page before = frame.page.getBeforeImage();
+                before.markDirty(true, tid);
+                frame.page = before;
             } else {
+                DbFile file = Database.getCatalog().getDatabaseFile(frame.pageId.getTableId());
+                frame.page = file.readPage(frame.pageId);
+            }
+        }
+    }
+
+    /** Write back every dirty page that no running transaction holds. */
+    void writeBackPages() throws IOException {
+        List<Frame> frames = new ArrayList<>();
+        for (Shard shard : shards) {
+            frames.addAll(shard.frames.values());
+        }
+        writeBack(frames, null);
+    }
+
+    /**
+     * Write back those of frames that are dirty and can be written without
+     * disturbing a running transaction: pages dirtied by tid itself, and
+     * pages nobody holds a write lock on, typically pages of transactions
+     * that committed under NO FORCE. Pages are written in file order so that
+     * the writes are as sequential as the files allow. Must not be called
+     * while holding a shard's monitor.
+     *
+     * @param tid the transaction on whose behalf pages are stolen, or null
+     * @return the number of pages written that are clean now
+     */
+    private int writeBack(List<Frame> frames, TransactionId tid) throws IOException {
+        frames.sort(Comparator.comparingInt((Frame f) -> f.pageId.getTableId())
+                .thenComparingInt(f -> f.pageId.getPageNumber()));
+        Map<PageId, Long> pageLsns = new HashMap<>();
+        int written = 0;
+        for (Frame frame : frames) {
+            TransactionId dirtier = frame.page.isDirty();
+            if (dirtier == null) {
+                continue;
+            }
+            boolean flushed = false;
+            if (dirtier.equals(tid)) {
+                flushed = flushPage(frame.pageId, pageLsns);
+            } else if (this.lockManager.tryLockPage(frame.pageId, writeBackTid, Permissions.READ_ONLY)) {
                 try {
-                    this.flushPage(this.clocks[this.clockIndex].pageId);
-                    this.pageMap.remove(this.clocks[this.clockIndex].pageId);
-                    this.clocks[this.clockIndex] = null;
-                    break;
-                } catch (IOException e) {
-                    throw new DbException("Flushes the page to disk fail");
+                    flushed = flushPage(frame.pageId, pageLsns);
+                } finally {
+                    this.lockManager.ReleasePage(frame.pageId, writeBackTid);
+                }
+            }
+            if (flushed) {
+                // a page with pending row changes is written but stays dirty
+                if (frame.page.isDirty() == null) {
+                    written++;
                 }
             }
         }
+        forceFiles(pageLsns);
+        return written;
     }
 
 }
@@ -0,0 +1,101 @@
+package simpledb.storage;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Predicate;
+
+/**
+ * CLOCK (second chance) replacement. Frames sit on a ring with one reference
+ * bit each; a hit sets the bit without locking, and the hand sweeps the ring
+ * clearing bits until it finds an evictable frame whose bit is already clear.
+ * The ring grows if its shard is given more frames than it was sized for.
+ */
+public class ClockPolicy implements ReplacementPolicy {
+
+    private PageId[] clocks;
+    /** Replaced when the ring grows; a hit racing with that may lose its bit. */
+    private volatile AtomicIntegerArray referenced;
+    private final Map<PageId, Integer> slotOf;
+    private final Deque<Integer> freeSlots;
+    private int clockIndex;
+
+    public ClockPolicy(int capacity) {
+        this.clocks = new PageId[capacity];
+        this.referenced = new AtomicIntegerArray(capacity);
+        this.slotOf = new ConcurrentHashMap<>();
+        this.freeSlots = new ArrayDeque<>(capacity);
+        for (int i = 0; i < capacity; i++) {
+            this.freeSlots.add(i);
+        }
+        this.clockIndex = 0;
+    }
+
+    public void admit(PageId pid) {
+        Integer slot = freeSlots.poll();
+        if (slot == null) {
+            slot = grow();
+        }
+        clocks[slot] = pid;
+        referenced.set(slot, 1);
+        slotOf.put(pid, slot);
+    }
+
+    public void access(PageId pid) {
+        Integer slot = slotOf.get(pid);
+        if (slot != null) {
+            referenced.set(slot, 1);
+        }
+    }
+
+    /**
+     * Two full sweeps are enough: the first clears every reference bit, so
+     * the second stops at the first evictable frame if there is one.
+     */
+    public PageId evict(PageId incoming, Predicate<PageId> evictable) {
+        for (int i = 0; i < 2 * clocks.length; i++) {
+            int slot = clockIndex;
+            clockIndex = (clockIndex + 1) % clocks.length;
+            PageId pid = clocks[slot];
+            if (pid == null || !evictable.test(pid)) {
+                continue;
+            }
+            if (referenced.getAndSet(slot, 0) == 0) {
+                remove(pid);
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    /** Double the ring, keeping the slots and bits of its pages; return a free slot. */
+    private int grow() {
+        int n = clocks.length;
+        AtomicIntegerArray bits = new AtomicIntegerArray(Math.max(1, 2 * n));
+        for (int i = 0; i < n; i++) {
+            bits.set(i, referenced.get(i));
+        }
+        clocks = Arrays.copyOf(clocks, bits.length());
+        referenced = bits;
+        for (int i = n + 1; i < bits.length(); i++) {
+            freeSlots.add(i);
+        }
+        return n;
+    }
+
+    public boolean isReferenced(PageId pid) {
+        Integer slot = slotOf.get(pid);
+        return slot != null && referenced.get(slot) != 0;
+    }
+
+    public void remove(PageId pid) {
+        Integer slot = slotOf.remove(pid);
+        if (slot != null) {
+            clocks[slot] = null;
+            freeSlots.add(slot);
+        }
+    }
+}
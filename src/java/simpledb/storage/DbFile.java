@@ -24,6 +24,18 @@ public interface DbFile {
      */
     Page readPage(PageId id);
 
+    /**
+     * Rebuild a page of this file from its serialized form, as produced by
+     * {@link Page#getPageData()}, without touching the disk. Used by the
+     * buffer pool to revive pages it keeps off-heap. Files that cannot decode
+     * a page from memory may simply read it again.
+     *
+     * @throws IOException if data is not a valid image of the page
+     */
+    default Page decodePage(PageId id, byte[] data) throws IOException {
+        return readPage(id);
+    }
+
     /**
      * Push the specified page to disk.
      *
@@ -33,6 +45,16 @@ public interface DbFile {
      */
     void writePage(Page p) throws IOException;
 
+    /**
+     * Make every page written so far durable. {@link #writePage} does not
+     * have to reach the disk on its own; the buffer pool forces the file
+     * wherever it needs the pages to survive a crash.
+     *
+     * @throws IOException if the data cannot be forced to disk
+     */
+    default void force() throws IOException {
+    }
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
@@ -73,6 +95,23 @@ public interface DbFile {
      */
     DbFileIterator iterator(TransactionId tid);
 
+    /**
+     * Returns an iterator over all the tuples stored in this DbFile that
+     * fetches pages through the given buffer access strategy, so that a scan
+     * of a large file recycles a small ring of frames. Files that do not
+     * support strategies return {@link #iterator(TransactionId)}.
+     *
+     * @param strategy the ring to scan through, or null for none
+     */
+    default DbFileIterator iterator(TransactionId tid, BufferAccessStrategy strategy) {
+        return iterator(tid);
+    }
+
+    /**
+     * Returns the number of pages in this DbFile.
+     */
+    int numPages();
+
     /**
      * Returns a unique ID used to identify this DbFile in the Catalog. This id
      * can be used to look up the table via {@link Catalog#getDatabaseFile} and
@@ -0,0 +1,119 @@
+package simpledb.storage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * FileHandle is the long-lived, thread-safe access path of a {@link DbFile} to
+ * its backing file. The file is opened once, on first use, and every read and
+ * write is a positional {@link FileChannel} call, so concurrent readers never
+ * share a file pointer and no call opens or closes the file.
+ * <p>
+ * The file length is cached and kept up to date by writes and appends made
+ * through the handle; the file must not be resized behind its back.
+ * <p>
+ * Writes are not synchronous; durability is an explicit {@link #force()}.
+ */
+public class FileHandle implements Closeable {
+    private final File file;
+    private volatile RandomAccessFile raf;
+    private volatile FileChannel channel;
+    private long length = -1; // protected by this
+
+    public FileHandle(File file) {
+        this.file = file;
+    }
+
+    /** Return the file this handle reads and writes. */
+    public File getFile() {
+        return file;
+    }
+
+    /** Return the open channel, opening the file on first use. */
+    FileChannel channel() throws IOException {
+        FileChannel ch = channel;
+        if (ch == null) {
+            synchronized (this) {
+                ch = channel;
+                if (ch == null) {
+                    // keep the RandomAccessFile so the descriptor is released if the handle is dropped
+                    raf = new RandomAccessFile(file, "rw");
+                    ch = raf.getChannel();
+                    length = ch.size();
+                    channel = ch;
+                }
+            }
+        }
+        return ch;
+    }
+
+    /** Return the length of the file in bytes. */
+    public long length() throws IOException {
+        channel();
+        synchronized (this) {
+            return length;
+        }
+    }
+
+    /**
+     * Read up to dst.length bytes starting at position.
+     *
+     * @return the number of bytes read, less than dst.length only at end of file
+     */
+    public int read(long position, byte[] dst) throws IOException {
+        FileChannel ch = channel();
+        ByteBuffer buf = ByteBuffer.wrap(dst);
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, position + buf.position());
+            if (n < 0) {
+                break;
+            }
+        }
+        return buf.position();
+    }
+
+    /** Write all of data at position, extending the file if needed. */
+    public void write(long position, byte[] data) throws IOException {
+        FileChannel ch = channel();
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        while (buf.hasRemaining()) {
+            ch.write(buf, position + buf.position());
+        }
+        synchronized (this) {
+            length = Math.max(length, position + data.length);
+        }
+    }
+
+    /**
+     * Append data at the end of the file. Concurrent appends never overlap.
+     *
+     * @return the position data was written at
+     */
+    public synchronized long append(byte[] data) throws IOException {
+        channel();
+        long position = length;
+        write(position, data);
+        return position;
+    }
+
+    /** Force every write made so far to the storage device. */
+    public void force() throws IOException {
+        FileChannel ch = channel;
+        if (ch != null) {
+            ch.force(false);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (raf != null) {
+            raf.close();
+        }
+        raf = null;
+        channel = null;
+    }
+}
@@ -0,0 +1,143 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * FreeSpaceMap records, for every page of a {@link HeapFile}, roughly how many
+ * free tuple slots it has, so that inserts can go straight to a page with
+ * room instead of locking and reading every page in turn.
+ * <p>
+ * The map keeps one byte per page: the number of free slots, capped at
+ * {@link #MAX_RECORDED}, or {@link #UNKNOWN} for pages it knows nothing
+ * about. It is a hint, not a guarantee: aborted inserts and deletes, and
+ * writes that bypass the heap file, can leave it stale, so callers must
+ * check the page itself and report what they find with {@link #update}.
+ * <p>
+ * The map is persisted to a side file next to the heap file, see
+ * {@link #sideFile(File)}, whenever the heap file is forced. Pages the side
+ * file does not cover start out as unknown; a side file covering more pages
+ * than the heap file has belongs to some other file and is ignored. The side
+ * file of a heap file in the temp directory is deleted on exit, as the heap
+ * file is meant to be.
+ */
+public class FreeSpaceMap {
+    /** Recorded value of a page whose free space has not been seen yet. */
+    public static final int UNKNOWN = 0xff;
+    /** Largest free slot count the map records exactly. */
+    public static final int MAX_RECORDED = 0xfe;
+
+    private static final int MAGIC = 0x46534d31; // "FSM1"
+    private static final int HEADER_SIZE = 8;
+
+    private final FileHandle handle;
+    private byte[] free;
+    private int numPages;
+    /** No page below this one has room. */
+    private int firstCandidate;
+    private boolean dirty;
+
+    /** Return the side file that holds the free-space map of heapFile. */
+    public static File sideFile(File heapFile) {
+        return new File(heapFile.getPath() + ".fsm");
+    }
+
+    /** Return whether file lives in the temp directory. */
+    private static boolean isTempFile(File file) {
+        Path dir = file.toPath().toAbsolutePath().normalize().getParent();
+        return dir != null && dir.equals(Paths.get(System.getProperty("java.io.tmpdir")).toAbsolutePath().normalize());
+    }
+
+    /**
+     * Load the free-space map of a heap file with numPages pages from its
+     * side file, or start with every page unknown if there is no usable one.
+     */
+    public FreeSpaceMap(File heapFile, int numPages) throws IOException {
+        File f = sideFile(heapFile);
+        if (!f.exists() && isTempFile(heapFile)) {
+            f.deleteOnExit();
+        }
+        this.handle = new FileHandle(f);
+        this.numPages = numPages;
+        this.free = new byte[Math.max(16, numPages)];
+        Arrays.fill(this.free, (byte) UNKNOWN);
+        if (f.exists() && f.length() >= HEADER_SIZE) {
+            byte[] header = new byte[HEADER_SIZE];
+            handle.read(0, header);
+            ByteBuffer buf = ByteBuffer.wrap(header);
+            int recorded = buf.getInt() == MAGIC ? buf.getInt() : -1;
+            if (recorded >= 0 && recorded <= numPages && f.length() >= HEADER_SIZE + (long) recorded) {
+                byte[] image = new byte[recorded];
+                handle.read(HEADER_SIZE, image);
+                System.arraycopy(image, 0, this.free, 0, recorded);
+            }
+        }
+    }
+
+    /** Return the number of pages this map covers. */
+    public synchronized int numPages() {
+        return numPages;
+    }
+
+    /** Return the recorded free slots of pageNo, or {@link #UNKNOWN}. */
+    public synchronized int get(int pageNo) {
+        return pageNo < numPages ? free[pageNo] & 0xff : UNKNOWN;
+    }
+
+    /**
+     * Return the first page at or after from that may have a free slot,
+     * or -1 if the map knows of none.
+     */
+    public synchronized int findPageWithSpace(int from) {
+        for (int i = Math.max(from, firstCandidate); i < numPages; i++) {
+            if (free[i] != 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Cover pages up to numPages, recording pages the map has not seen as unknown. */
+    public synchronized void extend(int numPages) {
+        if (numPages > this.numPages) {
+            update(numPages - 1, UNKNOWN);
+        }
+    }
+
+    /** Record that pageNo has freeSlots free slots, growing the map if the page is new. */
+    public synchronized void update(int pageNo, int freeSlots) {
+        if (pageNo >= free.length) {
+            free = Arrays.copyOf(free, Math.max(pageNo + 1, free.length * 2));
+        }
+        if (pageNo >= numPages) {
+            Arrays.fill(free, numPages, pageNo, (byte) UNKNOWN);
+            numPages = pageNo + 1;
+        }
+        byte value = (byte) (freeSlots == UNKNOWN ? UNKNOWN : Math.min(freeSlots, MAX_RECORDED));
+        if (free[pageNo] != value) {
+            free[pageNo] = value;
+            dirty = true;
+        }
+        if (value != 0 && pageNo < firstCandidate) {
+            firstCandidate = pageNo;
+        }
+        while (firstCandidate < numPages && free[firstCandidate] == 0) {
+            firstCandidate++;
+        }
+    }
+
+    /** Write the map to its side file if it changed since it was last written. */
+    public synchronized void persist() throws IOException {
+        if (!dirty) return;
+        ByteBuffer image = ByteBuffer.allocate(HEADER_SIZE + numPages);
+        image.putInt(MAGIC);
+        image.putInt(numPages);
+        image.put(free, 0, numPages);
+        handle.write(0, image.array());
+        dirty = false;
+    }
+}
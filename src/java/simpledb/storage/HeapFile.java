@@ -25,7 +25,10 @@ import java.util.*;
 public class HeapFile implements DbFile {
 
     private final File file;
+    private final FileHandle handle;
+    private final MappedFile mapped;
     private final TupleDesc tupleDesc;
+    private FreeSpaceMap freeSpaceMap; // loaded on first use, protected by this
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -35,8 +38,28 @@ public class HeapFile implements DbFile {
      *            file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, optionally reading
+     * it through a memory mapping. A memory-mapped heap file decodes pages in
+     * place from the mapping instead of reading them into a fresh buffer, and
+     * its iterator reads pages that are not already cached straight from the
+     * mapping without adding them to the buffer pool. This suits read-mostly
+     * tables that are scanned in full; writes still go through the file.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param memoryMapped
+     *            true to read the file through a memory mapping.
+     */
+    public HeapFile(File f, TupleDesc td, boolean memoryMapped) {
         // some code goes here
         this.file = f;
+        this.handle = new FileHandle(f);
+        this.mapped = memoryMapped ? new MappedFile(this.handle, BufferPool.getPageSize()) : null;
         this.tupleDesc = td;
     }
 
@@ -50,6 +73,13 @@ public class HeapFile implements DbFile {
         return this.file;
     }
 
+    /**
+     * Returns true if this HeapFile reads its pages through a memory mapping.
+     */
+    public boolean isMemoryMapped() {
+        return this.mapped != null;
+    }
+
     /**
      * Returns an ID uniquely identifying this HeapFile. Implementation note:
      * you will need to generate this tableid somewhere to ensure that each
@@ -78,48 +108,87 @@ public class HeapFile implements DbFile {
     public Page readPage(PageId pid) {
         int pageSize = BufferPool.getPageSize();
         int pageNo = pid.getPageNumber();
-        int offset = pageNo * pageSize;
-        if (offset >= this.file.length()) {
-            throw new IllegalArgumentException("the page does not exist in this file.");
-        }
-        byte[] data = new byte[pageSize];
-        try (RandomAccessFile r = new RandomAccessFile(this.file, "r")) {
-            r.seek(offset);
-            r.read(data);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        long offset = (long) pageNo * pageSize;
         try {
-            if (pid.getClass() == HeapPageId.class) {
-                return new HeapPage((HeapPageId)pid, data);
+            if (offset >= this.handle.length()) {
+                throw new IllegalArgumentException("the page does not exist in this file.");
             }
+            if (pid.getClass() != HeapPageId.class) {
+                return null;
+            }
+            long begin = System.nanoTime();
+            if (this.mapped != null) {
+                Page page = new HeapPage((HeapPageId) pid, this.mapped.slice(offset, pageSize));
+                StorageMetrics.get().pageRead(pid.getTableId(), pageSize, System.nanoTime() - begin);
+                return page;
+            }
+            byte[] data = new byte[pageSize];
+            this.handle.read(offset, data);
+            StorageMetrics.get().pageRead(pid.getTableId(), pageSize, System.nanoTime() - begin);
+            return decodePage(pid, data);
         } catch (IOException e) {
             e.printStackTrace();
         }
         return null;
     }
 
+    // see DbFile.java for javadocs
+    public Page decodePage(PageId pid, byte[] data) throws IOException {
+        return new HeapPage((HeapPageId) pid, data);
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
         int pageSize = BufferPool.getPageSize();
         int pageNo = page.getId().getPageNumber();
-        int offset = pageNo * pageSize;
-        assert (offset >= 0 && offset <= this.file.length());
-        try (RandomAccessFile w = new RandomAccessFile(this.file, "rws")) {
-            w.seek(offset);
-            w.write(page.getPageData());
-        } catch (IOException e) {
-            e.printStackTrace();
+        long offset = (long) pageNo * pageSize;
+        assert (offset >= 0 && offset <= this.handle.length());
+        long begin = System.nanoTime();
+        this.handle.write(offset, page.getPageData());
+        StorageMetrics.get().pageWritten(page.getId().getTableId(), pageSize, System.nanoTime() - begin);
+        FreeSpaceMap fsm;
+        synchronized (this) {
+            fsm = this.freeSpaceMap;
+        }
+        if (fsm != null && page instanceof HeapPage) {
+            fsm.update(pageNo, ((HeapPage) page).getNumEmptySlots());
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public void force() throws IOException {
+        this.handle.force();
+        FreeSpaceMap fsm;
+        synchronized (this) {
+            fsm = this.freeSpaceMap;
+        }
+        if (fsm != null) {
+            fsm.persist();
         }
     }
 
+    /**
+     * Returns the free-space map inserts use to find a page with room,
+     * loading it from its side file on first use.
+     */
+    public synchronized FreeSpaceMap getFreeSpaceMap() throws IOException {
+        if (this.freeSpaceMap == null) {
+            this.freeSpaceMap = new FreeSpaceMap(this.file, this.numPages());
+        }
+        return this.freeSpaceMap;
+    }
+
     /**
      * Returns the number of pages in this HeapFile.
      */
     public int numPages() {
-        return (int) (this.file.length() / BufferPool.getPageSize());
+        try {
+            return (int) (this.handle.length() / BufferPool.getPageSize());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     // see DbFile.java for javadocs
@@ -128,41 +197,169 @@ public class HeapFile implements DbFile {
         // some code goes here
         // not necessary for lab1
         List<Page> pages = new ArrayList<>();
-        int pageNums = this.numPages();
-        for (int i = 0; i < pageNums; i++) {
-            Page page = Database.getBufferPool().getPage(tid, new HeapPageId(this.getId(), i), Permissions.READ_WRITE);
-            assert (page instanceof HeapPage);
-            HeapPage heapPage = (HeapPage) page;
-            if (heapPage.getNumEmptySlots() != 0) {
-                heapPage.insertTuple(t);
-                heapPage.markDirty(true, tid);
+        BufferPool bufferPool = Database.getBufferPool();
+        if (bufferPool.isRowLocking()) {
+            pages.add(insertTupleLockingRows(bufferPool, tid, t));
+            return pages;
+        }
+        FreeSpaceMap fsm = this.getFreeSpaceMap();
+        fsm.extend(this.numPages());
+        // only visit pages the free-space map says may have room
+        for (int i = fsm.findPageWithSpace(0); i >= 0; i = fsm.findPageWithSpace(i + 1)) {
+            HeapPageId pid = new HeapPageId(this.getId(), i);
+            boolean held = bufferPool.holdsLock(tid, pid);
+            HeapPage heapPage = insertIntoPage(bufferPool, tid, pid, t);
+            if (heapPage != null) {
                 pages.add(heapPage);
                 return pages;
             }
+            if (!held) {
+                // we neither read tuples from nor changed this page
+                bufferPool.unsafeReleasePage(tid, pid);
+            }
         }
 
-        BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(this.file, true));
-        byte[] emptyData = HeapPage.createEmptyPageData();
-        bw.write(emptyData);
-        bw.close();
+        // the appended page's number comes from where it landed, so
+        // concurrent inserts never pick the same new page
+        long offset = this.handle.append(HeapPage.createEmptyPageData());
+        int newPageNo = (int) (offset / BufferPool.getPageSize());
 
-        HeapPage newPage = (HeapPage)Database.getBufferPool().getPage(tid, new HeapPageId(this.getId(), pageNums), Permissions.READ_WRITE);
-        newPage.insertTuple(t);
-        newPage.markDirty(true, tid);
+        HeapPage newPage = insertIntoPage(bufferPool, tid, new HeapPageId(this.getId(), newPageNo), t);
+        if (newPage == null) {
+            throw new DbException("no empty slot on new page " + newPageNo);
+        }
         pages.add(newPage);
         return pages;
     }
 
+    /**
+     * Insert t into pid, locked by tid in READ_WRITE mode, if it has an empty
+     * slot. The frame's exclusive latch keeps the pool from writing the page
+     * back while its bytes are half changed.
+     *
+     * @return the page, or null if it is full
+     */
+    private HeapPage insertIntoPage(BufferPool bufferPool, TransactionId tid, HeapPageId pid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        BufferPool.Frame frame = bufferPool.pinPage(tid, pid, Permissions.READ_WRITE);
+        try {
+            HeapPage page = (HeapPage) frame.getPage();
+            frame.latchExclusive();
+            try {
+                if (page.getNumEmptySlots() == 0) {
+                    this.getFreeSpaceMap().update(pid.getPageNumber(), 0);
+                    return null;
+                }
+                page.insertTuple(t);
+                page.markDirty(true, tid);
+                this.getFreeSpaceMap().update(pid.getPageNumber(), page.getNumEmptySlots());
+                return page;
+            } finally {
+                frame.unlatchExclusive();
+            }
+        } finally {
+            bufferPool.unpin(tid, frame);
+        }
+    }
+
+    /**
+     * Insert t under row locking: reserve an empty slot by locking its row,
+     * holding only an intention lock on the page, so that other transactions
+     * can change the page's other rows meanwhile.
+     *
+     * @return the page t was inserted into
+     */
+    private HeapPage insertTupleLockingRows(BufferPool bufferPool, TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        FreeSpaceMap fsm = this.getFreeSpaceMap();
+        while (true) {
+            fsm.extend(this.numPages());
+            for (int i = fsm.findPageWithSpace(0); i >= 0; i = fsm.findPageWithSpace(i + 1)) {
+                HeapPageId pid = new HeapPageId(this.getId(), i);
+                boolean held = bufferPool.holdsLock(tid, pid);
+                HeapPage page = insertIntoFreeSlot(bufferPool, tid, pid, t);
+                if (page != null) {
+                    return page;
+                }
+                if (!held) {
+                    // we neither read tuples from nor changed this page
+                    bufferPool.unsafeReleasePage(tid, pid);
+                }
+            }
+            // other inserters may fill the new page first; then look again
+            this.handle.append(HeapPage.createEmptyPageData());
+        }
+    }
+
+    /**
+     * Insert t into an empty slot of pid whose row lock tid can take without
+     * waiting; a slot emptied by a running transaction stays locked by it.
+     *
+     * @return the page, or null if it has no such slot
+     */
+    private HeapPage insertIntoFreeSlot(BufferPool bufferPool, TransactionId tid, HeapPageId pid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        BufferPool.Frame frame = bufferPool.pinPageForRows(tid, pid, Permissions.READ_WRITE);
+        try {
+            HeapPage page = (HeapPage) frame.getPage();
+            frame.latchExclusive();
+            try {
+                for (int slot = 0; slot < page.getNumSlots(); slot++) {
+                    // only try the row lock: a latch holder must never wait
+                    if (!page.isSlotUsed(slot)
+                            && bufferPool.tryLockRow(tid, new RecordId(pid, slot), Permissions.READ_WRITE)) {
+                        page.insertTuple(t, slot);
+                        page.markDirty(true, tid);
+                        bufferPool.rowChanged(tid, frame, t, true);
+                        return page;
+                    }
+                }
+                return null;
+            } finally {
+                this.getFreeSpaceMap().update(pid.getPageNumber(), page.getNumEmptySlots());
+                frame.unlatchExclusive();
+            }
+        } finally {
+            bufferPool.unpin(tid, frame);
+        }
+    }
+
     // see DbFile.java for javadocs
     public List<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-        Page page = Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(), Permissions.READ_WRITE);
-        assert (page instanceof HeapPage);
-        HeapPage heapPage = (HeapPage) page;
-        heapPage.deleteTuple(t);
-        heapPage.markDirty(true, tid);
+        BufferPool bufferPool = Database.getBufferPool();
+        RecordId rid = t.getRecordId();
+        boolean rowLocking = bufferPool.isRowLocking();
+        BufferPool.Frame frame;
+        if (rowLocking) {
+            bufferPool.lockRow(tid, rid, Permissions.READ_WRITE);
+            frame = bufferPool.pinPageForRows(tid, rid.getPageId(), Permissions.READ_WRITE);
+        } else {
+            frame = bufferPool.pinPage(tid, rid.getPageId(), Permissions.READ_WRITE);
+        }
+        HeapPage heapPage;
+        try {
+            heapPage = (HeapPage) frame.getPage();
+            frame.latchExclusive();
+            try {
+                heapPage.deleteTuple(t);
+                heapPage.markDirty(true, tid);
+                if (rowLocking) {
+                    bufferPool.rowChanged(tid, frame, t, false);
+                }
+            } finally {
+                frame.unlatchExclusive();
+            }
+        } finally {
+            bufferPool.unpin(tid, frame);
+        }
+        try {
+            this.getFreeSpaceMap().update(heapPage.getId().getPageNumber(), heapPage.getNumEmptySlots());
+        } catch (IOException e) {
+            // the map is only a hint; inserts will find this page's room later
+        }
         List<Page> pages = new ArrayList<>();
         pages.add(heapPage);
         return pages;
@@ -171,7 +368,12 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
-        return new HeapFileIterator(tid, this.getId(), this.numPages());
+        return new HeapFileIterator(tid, this.getId(), this.numPages(), this.mapped != null);
+    }
+
+    @Override
+    public DbFileIterator iterator(TransactionId tid, BufferAccessStrategy strategy) {
+        return new HeapFileIterator(tid, this.getId(), this.numPages(), this.mapped != null, strategy);
     }
 
 }
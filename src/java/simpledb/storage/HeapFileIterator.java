@@ -6,6 +6,7 @@ import simpledb.common.Permissions;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
+import java.io.IOException;
 import java.util.Iterator;
 
 public class HeapFileIterator extends AbstractDbFileIterator{
@@ -13,49 +14,134 @@ public class HeapFileIterator extends AbstractDbFileIterator{
     private final TransactionId transactionId;
     private final int tableId;
     private final int numPages;
+    private final boolean bypassCache;
+    private final BufferAccessStrategy strategy;
 
     private int nextPageNo;
     private HeapPage page;
+    /** Frame of the page being read, pinned until the iterator moves on. */
+    private BufferPool.Frame pinned;
     private Iterator<Tuple> tuples;
+    /** True if rows are locked one by one; see {@link BufferPool#setRowLocking}. */
+    private boolean lockRows;
 
     public HeapFileIterator(TransactionId tid, int tableId, int numPages) {
+        this(tid, tableId, numPages, false);
+    }
+
+    /**
+     * @param bypassCache if true, pages the buffer pool does not hold are read
+     *        from the file without being cached; see
+     *        {@link simpledb.storage.BufferPool#getPageBypassingCache}
+     */
+    public HeapFileIterator(TransactionId tid, int tableId, int numPages, boolean bypassCache) {
+        this(tid, tableId, numPages, bypassCache, null);
+    }
+
+    /**
+     * @param strategy if not null, pages the buffer pool does not hold are
+     *        read into this scan's ring of frames; see
+     *        {@link simpledb.storage.BufferAccessStrategy}
+     */
+    public HeapFileIterator(TransactionId tid, int tableId, int numPages, boolean bypassCache,
+                            BufferAccessStrategy strategy) {
         super();
         this.transactionId = tid;
         this.tableId = tableId;
         this.numPages = numPages;
+        this.bypassCache = bypassCache;
+        this.strategy = strategy;
         this.nextPageNo = 0;
     }
 
+    /**
+     * Fetch page pageNo, moving the pin from the previous page to it, and
+     * start reading its tuples. Under row locking the page is only locked
+     * in IS mode, and the tuples read are those visible to this transaction.
+     */
+    private void fetchPage(int pageNo) throws DbException, TransactionAbortedException {
+        HeapPageId pid = new HeapPageId(this.tableId, pageNo);
+        BufferPool bufferPool = Database.getBufferPool();
+        unpin();
+        Page page;
+        if (this.lockRows) {
+            this.pinned = bufferPool.pinPageForRows(this.transactionId, pid, Permissions.READ_ONLY, this.strategy);
+            page = this.pinned.getPage();
+        } else if (this.bypassCache) {
+            page = bufferPool.getPageBypassingCache(this.transactionId, pid);
+        } else {
+            this.pinned = bufferPool.pinPage(this.transactionId, pid, Permissions.READ_ONLY, this.strategy);
+            page = this.pinned.getPage();
+        }
+        if (page.getClass() != HeapPage.class) throw new DbException("Page class worry");
+        this.page = (HeapPage) page;
+        if (this.lockRows) {
+            try {
+                this.tuples = bufferPool.visibleRows(this.transactionId, this.pinned).iterator();
+            } catch (IOException e) {
+                throw new DbException("cannot read rows of " + pid + ": " + e.getMessage());
+            }
+        } else {
+            this.tuples = this.page.iterator();
+        }
+        this.nextPageNo ++;
+    }
+
+    private void unpin() {
+        if (this.pinned != null) {
+            Database.getBufferPool().unpin(this.transactionId, this.pinned);
+            this.pinned = null;
+        }
+    }
+
+    /**
+     * Lock row in shared mode and return it as it is once the lock is
+     * granted, or null if a writer that held it has deleted it meanwhile.
+     * The lock may have to wait, so no latch is held while taking it; once
+     * granted it keeps the slot as it is until the transaction completes.
+     */
+    private Tuple lockRow(Tuple row) throws TransactionAbortedException {
+        RecordId rid = row.getRecordId();
+        Database.getBufferPool().lockRow(this.transactionId, rid, Permissions.READ_ONLY);
+        this.pinned.latchShared();
+        try {
+            return ((HeapPage) this.pinned.getPage()).getTuple(rid.getTupleNumber());
+        } finally {
+            this.pinned.unlatchShared();
+        }
+    }
+
     @Override
     protected Tuple readNext() throws DbException, TransactionAbortedException {
         if (this.page == null) return null;
-        if (this.tuples == null) this.tuples = this.page.iterator();
-        if (this.tuples.hasNext()) {
-            return tuples.next();
-        } else {
-            while(!tuples.hasNext() && this.nextPageNo < this.numPages) {
-                Page page = Database.getBufferPool().getPage(this.transactionId, new HeapPageId(this.tableId, this.nextPageNo), Permissions.READ_ONLY);
-                if (page.getClass() != HeapPage.class) throw new DbException("Page class worry");
-                this.page = (HeapPage) page;
-                this.tuples = this.page.iterator();
-                this.nextPageNo ++;
+        while (true) {
+            while (!this.tuples.hasNext() && this.nextPageNo < this.numPages) {
+                fetchPage(this.nextPageNo);
+            }
+            if (!this.tuples.hasNext()) {
+                break;
+            }
+            Tuple next = this.tuples.next();
+            if (!this.lockRows) {
+                return next;
             }
-            if(tuples.hasNext()) {
-                return tuples.next();
+            next = lockRow(next);
+            if (next != null) {
+                return next;
             }
         }
+        // exhausted: do not keep the last page pinned until close
+        unpin();
         return null;
     }
 
     @Override
     public void open() throws DbException, TransactionAbortedException {
+        BufferPool bufferPool = Database.getBufferPool();
+        this.lockRows = bufferPool.isRowLocking() && !bufferPool.isSnapshot(this.transactionId);
         this.nextPageNo = 0;
         while(this.nextPageNo < this.numPages) {
-            Page page = Database.getBufferPool().getPage(this.transactionId, new HeapPageId(this.tableId, this.nextPageNo), Permissions.READ_ONLY);
-            if (page.getClass() != HeapPage.class) throw new DbException("Page class worry");
-            this.page = (HeapPage) page;
-            this.tuples = this.page.iterator();
-            this.nextPageNo ++;
+            fetchPage(this.nextPageNo);
             if (tuples.hasNext()) break;
         }
     }
@@ -64,6 +150,10 @@ public class HeapFileIterator extends AbstractDbFileIterator{
     public void close() {
         super.close();
         this.page = null;
+        unpin();
+        if (this.strategy != null) {
+            Database.getBufferPool().releaseStrategy(this.transactionId, this.strategy);
+        }
     }
 
     @Override
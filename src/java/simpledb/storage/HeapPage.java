@@ -8,16 +8,23 @@ import simpledb.transaction.TransactionId;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * Writers hold the exclusive latch of the page's {@link BufferPool.Frame}
+ * for each change, and the buffer pool holds it shared while it takes an
+ * image of the page to write or log. Under row locking several
+ * transactions change one page at a time, and the latch alone keeps their
+ * changes apart.
  *
  * @see HeapFile
  * @see BufferPool
  *
  */
-public class HeapPage implements Page {
+public class HeapPage implements SlottedPage {
 
     final HeapPageId pid;
     final TupleDesc td;
@@ -27,7 +34,9 @@ public class HeapPage implements Page {
     final Deque<TransactionId> dirtyQueue;
 
     byte[] oldData;
-    private final Byte oldDataLock= (byte) 0;
+    /** The image the page was decoded from, until oldData is copied out of it. */
+    private ByteBuffer oldSource;
+    private final Object oldDataLock = new Object();
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -46,10 +55,27 @@ public class HeapPage implements Page {
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+        // the caller may reuse its array
+        beforeImageData();
+    }
+
+    /**
+     * Create a HeapPage by decoding the page image in the remaining bytes of
+     * data, e.g. a slice of a memory-mapped file, without copying it into a
+     * byte array first. The buffer's position is not changed. The image
+     * stays the page's before image, and is only copied out of data once
+     * the page is marked dirty or its before image is asked for, so data
+     * must not change until then; a mapped page on disk only changes once
+     * it has been written, which it never is while clean.
+     *
+     * @see #HeapPage(HeapPageId, byte[])
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        DataInputStream dis = new DataInputStream(new ByteBufferInputStream(data.duplicate()));
 
         // allocate and read the header slots of this page
         header = new byte[getHeaderSize()];
@@ -66,7 +92,8 @@ public class HeapPage implements Page {
         }
         dis.close();
 
-        setBeforeImage();
+        // the image we were built from is the before image; no need to re-encode it
+        oldSource = data.duplicate();
 
         dirtyQueue = new LinkedList<>();
     }
@@ -93,11 +120,7 @@ public class HeapPage implements Page {
         -- used by recovery */
     public HeapPage getBeforeImage(){
         try {
-            byte[] oldDataRef;
-            synchronized(oldDataLock) {
-                oldDataRef = oldData;
-            }
-            return new HeapPage(pid, oldDataRef);
+            return new HeapPage(pid, beforeImageData());
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -109,6 +132,28 @@ public class HeapPage implements Page {
     public void setBeforeImage() {
         synchronized(oldDataLock) {
             oldData = getPageData().clone();
+            oldSource = null;
+        }
+    }
+
+    /** Make image, a version of this page, its new before image. */
+    void setBeforeImage(HeapPage image) {
+        byte[] data = image.getPageData();
+        synchronized(oldDataLock) {
+            oldData = data;
+            oldSource = null;
+        }
+    }
+
+    /** Return the bytes of the before image, copying them out of the page's source image first if need be. */
+    private byte[] beforeImageData() {
+        synchronized(oldDataLock) {
+            if (oldData == null) {
+                oldData = new byte[oldSource.remaining()];
+                oldSource.duplicate().get(oldData);
+                oldSource = null;
+            }
+            return oldData;
         }
     }
 
@@ -272,13 +317,9 @@ public class HeapPage implements Page {
     public void insertTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
-        if (!t.getTupleDesc().equals(this.td)) throw new DbException("tuple desc is mismatch");
         for (int i = 0; i < getNumTuples(); i++) {
             if (!isSlotUsed(i)) {
-                RecordId rid = new RecordId(this.pid, i);
-                t.setRecordId(rid);
-                tuples[i] = t;
-                markSlotUsed(i, true);
+                insertTuple(t, i);
                 return;
             }
         }
@@ -286,14 +327,47 @@ public class HeapPage implements Page {
 
     }
 
+    /**
+     * Adds the specified tuple to the page in the given slot, e.g. one that
+     * the caller has reserved with a row lock.
+     * @throws DbException if the slot is in use or tupledesc is mismatch.
+     * @param t The tuple to add.
+     * @param slot The empty slot to put it in.
+     */
+    public void insertTuple(Tuple t, int slot) throws DbException {
+        if (!t.getTupleDesc().equals(this.td)) throw new DbException("tuple desc is mismatch");
+        if (isSlotUsed(slot)) throw new DbException("tuple slot is already used");
+        t.setRecordId(new RecordId(this.pid, slot));
+        tuples[slot] = t;
+        markSlotUsed(slot, true);
+    }
+
+    /** Empty slot i, dropping its tuple if it has one. */
+    void clearSlot(int i) {
+        markSlotUsed(i, false);
+        tuples[i] = null;
+    }
+
+    /** Return the tuple in slot i, or null if the slot is empty. */
+    Tuple getTuple(int i) {
+        return tuples[i];
+    }
+
+    /** Returns the number of tuple slots on this page, used or not. */
+    public int getNumSlots() {
+        return numSlots;
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
      */
-    public void markDirty(boolean dirty, TransactionId tid) {
+    public synchronized void markDirty(boolean dirty, TransactionId tid) {
         // some code goes here
 	    // not necessary for lab1
         if (dirty) {
+            // the page will be written over its source image
+            beforeImageData();
             dirtyQueue.remove(tid);
             dirtyQueue.push(tid);
         } else {
@@ -304,13 +378,18 @@ public class HeapPage implements Page {
     /**
      * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
      */
-    public TransactionId isDirty() {
+    public synchronized TransactionId isDirty() {
         // some code goes here
 	    // Not necessary for lab1
         if (dirtyQueue.size() == 0) {
             return null;
         }
-        return dirtyQueue.peekLast();
+        return dirtyQueue.peekFirst();
+    }
+
+    /** The header, then one slot per tuple. */
+    public SlotLayout getSlotLayout() {
+        return new SlotLayout(0, numSlots, td.getSize());
     }
 
     /**
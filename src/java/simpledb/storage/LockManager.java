@@ -1,171 +1,862 @@
 package simpledb.storage;
 
+import simpledb.common.Database;
 import simpledb.common.Permissions;
-import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
-import java.security.acl.Owner;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * LockManager grants shared (READ_ONLY) and exclusive (READ_WRITE) page locks
+ * to transactions under strict two-phase locking.
+ * <p>
+ * Each page has a FIFO queue of waiters. A request that cannot be granted
+ * parks its thread, and releasing a lock hands it directly to the waiters at
+ * the head of the queue and unparks them, so a contended lock changes hands
+ * in microseconds. Consecutive shared requests at the head are granted
+ * together. New requests do not overtake queued ones, which keeps a stream
+ * of readers from starving a writer, except that a holder upgrading its
+ * shared lock goes to the front of the queue.
+ * <p>
+ * Deadlocks are handled according to a {@link DeadlockPolicy}. The queues
+ * keep a {@link WaitsForGraph} up to date as requests block and are granted;
+ * under the detecting policies a background thread looks for cycles in it
+ * every detection interval, while anybody waits, and aborts one victim per
+ * cycle. The preventing policies never let a cycle form.
+ * <p>
+ * Locks are hierarchical: before locking a page, a transaction takes the
+ * matching intention lock (IS or IX, see {@link LockMode}) on the page's
+ * table, unless it already holds a table lock that covers the page. A
+ * transaction can lock a whole table up front with {@link #LockTable}, and
+ * one that comes to hold more than the escalation threshold of page locks
+ * on one table has them replaced by a single table lock when that can be
+ * granted without waiting. Either way a large scan holds a handful of locks
+ * instead of one per page. Below pages, single rows can be locked by
+ * {@link RecordId} under IS or IX locks on their page, so that transactions
+ * changing different rows of one page do not wait for each other.
+ * <p>
+ * The locks each transaction holds are indexed, so releasing them costs
+ * O(locks held). A lock object only stays in the lock table while it is
+ * held, waited for, or in use by a request; after that it is reclaimed and
+ * kept on a free list for the next page, so the table stays as small as the
+ * set of pages and tables actually locked.
+ */
 public class LockManager {
 
+    /** Default interval of the deadlock detector. */
+    public static final long DEFAULT_DETECTION_MILLIS = 10;
+
+    /** Longest a waiter parks before rechecking whether it has been aborted. */
+    static final long WAIT_SLICE_MILLIS = 10;
+
+    /** Default number of page locks on one table above which a transaction's locks are escalated. */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 1000;
+
+    /**
+     * Lock modes. Pages are locked S (READ_ONLY) or X (READ_WRITE); tables
+     * can also be locked in the intention modes IS and IX, announcing
+     * shared or exclusive locks on some of their pages, and SIX, a shared
+     * lock on the whole table plus exclusive locks on some pages.
+     */
+    public enum LockMode {
+        IS, IX, S, SIX, X;
+
+        private static final boolean[][] COMPATIBLE = {
+            // IS     IX     S      SIX    X
+            { true,  true,  true,  true,  false }, // IS
+            { true,  true,  false, false, false }, // IX
+            { true,  false, true,  false, false }, // S
+            { true,  false, false, false, false }, // SIX
+            { false, false, false, false, false }, // X
+        };
+
+        private static final boolean[][] COVERS = {
+            // IS     IX     S      SIX    X
+            { true,  false, false, false, false }, // IS
+            { true,  true,  false, false, false }, // IX
+            { true,  false, true,  false, false }, // S
+            { true,  true,  true,  true,  false }, // SIX
+            { true,  true,  true,  true,  true  }, // X
+        };
+
+        /** Return true if two transactions may hold this mode and other on the same object at once. */
+        public boolean isCompatibleWith(LockMode other) {
+            return COMPATIBLE[ordinal()][other.ordinal()];
+        }
+
+        /** Return true if holding this mode grants everything other does. */
+        public boolean covers(LockMode other) {
+            return COVERS[ordinal()][other.ordinal()];
+        }
+
+        /** Return the weakest mode covering both this and other. */
+        public LockMode join(LockMode other) {
+            if (covers(other)) {
+                return this;
+            }
+            return other.covers(this) ? other : SIX;
+        }
+
+        /** Return the intention mode a table must be held in before a page is locked in this mode. */
+        public LockMode intention() {
+            return this == S || this == IS ? IS : IX;
+        }
+
+        /** Return the page mode for permissions: S for READ_ONLY, X for READ_WRITE. */
+        public static LockMode of(Permissions permissions) {
+            return permissions == Permissions.READ_ONLY ? S : X;
+        }
+    }
+
+    /** How deadlocks are resolved; transactions are as old as their ids. */
+    public enum DeadlockPolicy {
+        /** Detect cycles; abort the youngest transaction in the cycle. */
+        YOUNGEST,
+        /** Detect cycles; abort the transaction holding the fewest locks, the youngest among equals. */
+        FEWEST_LOCKS,
+        /** Detect cycles; abort the transaction that has logged the fewest bytes, the youngest among equals. */
+        LEAST_LOG,
+        /** Prevent cycles: a request that would wait for an older transaction aborts instead. */
+        WAIT_DIE,
+        /** Prevent cycles: a request aborts the younger transactions it would wait for, and waits for older ones. */
+        WOUND_WAIT;
+
+        /** Return true if this policy lets cycles form and breaks them. */
+        public boolean detects() {
+            return this != WAIT_DIE && this != WOUND_WAIT;
+        }
+
+        /**
+         * The policy named by the system property
+         * simpledb.storage.LockManager.deadlockPolicy, or FEWEST_LOCKS if unset.
+         */
+        public static DeadlockPolicy fromProperty() {
+            String name = System.getProperty("simpledb.storage.LockManager.deadlockPolicy");
+            return name == null ? FEWEST_LOCKS : valueOf(name.trim().toUpperCase());
+        }
+    }
+
+    /** A parked lock request. */
+    static final class Waiter {
+        final TransactionId transactionId;
+        final LockMode mode;
+        final Thread thread;
+        volatile boolean granted;
+        /** Set when the request must give up, e.g. as a deadlock victim. */
+        volatile boolean aborted;
+
+        Waiter(TransactionId transactionId, LockMode mode) {
+            this.transactionId = transactionId;
+            this.mode = mode;
+            this.thread = Thread.currentThread();
+        }
+
+        void abort() {
+            aborted = true;
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * The lock on one row, page or table: who holds it in which mode, and
+     * who waits for it.
+     */
     static class TransactionLock{
-        private final Set<TransactionId> transactionIds;
-        private Permissions permissions;
+        private final LockManager manager;
+        /** The RecordId, PageId or table id this object locks right now; null while it is on the free list. */
+        private Object resource;
+        private final Map<TransactionId, LockMode> holders;
+        private final Deque<Waiter> waiters = new ArrayDeque<>();
+        /**
+         * Requests using this object without holding the lock; it is not
+         * reclaimed while positive. Only changed inside lockMap's compute
+         * functions for resource, which serializes it.
+         */
+        private int users;
 
-        public TransactionLock() {
-            this.transactionIds = ConcurrentHashMap.newKeySet();
-            this.permissions = null;
+        TransactionLock(LockManager manager) {
+            this.manager = manager;
+            this.holders = new HashMap<>();
         }
 
-        synchronized boolean acquireLock(TransactionId transactionId, Permissions permissions) {
-            if (this.permissions == null) {
-                this.permissions = permissions;
-                this.transactionIds.clear();
-                this.transactionIds.add(transactionId);
+        /** Prepare this free lock object to lock resource. */
+        synchronized void reuse(Object resource) {
+            this.resource = resource;
+        }
+
+        /**
+         * Detach this object from its resource if nobody holds or waits for
+         * the lock, so that it can be reclaimed.
+         */
+        synchronized boolean retireIfIdle() {
+            if (!this.holders.isEmpty() || !this.waiters.isEmpty()) {
+                return false;
             }
-            // acquireReadLock
-            if (permissions == Permissions.READ_ONLY) {
-                if (this.permissions == Permissions.READ_ONLY) {
-                    // ReadLock
-                    this.transactionIds.add(transactionId);
-                    return true;
-                } else {
-                    // WriteLock
-                    if (transactionIds.isEmpty()) {
-                        this.permissions = permissions;
-                        this.transactionIds.add(transactionId);
-                        return true;
-                    } else {
-                        return this.transactionIds.contains(transactionId);
-                    }
+            this.resource = null;
+            return true;
+        }
+
+        /** Return true if transactionId already holds the lock in a mode covering mode. */
+        private boolean covers(TransactionId transactionId, LockMode mode) {
+            LockMode held = this.holders.get(transactionId);
+            return held != null && held.covers(mode);
+        }
+
+        /** Return true if the other holders are compatible with granting mode to transactionId. */
+        private boolean compatible(TransactionId transactionId, LockMode mode) {
+            LockMode held = this.holders.get(transactionId);
+            LockMode target = held == null ? mode : held.join(mode);
+            for (Map.Entry<TransactionId, LockMode> e : this.holders.entrySet()) {
+                if (!e.getKey().equals(transactionId) && !target.isCompatibleWith(e.getValue())) {
+                    return false;
                 }
+            }
+            return true;
+        }
+
+        private void grant(TransactionId transactionId, LockMode mode) {
+            LockMode held = this.holders.get(transactionId);
+            this.holders.put(transactionId, held == null ? mode : held.join(mode));
+            if (held == null) {
+                this.manager.addHeld(transactionId, this.resource);
+            }
+        }
+
+        /**
+         * Return the mode transactionId holds resource in, or null. Safe to
+         * call on an object found in the lock table without using it: it may
+         * have been reclaimed, so the resource is checked.
+         */
+        synchronized LockMode modeOf(Object resource, TransactionId transactionId) {
+            return resource.equals(this.resource) ? this.holders.get(transactionId) : null;
+        }
+
+        /**
+         * Grant the lock if that needs no waiting: the transaction already
+         * holds it, or it is compatible with the holders and either nobody
+         * is queued or the request is an upgrade.
+         */
+        synchronized boolean acquireLock(TransactionId transactionId, LockMode mode) {
+            if (covers(transactionId, mode)) {
+                return true;
+            }
+            boolean upgrade = this.holders.containsKey(transactionId);
+            if ((upgrade || this.waiters.isEmpty()) && compatible(transactionId, mode)) {
+                grant(transactionId, mode);
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Grant the lock right away if possible, otherwise queue a waiter
+         * for the calling thread: upgrades at the front, others at the back.
+         *
+         * @return null if the lock was granted, else the queued waiter
+         */
+        synchronized Waiter enqueue(TransactionId transactionId, LockMode mode) {
+            if (acquireLock(transactionId, mode)) {
+                return null;
+            }
+            Waiter waiter = new Waiter(transactionId, mode);
+            if (this.holders.containsKey(transactionId)) {
+                this.waiters.addFirst(waiter);
             } else {
-                if (this.permissions == Permissions.READ_ONLY) {
-                    // ReadLock
-                    if (this.transactionIds.size() == 0 || this.transactionIds.size() == 1 && this.transactionIds.contains(transactionId)) {
-                        this.permissions = permissions;
-                        return true;
-                    } else {
-                        return false;
-                    }
-                } else {
-                    // WriteLock
-                    if (transactionIds.isEmpty()) {
-                        this.permissions = permissions;
-                        this.transactionIds.add(transactionId);
-                        return true;
-                    } else {
-                        return this.transactionIds.size() == 1 && this.transactionIds.contains(transactionId);
-                    }
-                }
+                this.waiters.addLast(waiter);
             }
+            refreshEdges();
+            return waiter;
         }
 
+        /**
+         * Withdraw a waiter that gives up, e.g. because it was chosen as a
+         * deadlock victim.
+         *
+         * @return true if the lock was granted to it in the meantime
+         */
+        synchronized boolean cancel(Waiter waiter) {
+            if (waiter.granted) {
+                return true;
+            }
+            this.waiters.remove(waiter);
+            this.manager.graph.remove(waiter);
+            grantWaiters();
+            return false;
+        }
 
-        synchronized void releaseLock(TransactionId transactionId) {
-            this.transactionIds.remove(transactionId);
+        /** Grant the lock to waiters at the head of the queue for as long as they are compatible. */
+        private void grantWaiters() {
+            Waiter waiter;
+            while ((waiter = this.waiters.peekFirst()) != null
+                    && compatible(waiter.transactionId, waiter.mode)) {
+                this.waiters.pollFirst();
+                grant(waiter.transactionId, waiter.mode);
+                this.manager.graph.remove(waiter);
+                waiter.granted = true;
+                LockSupport.unpark(waiter.thread);
+            }
+            refreshEdges();
+        }
+
+        /** Tell the manager whom each waiter now waits for: the holders and the waiters queued ahead of it. */
+        private void refreshEdges() {
+            Set<TransactionId> ahead = new HashSet<>();
+            for (Waiter waiter : this.waiters) {
+                Set<TransactionId> blockers = new HashSet<>(this.holders.keySet());
+                blockers.addAll(ahead);
+                blockers.remove(waiter.transactionId);
+                this.manager.blocked(waiter, blockers);
+                ahead.add(waiter.transactionId);
+            }
+        }
+
+        /**
+         * Release transactionId's lock on resource, if this object still
+         * locks resource and transactionId holds it.
+         */
+        synchronized void releaseLock(Object resource, TransactionId transactionId) {
+            if (resource.equals(this.resource) && this.holders.remove(transactionId) != null) {
+                this.manager.removeHeld(transactionId, resource);
+                grantWaiters();
+            }
         }
 
-        synchronized boolean holdsLock(TransactionId transactionId) {
-            return this.transactionIds.contains(transactionId);
+        /**
+         * Return true if a transaction other than transactionId holds
+         * resource in a mode covering mode.
+         */
+        synchronized boolean isHeldByOther(Object resource, TransactionId transactionId, LockMode mode) {
+            if (!resource.equals(this.resource)) {
+                return false;
+            }
+            for (Map.Entry<TransactionId, LockMode> e : this.holders.entrySet()) {
+                if (!e.getKey().equals(transactionId) && e.getValue().covers(mode)) {
+                    return true;
+                }
+            }
+            return false;
         }
     }
 
-    private final Map<PageId, TransactionLock> lockMap;
-    private final Map<TransactionId, Set<PageId>> wantLockMap;
+    /** The locks one transaction holds. */
+    private static final class Held {
+        /** RecordIds, PageIds and table ids. */
+        final Set<Object> resources = ConcurrentHashMap.newKeySet();
+        /** Number of page locks held, per table id. */
+        final Map<Integer, Integer> pagesPerTable = new ConcurrentHashMap<>();
+    }
+
+    /** Largest number of reclaimed lock objects kept for reuse. */
+    static final int MAX_FREE_LOCKS = 1024;
+
+    /** Row locks keyed by RecordId, page locks by PageId and table locks by Integer table id. */
+    private final Map<Object, TransactionLock> lockMap;
+    private final Map<TransactionId, Held> heldLocks = new ConcurrentHashMap<>();
+    private final Deque<TransactionLock> freeLocks = new ArrayDeque<>(); // protected by itself
+    private final WaitsForGraph graph = new WaitsForGraph();
+    /** Transactions wounded under WOUND_WAIT that have not finished yet. */
+    private final Set<TransactionId> wounded = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean detectorRunning = new AtomicBoolean();
+    private volatile DeadlockPolicy policy = DeadlockPolicy.fromProperty();
+    private volatile long detectionMillis = Long.getLong("simpledb.storage.LockManager.detectionInterval",
+            DEFAULT_DETECTION_MILLIS);
+    private volatile int escalationThreshold = Integer.getInteger("simpledb.storage.LockManager.escalationThreshold",
+            DEFAULT_ESCALATION_THRESHOLD);
 
 
     public LockManager() {
         this.lockMap = new ConcurrentHashMap<>();
-        this.wantLockMap = new ConcurrentHashMap<>();
+    }
+
+    /** Resolve deadlocks according to policy from now on. */
+    public void setDeadlockPolicy(DeadlockPolicy policy) {
+        this.policy = policy;
+    }
+
+    public DeadlockPolicy getDeadlockPolicy() {
+        return policy;
+    }
+
+    /**
+     * Run the deadlock detector every intervalMillis while requests wait.
+     * The default comes from the system property
+     * simpledb.storage.LockManager.detectionInterval.
+     */
+    public void setDetectionInterval(long intervalMillis) {
+        this.detectionMillis = Math.max(1, intervalMillis);
+    }
+
+    public long getDetectionInterval() {
+        return detectionMillis;
+    }
+
+    /**
+     * Escalate to a table lock once a transaction holds more than threshold
+     * page locks on one table, or never if threshold is 0. The default comes
+     * from the system property simpledb.storage.LockManager.escalationThreshold.
+     */
+    public void setEscalationThreshold(int threshold) {
+        this.escalationThreshold = threshold;
+    }
+
+    public int getEscalationThreshold() {
+        return escalationThreshold;
+    }
+
+    private void checkWounded(TransactionId transactionId) throws TransactionAbortedException {
+        if (!this.wounded.isEmpty() && this.wounded.contains(transactionId)) {
+            throw new TransactionAbortedException();
+        }
     }
 
     public void LockPage(PageId pageId, TransactionId transactionId, Permissions permissions) throws TransactionAbortedException {
-        if (!lockMap.containsKey(pageId)) {
-            this.lockMap.put(pageId, new TransactionLock());
-        }
-        TransactionLock transactionLock = this.lockMap.get(pageId);
-        if (!this.wantLockMap.containsKey(transactionId)) {
-            this.wantLockMap.put(transactionId, ConcurrentHashMap.newKeySet());
-        }
-        this.wantLockMap.get(transactionId).add(pageId);
-        boolean acquired = false;
-        int trys = 0;
-        while (!acquired) {
-            acquired = transactionLock.acquireLock(transactionId, permissions);
-            if (!acquired) {
-                try {
-                    Thread.sleep(10);
-                    trys++;
-                    if (trys % 10 == 0){
-                        deadLock(transactionId);
-                    }
-                } catch (InterruptedException e) {
-                    throw new TransactionAbortedException();
-                }
-            }
+        checkWounded(transactionId);
+        LockMode mode = LockMode.of(permissions);
+        Integer table = pageId.getTableId();
+        if (covers(table, transactionId, mode) || covers(pageId, transactionId, mode)) {
+            return;
         }
-        this.wantLockMap.get(transactionId).remove(pageId);
-        if (this.wantLockMap.get(transactionId).isEmpty()) {
-            this.wantLockMap.remove(transactionId);
+        acquire(table, transactionId, mode.intention());
+        acquire(pageId, transactionId, mode);
+        escalateIfNeeded(transactionId, table);
+    }
+
+    /**
+     * Lock pageId and its table in the intention mode for row locks with
+     * the given permissions, IS or IX, so that rows of the page can be
+     * locked next. May block.
+     */
+    public void LockPageIntention(PageId pageId, TransactionId transactionId, Permissions permissions) throws TransactionAbortedException {
+        checkWounded(transactionId);
+        LockMode mode = LockMode.of(permissions);
+        Integer table = pageId.getTableId();
+        if (covers(table, transactionId, mode) || covers(pageId, transactionId, mode.intention())) {
+            return;
         }
+        acquire(table, transactionId, mode.intention());
+        acquire(pageId, transactionId, mode.intention());
+        escalateIfNeeded(transactionId, table);
     }
 
-    public void ReleasePage(PageId pageId, TransactionId transactionId) {
-        TransactionLock transactionLock = this.lockMap.getOrDefault(pageId, null);
-        if (null == transactionLock) {
+    /**
+     * Lock one row in S (READ_ONLY) or X (READ_WRITE) mode, taking the
+     * matching intention locks on its page and table first, unless a page
+     * or table lock already covers the row. May block.
+     */
+    public void LockRow(RecordId recordId, TransactionId transactionId, Permissions permissions) throws TransactionAbortedException {
+        checkWounded(transactionId);
+        LockMode mode = LockMode.of(permissions);
+        PageId pageId = recordId.getPageId();
+        Integer table = pageId.getTableId();
+        if (covers(table, transactionId, mode) || covers(pageId, transactionId, mode)
+                || covers(recordId, transactionId, mode)) {
             return;
         }
-        transactionLock.releaseLock(transactionId);
+        acquire(table, transactionId, mode.intention());
+        acquire(pageId, transactionId, mode.intention());
+        acquire(recordId, transactionId, mode);
     }
 
-    public boolean holdsLock(PageId pageId, TransactionId transactionId) {
-        TransactionLock transactionLock = this.lockMap.getOrDefault(pageId, null);
-        if (null == transactionLock) {
+    /**
+     * Try once to lock a row without waiting, e.g. to reserve an empty slot
+     * for an insert. The caller must already hold the page's intention lock
+     * (see {@link #LockPageIntention}).
+     * @return true if the lock was granted
+     */
+    public boolean tryLockRow(RecordId recordId, TransactionId transactionId, Permissions permissions) {
+        LockMode mode = LockMode.of(permissions);
+        PageId pageId = recordId.getPageId();
+        if (covers(pageId.getTableId(), transactionId, mode) || covers(pageId, transactionId, mode)) {
+            return true;
+        }
+        return tryAcquire(recordId, transactionId, mode);
+    }
+
+    /**
+     * Lock a whole table in S (READ_ONLY) or X (READ_WRITE) mode, e.g. before
+     * scanning it, so that its pages need no locks of their own. May block.
+     */
+    public void LockTable(int tableId, TransactionId transactionId, Permissions permissions) throws TransactionAbortedException {
+        checkWounded(transactionId);
+        acquire(tableId, transactionId, LockMode.of(permissions));
+    }
+
+    /** Lock resource in mode for transactionId, waiting as long as it takes. */
+    private void acquire(Object resource, TransactionId transactionId, LockMode mode) throws TransactionAbortedException {
+        TransactionLock transactionLock = use(resource);
+        try {
+            // uncontended: no waits-for bookkeeping
+            if (transactionLock.acquireLock(transactionId, mode)) {
+                return;
+            }
+            Waiter waiter = transactionLock.enqueue(transactionId, mode);
+            if (waiter != null) {
+                await(transactionLock, waiter);
+            }
+        } finally {
+            unuse(resource, transactionLock);
+        }
+    }
+
+    /** Lock resource in mode for transactionId if that needs no waiting. */
+    private boolean tryAcquire(Object resource, TransactionId transactionId, LockMode mode) {
+        TransactionLock transactionLock = use(resource);
+        try {
+            return transactionLock.acquireLock(transactionId, mode);
+        } finally {
+            unuse(resource, transactionLock);
+        }
+    }
+
+    /** Release transactionId's lock on resource, if it holds one. */
+    private void release(Object resource, TransactionId transactionId) {
+        TransactionLock transactionLock = this.lockMap.get(resource);
+        if (transactionLock != null) {
+            transactionLock.releaseLock(resource, transactionId);
+            reclaim(resource);
+        }
+    }
+
+    /** Return the mode transactionId holds resource in, or null. */
+    private LockMode modeOf(Object resource, TransactionId transactionId) {
+        TransactionLock transactionLock = this.lockMap.get(resource);
+        return transactionLock == null ? null : transactionLock.modeOf(resource, transactionId);
+    }
+
+    /** Return true if transactionId holds resource in a mode covering mode. */
+    private boolean covers(Object resource, TransactionId transactionId, LockMode mode) {
+        // locks the transaction already holds cannot be reclaimed meanwhile
+        Held held = this.heldLocks.get(transactionId);
+        if (held == null || !held.resources.contains(resource)) {
             return false;
         }
-        return transactionLock.holdsLock(transactionId);
+        LockMode heldMode = modeOf(resource, transactionId);
+        return heldMode != null && heldMode.covers(mode);
     }
 
-    public void releaseAllLocks(TransactionId tid) {
-        for (PageId pageId : this.lockMap.keySet()) {
-            if (holdsLock(pageId, tid)){
-                this.ReleasePage(pageId, tid);
+    private int pagesHeld(TransactionId transactionId, Integer table) {
+        Held held = this.heldLocks.get(transactionId);
+        return held == null ? 0 : held.pagesPerTable.getOrDefault(table, 0);
+    }
+
+    /**
+     * If transactionId holds more page locks on table than the escalation
+     * threshold, try to lock the table instead: S if it only reads the
+     * table, X if it writes to it. If the table lock is granted without
+     * waiting, the page locks it covers are released.
+     */
+    private void escalateIfNeeded(TransactionId transactionId, Integer table) {
+        int threshold = this.escalationThreshold;
+        if (threshold <= 0 || pagesHeld(transactionId, table) <= threshold) {
+            return;
+        }
+        LockMode target = modeOf(table, transactionId) == LockMode.IS ? LockMode.S : LockMode.X;
+        if (!tryAcquire(table, transactionId, target)) {
+            return;
+        }
+        for (Object resource : this.heldLocks.get(transactionId).resources.toArray()) {
+            if (resource instanceof PageId && table.equals(((PageId) resource).getTableId())) {
+                release(resource, transactionId);
             }
         }
     }
 
-    private void deadLock(TransactionId transactionId) throws TransactionAbortedException{
-        Set<PageId> my = new HashSet<>();
-        for (PageId pageId : this.lockMap.keySet()) {
-            if (holdsLock(pageId, transactionId)) {
-                my.add(pageId);
+    /**
+     * Return the lock object of resource, installing one if there is none,
+     * and keep it from being reclaimed until {@link #unuse} is called.
+     */
+    private TransactionLock use(Object resource) {
+        return this.lockMap.compute(resource, (k, lock) -> {
+            if (lock == null) {
+                lock = newLock(k);
+            }
+            lock.users++;
+            return lock;
+        });
+    }
+
+    /** Stop using lock, the lock object of resource, and reclaim it if it is idle. */
+    private void unuse(Object resource, TransactionLock lock) {
+        this.lockMap.computeIfPresent(resource, (k, l) -> {
+            if (l == lock) {
+                l.users--;
             }
+            return reclaimIfIdle(l);
+        });
+    }
+
+    /** Reclaim the lock object of resource if nobody holds, waits for or uses it. */
+    private void reclaim(Object resource) {
+        this.lockMap.computeIfPresent(resource, (k, l) -> reclaimIfIdle(l));
+    }
+
+    /**
+     * Called inside a lockMap compute function: return null, putting lock
+     * on the free list, if it is idle, else return lock.
+     */
+    private TransactionLock reclaimIfIdle(TransactionLock lock) {
+        if (lock.users > 0 || !lock.retireIfIdle()) {
+            return lock;
         }
+        synchronized (this.freeLocks) {
+            if (this.freeLocks.size() < MAX_FREE_LOCKS) {
+                this.freeLocks.push(lock);
+            }
+        }
+        return null;
+    }
 
-        Set<PageId> want = new HashSet<>(this.wantLockMap.get(transactionId));
-        while (!want.isEmpty()) {
-            Set<PageId> newWant = new HashSet<>();
-            Set<TransactionId> owner = new HashSet<>();
-            for (PageId p : want) {
-                owner.addAll(this.lockMap.getOrDefault(p, new TransactionLock()).transactionIds);
+    private TransactionLock newLock(Object resource) {
+        TransactionLock lock;
+        synchronized (this.freeLocks) {
+            lock = this.freeLocks.poll();
+        }
+        if (lock == null) {
+            lock = new TransactionLock(this);
+        }
+        lock.reuse(resource);
+        return lock;
+    }
+
+    /** Index resource among the locks transactionId holds. */
+    private void addHeld(TransactionId transactionId, Object resource) {
+        this.heldLocks.compute(transactionId, (k, held) -> {
+            if (held == null) {
+                held = new Held();
             }
-            owner.remove(transactionId);
-            for (TransactionId tid : owner) {
-                newWant.addAll(this.wantLockMap.getOrDefault(tid, new HashSet<>()));
+            if (held.resources.add(resource) && resource instanceof PageId) {
+                held.pagesPerTable.merge(((PageId) resource).getTableId(), 1, Integer::sum);
+            }
+            return held;
+        });
+    }
+
+    private void removeHeld(TransactionId transactionId, Object resource) {
+        this.heldLocks.computeIfPresent(transactionId, (k, held) -> {
+            if (held.resources.remove(resource) && resource instanceof PageId) {
+                held.pagesPerTable.computeIfPresent(((PageId) resource).getTableId(), (t, n) -> n == 1 ? null : n - 1);
             }
-            for (PageId p : newWant) {
-                if (my.contains(p)) {
+            return held.resources.isEmpty() ? null : held;
+        });
+    }
+
+    /** Return the number of rows, pages and tables with a lock object in the lock table. */
+    public int getLockTableSize() {
+        return this.lockMap.size();
+    }
+
+    /**
+     * Park until waiter is granted its lock. If the wait ends any other way,
+     * including the thread being stopped, the waiter leaves the queue.
+     */
+    private void await(TransactionLock transactionLock, Waiter waiter) throws TransactionAbortedException {
+        boolean done = false;
+        try {
+            while (!waiter.granted) {
+                if (waiter.aborted || this.wounded.contains(waiter.transactionId) || Thread.interrupted()) {
                     throw new TransactionAbortedException();
                 }
+                LockSupport.parkNanos(transactionLock, TimeUnit.MILLISECONDS.toNanos(WAIT_SLICE_MILLIS));
+            }
+            done = true;
+        } finally {
+            if (!done && transactionLock.cancel(waiter)) {
+                // granted just as we gave up: the lock is ours after all, but
+                // the transaction aborts anyway and will release it
+                transactionLock.releaseLock(transactionLock.resource, waiter.transactionId);
+            }
+        }
+    }
+
+    /**
+     * Called by a page lock, holding its monitor, whenever the transactions
+     * waiter waits for change. Records the edges and applies the deadlock
+     * policy.
+     */
+    private void blocked(Waiter waiter, Set<TransactionId> blockers) {
+        this.graph.setEdges(waiter, blockers);
+        DeadlockPolicy policy = this.policy;
+        if (policy.detects()) {
+            startDetector();
+            return;
+        }
+        long age = waiter.transactionId.getId();
+        for (TransactionId blocker : blockers) {
+            if (policy == DeadlockPolicy.WAIT_DIE && blocker.getId() < age) {
+                waiter.abort();
+                return;
+            }
+            if (policy == DeadlockPolicy.WOUND_WAIT && blocker.getId() > age && this.wounded.add(blocker)) {
+                for (Waiter w : this.graph.waitersOf(blocker)) {
+                    w.abort();
+                }
+            }
+        }
+    }
+
+    /** Start the detector thread unless it is running; it stops once nobody waits. */
+    private void startDetector() {
+        if (!this.detectorRunning.compareAndSet(false, true)) {
+            return;
+        }
+        Thread detector = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(this.detectionMillis);
+                } catch (InterruptedException e) {
+                    this.detectorRunning.set(false);
+                    return;
+                }
+                synchronized (this.graph) {
+                    // checked and cleared under the graph's monitor, so a
+                    // request blocking right now either sees the flag
+                    // cleared or is seen here
+                    if (this.graph.isEmpty()) {
+                        this.detectorRunning.set(false);
+                        return;
+                    }
+                }
+                detectDeadlocks();
+            }
+        }, "simpledb-deadlock-detector");
+        detector.setDaemon(true);
+        detector.start();
+    }
+
+    /** Break every cycle of the waits-for graph by aborting one victim per cycle. */
+    void detectDeadlocks() {
+        Map<TransactionId, Set<TransactionId>> edges = this.graph.transactionEdges();
+        List<TransactionId> cycle;
+        while ((cycle = WaitsForGraph.findCycle(edges)) != null) {
+            TransactionId victim = chooseVictim(cycle);
+            for (Waiter w : this.graph.waitersOf(victim)) {
+                w.abort();
+            }
+            edges.remove(victim);
+        }
+    }
+
+    /** Pick the transaction of cycle whose abort wastes the least work under the current policy. */
+    private TransactionId chooseVictim(List<TransactionId> cycle) {
+        Comparator<TransactionId> youngestFirst = Comparator.comparingLong(tid -> -tid.getId());
+        Comparator<TransactionId> order;
+        switch (this.policy) {
+        case FEWEST_LOCKS:
+            Map<TransactionId, Integer> locks = new ConcurrentHashMap<>();
+            for (TransactionId tid : cycle) {
+                locks.put(tid, countLocks(tid));
+            }
+            order = Comparator.comparingInt((TransactionId tid) -> locks.get(tid)).thenComparing(youngestFirst);
+            break;
+        case LEAST_LOG:
+            Map<TransactionId, Long> logged = new ConcurrentHashMap<>();
+            for (TransactionId tid : cycle) {
+                logged.put(tid, Database.getLogFile().getBytesLogged(tid));
+            }
+            order = Comparator.comparingLong((TransactionId tid) -> logged.get(tid)).thenComparing(youngestFirst);
+            break;
+        default:
+            order = youngestFirst;
+        }
+        return cycle.stream().min(order).get();
+    }
+
+    private int countLocks(TransactionId tid) {
+        Held held = this.heldLocks.get(tid);
+        return held == null ? 0 : held.resources.size();
+    }
+
+    /**
+     * Try once to lock pageId for transactionId without waiting.
+     * @return true if the lock was granted
+     */
+    public boolean tryLockPage(PageId pageId, TransactionId transactionId, Permissions permissions) {
+        LockMode mode = LockMode.of(permissions);
+        Integer table = pageId.getTableId();
+        LockMode tableMode = modeOf(table, transactionId);
+        if (tableMode != null && tableMode.covers(mode)) {
+            return true;
+        }
+        if (!tryAcquire(table, transactionId, mode.intention())) {
+            return false;
+        }
+        if (tryAcquire(pageId, transactionId, mode)) {
+            return true;
+        }
+        if (tableMode == null && pagesHeld(transactionId, table) == 0) {
+            release(table, transactionId);
+        }
+        return false;
+    }
+
+    /**
+     * Release transactionId's lock on pageId, and its intention lock on the
+     * page's table once it holds no other page of that table.
+     */
+    public void ReleasePage(PageId pageId, TransactionId transactionId) {
+        release(pageId, transactionId);
+        Integer table = pageId.getTableId();
+        if (pagesHeld(transactionId, table) == 0) {
+            LockMode tableMode = modeOf(table, transactionId);
+            if (tableMode == LockMode.IS || tableMode == LockMode.IX) {
+                release(table, transactionId);
+            }
+        }
+    }
+
+    /** Return true if transactionId holds a lock on pageId, or on its whole table. */
+    public boolean holdsLock(PageId pageId, TransactionId transactionId) {
+        return modeOf(pageId, transactionId) != null || covers(pageId.getTableId(), transactionId, LockMode.S);
+    }
+
+    /** Return true if transactionId holds a lock on the row, or on its whole page or table. */
+    public boolean holdsLock(RecordId recordId, TransactionId transactionId) {
+        PageId pageId = recordId.getPageId();
+        return modeOf(recordId, transactionId) != null || covers(pageId, transactionId, LockMode.S)
+                || covers(pageId.getTableId(), transactionId, LockMode.S);
+    }
+
+    /** Return true if a transaction other than transactionId holds a lock on pageId, or on its whole table. */
+    public boolean isLockedByOther(PageId pageId, TransactionId transactionId) {
+        TransactionLock pageLock = this.lockMap.get(pageId);
+        if (pageLock != null && pageLock.isHeldByOther(pageId, transactionId, LockMode.IS)) {
+            return true;
+        }
+        Integer table = pageId.getTableId();
+        TransactionLock tableLock = this.lockMap.get(table);
+        return tableLock != null && tableLock.isHeldByOther(table, transactionId, LockMode.S);
+    }
+
+    /** Order in which releaseAllLocks releases: rows, then pages, then tables. */
+    private static int level(Object resource) {
+        return resource instanceof RecordId ? 0 : resource instanceof PageId ? 1 : 2;
+    }
+
+    public void releaseAllLocks(TransactionId tid) {
+        Held held = this.heldLocks.get(tid);
+        if (held != null) {
+            Object[] resources = held.resources.toArray();
+            // finer locks first, so that no coarser lock is granted while they are still held
+            for (int level = 0; level <= 2; level++) {
+                for (Object resource : resources) {
+                    if (level(resource) == level) {
+                        release(resource, tid);
+                    }
+                }
             }
-            want = newWant;
         }
+        this.wounded.remove(tid);
     }
 }
@@ -2,12 +2,22 @@
 package simpledb.storage;
 
 import simpledb.common.Database;
+import simpledb.index.BTreePageId;
 import simpledb.transaction.TransactionId;
 import simpledb.common.Debug;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /*
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -19,23 +29,68 @@ two-phase locking discipline are followed.  <p>
 <p>
 
 Many of the methods here are synchronized (to prevent concurrent log
-writes from happening); many of the methods in BufferPool are also
-synchronized (for similar reasons.)  Problem is that BufferPool writes
-log records (on page flushed) and the log file flushes BufferPool
-pages (on checkpoints and recovery.)  This can lead to deadlock.  For
-that reason, any LogFile operation that needs to access the BufferPool
-must not be declared synchronized and must begin with a block like:
+writes from happening).  Problem is that BufferPool writes log records
+(on pages flushed and committed) while holding its own locks, and the
+log file flushes BufferPool pages (on checkpoints and recovery.)  This
+can lead to deadlock.  For that reason, any LogFile operation that
+needs to access the BufferPool must not be declared synchronized and
+must first quiesce the pool, which waits out page writes in progress
+and holds off new ones:
 
 <p>
 <pre>
-    synchronized (Database.getBufferPool()) {
+    BufferPool pool = Database.getBufferPool();
+    pool.quiesce();
+    try {
        synchronized (this) {
 
        ..
 
        }
+    } finally {
+       pool.resume();
     }
 </pre>
+
+<u> Group commit: </u>
+<p>
+
+Committers append their commit record under the monitor but force the
+log outside it, so that others can append meanwhile. The first
+committer to find no force in progress becomes the flusher: it
+optionally waits out a short batching window, then forces everything
+appended so far with one FileChannel.force, and every committer whose
+record that covered returns without a force of its own. See
+{@link #setGroupCommitWindow}.
+
+<u> Log buffer and LSNs: </u>
+<p>
+
+Records are serialized into an in-memory buffer and reach the file in
+large sequential writes, when the buffer fills up or the log is forced,
+and before the file is read. Every byte of the log has a log sequence
+number (LSN): its offset in the file plus the bytes truncation has cut
+from the front, so LSNs keep growing while offsets start over. Writers
+get the LSN at the end of their record and can force the log just up to
+it with {@link #force(long)}.
+
+<u> Recovery: </u>
+<p>
+
+Recovery follows ARIES. Analysis reads the log from the last checkpoint,
+which flushed every dirty page, and finds the transactions that never
+finished and the pages updated since, each with the first update that
+may not be on disk. FLUSH records, which the buffer pool writes once the
+pages it wrote are forced, tell what each page on disk holds: a page's
+pageLSN. Redo then repeats history from the oldest such update, applying
+an update only if its page's pageLSN is not past it. Undo follows the
+updates of the unfinished transactions back from their last one, as each
+update points to its transaction's previous one, and undoes them, newest
+first, logging each as a COMPENSATION record, which is only ever redone
+and which points to the update to undo next, so that an undo cut short
+by a crash is neither undone nor repeated. Rollback undoes an aborting transaction the same
+way. Both keep at most {@link #setRecoveryPages} pages in memory, and
+after a crash only the log since the last checkpoint is redone.
 */
 
 /**
@@ -43,8 +98,9 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The file begins with a header: the integer LOG_MAGIC, the integer
+format version LOG_VERSION, and a long integer representing the offset
+of the last written checkpoint, or -1 if there are no checkpoints
 
 <li> All additional data in the log consists of log records.  Log
 records are variable length.
@@ -55,21 +111,43 @@ transaction id.
 <li> Each log record ends with a long integer file offset representing
 the position in the log file where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are eight record types: ABORT, COMMIT, UPDATE, DELTA,
+COMPENSATION, BEGIN, CHECKPOINT and FLUSH
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
-<li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
+<li>UPDATE RECORDS consist of the long integer offset of the previous
+update or compensation record of their transaction, or -1, and two
+entries, a before image and an after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+methods.  See LogFile.print() for an example.  An image names its page
+id class by a type byte (see LogFile.registerPageIdType()) and its page
+data may be deflated (see LogFile.setCompression()).
+
+<li>DELTA RECORDS replace UPDATE records for changes to slotted pages
+(see SlottedPage) where they are smaller: the offset of the previous
+update as in an UPDATE record, a page id, written like that of a page
+image, followed by the slots the change inserted, deleted or moved,
+see PageDelta.  Like an UPDATE record a DELTA record can be redone and
+undone on any image of its page.
+
+<li>COMPENSATION RECORDS undo an UPDATE or DELTA record of their
+transaction: the offset of the previous update as in an UPDATE record,
+the long integer offset of the update to undo next, the previous one of
+the record undone, or -1, then the integer UPDATE or DELTA, then either
+the page image to install or a page id and the delta that undoes the one
+of the record.
 
 <li> CHECKPOINT records consist of active transactions at the time
 the checkpoint was taken and their first log record on disk.  The format
 of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+as a long integer transaction id, a long integer first record offset
+and a long integer last update offset, or -1, for each active
+transaction.
+
+<li> FLUSH records say that pages are in their files as of their pageLSN:
+an integer count of pages, then a page id and a long integer offset for
+each, the end of the last record the page holds.
 
 </ul>
 */
@@ -84,15 +162,58 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
+    static final int COMPENSATION_RECORD = 7;
+    static final int FLUSH_RECORD = 8;
     static final long NO_CHECKPOINT_ID = -1;
 
+    /** "SDBL", the first integer of every log file. */
+    static final int LOG_MAGIC = 0x5344424C;
+    /** The version of the log format; files of other versions are not read. */
+    static final int LOG_VERSION = 3;
+
+    static final byte RAW_IMAGE = 0;
+    static final byte DEFLATED_IMAGE = 1;
+
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
+    /** Offset of the checkpoint pointer in the header. */
+    final static int CHECKPOINT_POINTER = INT_SIZE + INT_SIZE;
+    final static int HEADER_SIZE = CHECKPOINT_POINTER + LONG_SIZE;
 
     long currentOffset = -1;//protected by this
+    /** Bytes of the log written to its file; the rest of it is in buffer. */
+    long flushedOffset = 0; //protected by this
+    /** The LSN of file offset 0. */
+    long lsnBase = 0; //protected by this
     int totalRecords = 0; // for PatchTest //protected by this
 
+    /** The LSN up to which the log is known to be on disk. */
+    long durableLsn = 0; //protected by this
+    /** Set while a committer forces the log outside the monitor. */
+    private boolean forcing = false; //protected by this
+    private volatile long groupCommitMicros = Long.getLong("simpledb.storage.LogFile.groupCommitMicros", 0L);
+    private final StorageMetrics metrics = StorageMetrics.get();
+
+    /** Default size of the in-memory log buffer. */
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+    private final ByteBuffer buffer;
+    /** Serializes records into buffer. */
+    private final DataOutputStream out;
+
+    private volatile boolean compress = Boolean.getBoolean("simpledb.storage.LogFile.compress");
+    private volatile boolean deltas = Boolean.parseBoolean(System.getProperty("simpledb.storage.LogFile.deltas", "true"));
+    private volatile int recoveryPages = Integer.getInteger("simpledb.storage.LogFile.recoveryPages", 512);
+    private Deflater deflater; //protected by this
+    private byte[] deflateBuffer = new byte[0]; //protected by this
+    private final Inflater inflater = new Inflater(); //protected by this
+
     final Map<Long,Long> tidToFirstLogRecord = new HashMap<>();
+    /** Bytes of update records written by each live transaction. */
+    final Map<Long,Long> tidToBytesLogged = new HashMap<>();
+    /** Offset of the last update or compensation record of each live
+        transaction, which its next one points back to. */
+    final Map<Long,Long> tidToLastUpdate = new HashMap<>();
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -106,10 +227,62 @@ public class LogFile {
         @param f The log file's name
     */
     public LogFile(File f) throws IOException {
+        this(f, DEFAULT_BUFFER_SIZE);
+    }
+
+    /** Constructor, as above, with a log buffer of bufferSize bytes. */
+    public LogFile(File f, int bufferSize) throws IOException {
 	this.logFile = f;
         raf = new RandomAccessFile(f, "rw");
         recoveryUndecided = true;
+        buffer = ByteBuffer.allocate(bufferSize);
+        out = new DataOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                if (!buffer.hasRemaining()) {
+                    drain();
+                }
+                buffer.put((byte) b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    if (!buffer.hasRemaining()) {
+                        drain();
+                    }
+                    int n = Math.min(len, buffer.remaining());
+                    buffer.put(b, off, n);
+                    off += n;
+                    len -= n;
+                }
+            }
+        });
+    }
+
+    /** Write the buffered records to the end of the file, in one write. */
+    private void drain() throws IOException {
+        buffer.flip();
+        FileChannel channel = raf.getChannel();
+        while (buffer.hasRemaining()) {
+            flushedOffset += channel.write(buffer, flushedOffset);
+        }
+        buffer.clear();
+    }
+
+    /** Return the file offset of the end of the log, buffered records included. */
+    private long endOffset() {
+        return flushedOffset + buffer.position();
+    }
 
+    /** Return the LSN of the end of the log. */
+    public synchronized long getEndLsn() {
+        return lsnBase + endOffset();
+    }
+
+    /** Return the LSN up to which the log is on disk. */
+    public synchronized long getDurableLsn() {
+        return durableLsn;
     }
 
     // we're about to append a log record. if we weren't sure whether the
@@ -119,27 +292,123 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            writeHeader();
+        }
+    }
+
+    /** Empty the log file and write a header without checkpoint to it. */
+    private void writeHeader() throws IOException {
+        raf.seek(0);
+        raf.setLength(0);
+        raf.writeInt(LOG_MAGIC);
+        raf.writeInt(LOG_VERSION);
+        raf.writeLong(NO_CHECKPOINT_ID);
+        raf.seek(raf.length());
+        currentOffset = raf.getFilePointer();
+        flushedOffset = currentOffset;
+    }
+
+    /**
+     * Reads the log file sequentially from an offset through a buffer,
+     * rather than a few bytes per system call as RandomAccessFile does,
+     * and keeps track of its offset. Moves the file pointer.
+     */
+    private static final class LogReader extends FilterInputStream {
+        private static final int BUFFER_SIZE = 1 << 16;
+        /** Buffer size for reading a record or two, e.g. an update to undo. */
+        static final int RECORD_BUFFER_SIZE = 1 << 13;
+        long offset;
+
+        LogReader(RandomAccessFile raf, long offset) throws IOException {
+            this(raf, offset, BUFFER_SIZE);
+        }
+
+        LogReader(RandomAccessFile raf, long offset, int bufferSize) throws IOException {
+            super(new BufferedInputStream(Channels.newInputStream(raf.getChannel().position(offset)), bufferSize));
+            this.offset = offset;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                offset++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                offset += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            offset += skipped;
+            return skipped;
         }
     }
 
+    /** Check the header of the log file and return its checkpoint pointer. */
+    private long readHeader() throws IOException {
+        raf.seek(0);
+        int magic = raf.readInt();
+        int version = raf.readInt();
+        if (magic != LOG_MAGIC) {
+            throw new IOException(logFile + " is not a SimpleDB log");
+        }
+        if (version != LOG_VERSION) {
+            throw new IOException(logFile + " has log format version " + version + ", not " + LOG_VERSION);
+        }
+        return raf.readLong();
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
+
+    /**
+     * Make the flusher of a commit group wait micros before forcing the
+     * log, so that more committers can join its force, or force at once
+     * with 0, still batching whoever committed during the previous force.
+     * The default comes from the system property
+     * simpledb.storage.LogFile.groupCommitMicros.
+     */
+    public void setGroupCommitWindow(long micros) {
+        this.groupCommitMicros = micros;
+    }
+
+    /** Return the file backing this log. */
+    public File getFile() {
+        return logFile;
+    }
+
+    /** Return the group commit batching window; see {@link #setGroupCommitWindow}. */
+    public long getGroupCommitWindow() {
+        return groupCommitMicros;
+    }
+
+    /** Return the number of bytes of update records tid has written so far. */
+    public synchronized long getBytesLogged(TransactionId tid) {
+        return tidToBytesLogged.getOrDefault(tid.getId(), 0L);
+    }
     
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
         @param tid The aborting transaction.
     */
     public void logAbort(TransactionId tid) throws IOException {
-        // must have buffer pool lock before proceeding, since this
+        // must quiesce the buffer pool before proceeding, since this
         // calls rollback
 
-        synchronized (Database.getBufferPool()) {
+        BufferPool pool = Database.getBufferPool();
+        pool.quiesce();
+        try {
 
             synchronized(this) {
                 preAppend();
@@ -150,32 +419,44 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
+                out.writeInt(ABORT_RECORD);
+                out.writeLong(tid.getId());
+                out.writeLong(currentOffset);
+                currentOffset = endOffset();
+                forceHeld();
                 tidToFirstLogRecord.remove(tid.getId());
+                tidToBytesLogged.remove(tid.getId());
+                tidToLastUpdate.remove(tid.getId());
             }
+        } finally {
+            pool.resume();
         }
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk, together with the commit records
+        of concurrent committers.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    public void logCommit(TransactionId tid) throws IOException {
+        long lsn;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            out.writeInt(COMMIT_RECORD);
+            out.writeLong(tid.getId());
+            out.writeLong(currentOffset);
+            currentOffset = endOffset();
+            tidToFirstLogRecord.remove(tid.getId());
+            tidToBytesLogged.remove(tid.getId());
+            tidToLastUpdate.remove(tid.getId());
+            lsn = lsnBase + currentOffset;
+        }
+        metrics.commit();
+        awaitDurable(lsn);
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -183,98 +464,517 @@ public class LogFile {
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
+        @return the LSN at the end of the record, up to which the log
+        must be forced before after is written to its file
 
         @see Page#getBeforeImage
     */
-    public synchronized void logWrite(TransactionId tid, Page before,
+    public synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + endOffset());
         preAppend();
         /* update record consists of
 
            record type
            transaction id
+           offset of the transaction's previous update, or -1
            before page data (see writePageData)
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        long start = endOffset();
+        PageDelta delta = deltas ? PageDelta.diff(before, after) : null;
+        if (delta != null) {
+            out.writeInt(DELTA_RECORD);
+            out.writeLong(tid.getId());
+            out.writeLong(tidToLastUpdate.getOrDefault(tid.getId(), -1L));
+            writePageId(out, after.getId());
+            delta.write(out);
+        } else {
+            out.writeInt(UPDATE_RECORD);
+            out.writeLong(tid.getId());
+            out.writeLong(tidToLastUpdate.getOrDefault(tid.getId(), -1L));
+            writePageData(out,before);
+            writePageData(out,after);
+        }
+        out.writeLong(currentOffset);
+        currentOffset = endOffset();
+        // a page written back after its transaction ended is logged as the
+        // transaction's update, but one that never needs undoing
+        if (tidToFirstLogRecord.containsKey(tid.getId())) {
+            tidToLastUpdate.put(tid.getId(), start);
+        }
+        tidToBytesLogged.merge(tid.getId(), currentOffset - start, Long::sum);
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return lsnBase + currentOffset;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int[] pageInfo = pid.serialize();
+    /** Write a FLUSH record saying that the given pages, each mapped to
+        the pageLSN of the image written, are in their files, so that
+        recovery need not redo their updates up to it. Call it only once
+        the files are forced. The record does not count in
+        {@link #getTotalRecords}, as transactions do not write it.
+
+        @param pageLsns the pages written, with their pageLSNs
+    */
+    public synchronized void logPagesWritten(Map<PageId, Long> pageLsns) throws IOException {
+        // before the first append the log still awaits recovery
+        if (recoveryUndecided || pageLsns.isEmpty()) {
+            return;
+        }
+        out.writeInt(FLUSH_RECORD);
+        out.writeLong(-1); // no tid
+        out.writeInt(pageLsns.size());
+        for (Map.Entry<PageId, Long> e : pageLsns.entrySet()) {
+            writePageId(out, e.getKey());
+            out.writeLong(e.getValue() - lsnBase);
+        }
+        out.writeLong(currentOffset);
+        currentOffset = endOffset();
+    }
 
-        // page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
+    /** Rebuilds a page id from the ints of its {@link PageId#serialize}. */
+    private static final class PageIdType {
+        final byte type;
+        final int ints;
+        final Function<int[], PageId> factory;
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+        PageIdType(byte type, int ints, Function<int[], PageId> factory) {
+            this.type = type;
+            this.ints = ints;
+            this.factory = factory;
+        }
+    }
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+    private static final Map<Class<? extends PageId>, PageIdType> idTypesByClass = new HashMap<>();
+    private static final PageIdType[] idTypes = new PageIdType[256];
 
-        raf.writeInt(pageInfo.length);
-        for (int j : pageInfo) {
-            raf.writeInt(j);
+    static {
+        registerPageIdType(1, HeapPageId.class, 2, ints -> new HeapPageId(ints[0], ints[1]));
+        registerPageIdType(2, BTreePageId.class, 3, ints -> new BTreePageId(ints[0], ints[1], ints[2]));
+    }
+
+    /**
+     * Register a page id class whose pages are logged, so that update
+     * records can name it by the type byte instead of its class name.
+     * Type bytes are part of the log format: never reuse or renumber one.
+     *
+     * @param type the byte identifying idClass in the log, 1 to 255
+     * @param idClass the page id class
+     * @param ints the length of {@link PageId#serialize} for idClass
+     * @param factory rebuilds an id from the ints of its serialize()
+     */
+    public static synchronized void registerPageIdType(int type, Class<? extends PageId> idClass, int ints,
+                                                       Function<int[], PageId> factory) {
+        if (type < 1 || type > 255 || idTypes[type] != null || idTypesByClass.containsKey(idClass)) {
+            throw new IllegalArgumentException("page id type " + type + " for " + idClass.getName()
+                    + " is taken or out of range");
+        }
+        PageIdType t = new PageIdType((byte) type, ints, factory);
+        idTypes[type] = t;
+        idTypesByClass.put(idClass, t);
+    }
+
+    private static synchronized PageIdType idType(PageId pid) throws IOException {
+        PageIdType t = idTypesByClass.get(pid.getClass());
+        if (t == null) {
+            throw new IOException("page id class " + pid.getClass().getName() + " is not registered with the log");
+        }
+        return t;
+    }
+
+    private static synchronized PageIdType idType(int type) throws IOException {
+        PageIdType t = idTypes[type & 0xff];
+        if (t == null) {
+            throw new IOException("unknown page id type " + (type & 0xff) + " in log");
+        }
+        return t;
+    }
+
+    /**
+     * Compress the page images of update records written from now on with
+     * Deflate, where that makes them smaller; records already written are
+     * read back either way. The default comes from the system property
+     * simpledb.storage.LogFile.compress.
+     */
+    public void setCompression(boolean compress) {
+        this.compress = compress;
+    }
+
+    /** Return true if page images are compressed; see {@link #setCompression}. */
+    public boolean isCompression() {
+        return compress;
+    }
+
+    /**
+     * Log updates of slotted pages as the slots they change, in DELTA
+     * records, rather than as whole before and after images, wherever that
+     * is smaller; on by default, and the default comes from the system
+     * property simpledb.storage.LogFile.deltas.
+     */
+    public void setDeltaLogging(boolean deltas) {
+        this.deltas = deltas;
+    }
+
+    /** Return true if updates are logged as deltas; see {@link #setDeltaLogging}. */
+    public boolean isDeltaLogging() {
+        return deltas;
+    }
+
+    /**
+     * Let recovery and rollback keep at most pages pages in memory, writing
+     * the least recently changed one to its file when they need room for
+     * another. The default comes from the system property
+     * simpledb.storage.LogFile.recoveryPages.
+     */
+    public void setRecoveryPages(int pages) {
+        if (pages < 1) {
+            throw new IllegalArgumentException("recovery needs room for a page");
         }
+        this.recoveryPages = pages;
+    }
+
+    /** Return the number of pages recovery keeps in memory; see {@link #setRecoveryPages}. */
+    public int getRecoveryPages() {
+        return recoveryPages;
+    }
+
+    /*  page data is:
+        byte    page id type (see registerPageIdType)
+        int[]   page id, as many ints as the type has
+        byte    encoding, RAW_IMAGE or DEFLATED_IMAGE
+        int     length of the page data
+        int     length of the payload
+        byte[]  payload: the page data, deflated if so encoded
+    */
+    void writePageData(DataOutput raf, Page p) throws IOException{
+        writePageId(raf, p.getId());
         byte[] pageData = p.getPageData();
+        int deflated = compress ? deflate(pageData) : -1;
+        raf.writeByte(deflated < 0 ? RAW_IMAGE : DEFLATED_IMAGE);
         raf.writeInt(pageData.length);
-        raf.write(pageData);
+        if (deflated < 0) {
+            raf.writeInt(pageData.length);
+            raf.write(pageData);
+        } else {
+            raf.writeInt(deflated);
+            raf.write(deflateBuffer, 0, deflated);
+        }
+    }
+
+    /** Write pid as its type byte and ints. */
+    private void writePageId(DataOutput out, PageId pid) throws IOException {
+        PageIdType t = idType(pid);
+        int[] pageInfo = pid.serialize();
+        if (pageInfo.length != t.ints) {
+            throw new IOException(pid + " serializes to " + pageInfo.length + " ints, not " + t.ints);
+        }
+        out.writeByte(t.type);
+        for (int j : pageInfo) {
+            out.writeInt(j);
+        }
+    }
+
+    /** Deflate data into deflateBuffer; return its compressed length, or -1 if that saves nothing. */
+    private int deflate(byte[] data) {
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+        }
+        if (deflateBuffer.length < data.length) {
+            deflateBuffer = new byte[data.length];
+        }
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        int n = deflater.deflate(deflateBuffer, 0, data.length);
+        return deflater.finished() && n < data.length ? n : -1;
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+    /** Read the page id at the start of a page image written by writePageData. */
+    PageId readPageId(DataInput in) throws IOException {
+        PageIdType t = idType(in.readByte());
+        int[] ints = new int[t.ints];
+        for (int i = 0; i < ints.length; i++) {
+            ints[i] = in.readInt();
+        }
+        return t.factory.apply(ints);
+    }
+
+    Page readPageData(DataInput in) throws IOException {
+        return readPageData(in, readPageId(in));
+    }
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+    /** Read the page data of pid that follows its page id in a page image. */
+    private Page readPageData(DataInput in, PageId pid) throws IOException {
+        byte encoding = in.readByte();
+        byte[] pageData = new byte[in.readInt()];
+        int stored = in.readInt();
+        if (encoding == RAW_IMAGE) {
+            in.readFully(pageData);
+        } else if (encoding == DEFLATED_IMAGE) {
+            byte[] payload = new byte[stored];
+            in.readFully(payload);
+            inflate(payload, pageData);
+        } else {
+            throw new IOException("unknown page image encoding " + encoding + " in log");
+        }
+        return Database.getCatalog().getDatabaseFile(pid.getTableId()).decodePage(pid, pageData);
+    }
 
+    private void inflate(byte[] payload, byte[] pageData) throws IOException {
+        inflater.reset();
+        inflater.setInput(payload);
         try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConst = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object[] idArgs = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = raf.readInt();
+            int n = 0;
+            while (n < pageData.length && !inflater.finished()) {
+                int m = inflater.inflate(pageData, n, pageData.length - n);
+                if (m == 0 && inflater.needsInput()) {
+                    break;
+                }
+                n += m;
+            }
+            if (n != pageData.length) {
+                throw new IOException("page image inflates to " + n + " bytes, not " + pageData.length);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt page image in log", e);
+        }
+    }
+
+    /** Skip the page data that follows the page id of an image; return its encoding. */
+    private static byte skipPageData(DataInput in) throws IOException {
+        byte encoding = in.readByte();
+        in.readInt();
+        skipFully(in, in.readInt());
+        return encoding;
+    }
+
+    /** Skip n bytes of in, or throw EOFException if it ends first. */
+    static void skipFully(DataInput in, int n) throws IOException {
+        while (n > 0) {
+            int skipped = in.skipBytes(n);
+            if (skipped <= 0) {
+                throw new EOFException();
             }
-            pid = (PageId)idConst[0].newInstance(idArgs);
+            n -= skipped;
+        }
+    }
 
-            Constructor<?>[] pageConst = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+    /** An UPDATE, DELTA or COMPENSATION record read back from the log. */
+    private static final class Update {
+        final long tid;
+        final PageId pid;
+        /** Offset of the transaction's previous update or compensation record, or -1. */
+        final long prev;
+        /** True for a COMPENSATION record, which is redone but never undone. */
+        final boolean compensation;
+        /** Offset of the update to undo after a COMPENSATION record's, or -1. */
+        final long undoNext;
+        /** The images of an UPDATE record, the image a COMPENSATION record installs as after, or null. */
+        private final Page before, after;
+        /** The delta of the record, or null. */
+        private final PageDelta delta;
+
+        Update(long tid, PageId pid, long prev, boolean compensation, long undoNext,
+               Page before, Page after, PageDelta delta) {
+            this.tid = tid;
+            this.pid = pid;
+            this.prev = prev;
+            this.compensation = compensation;
+            this.undoNext = undoNext;
+            this.before = before;
+            this.after = after;
+            this.delta = delta;
+        }
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+        /** Return true if the pages or delta of the record were read, not skipped. */
+        boolean hasContents() {
+            return after != null || delta != null;
+        }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+        /** Return page, the page of this update as it was logged or a later image of it, redone. */
+        Page redo(Page page) throws IOException {
+            return delta == null ? after : delta.redo(page);
+        }
 
-            newPage = (Page)pageConst[0].newInstance(pageArgs);
+        /** Return page undone. */
+        Page undo(Page page) throws IOException {
+            return delta == null ? before : delta.undo(page);
+        }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e){
-            e.printStackTrace();
-            throw new IOException();
+        /** Return true if redo and undo need the page to apply to. */
+        boolean needsPage() {
+            return delta != null;
+        }
+    }
+
+    /**
+     * Read the rest of an UPDATE, DELTA or COMPENSATION record of tid, up
+     * to its start offset. Its pages or delta are read only if wanted
+     * accepts its page id, and skipped otherwise.
+     */
+    private Update readUpdate(DataInput in, int type, long tid, Predicate<PageId> wanted) throws IOException {
+        long prev = in.readLong();
+        boolean compensation = type == COMPENSATION_RECORD;
+        long undoNext = -1;
+        if (compensation) {
+            undoNext = in.readLong();
+            type = in.readInt();
+        }
+        PageId pid = readPageId(in);
+        boolean read = wanted.test(pid);
+        Page before = null, after = null;
+        PageDelta delta = null;
+        if (type == DELTA_RECORD) {
+            if (read) {
+                delta = PageDelta.read(in, pid);
+            } else {
+                PageDelta.skip(in);
+            }
+        } else if (compensation) {
+            if (read) {
+                after = readPageData(in, pid);
+            } else {
+                skipPageData(in);
+            }
+        } else if (read) {
+            before = readPageData(in, pid);
+            after = readPageData(in);
+        } else {
+            skipPageData(in);
+            readPageId(in);
+            skipPageData(in);
+        }
+        return new Update(tid, pid, prev, compensation, undoNext, before, after, delta);
+    }
+
+    /**
+     * Append a COMPENSATION record that undoes u and follows the record at
+     * offset prev of its transaction; return the offset of its start.
+     */
+    private long logCompensation(Update u, long prev) throws IOException {
+        preAppend();
+        long start = endOffset();
+        out.writeInt(COMPENSATION_RECORD);
+        out.writeLong(u.tid);
+        out.writeLong(prev);
+        out.writeLong(u.prev);
+        if (u.delta != null) {
+            out.writeInt(DELTA_RECORD);
+            writePageId(out, u.pid);
+            u.delta.inverse().write(out);
+        } else {
+            out.writeInt(UPDATE_RECORD);
+            writePageData(out, u.before);
+        }
+        out.writeLong(currentOffset);
+        currentOffset = endOffset();
+        return start;
+    }
+
+    /**
+     * Return the image of pid in its file, or an empty page if the file
+     * does not reach it, as may happen for a page created since the last
+     * checkpoint under NO FORCE.
+     */
+    private static Page readFilePage(PageId pid) throws IOException {
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        try {
+            return file.readPage(pid);
+        } catch (IllegalArgumentException e) {
+            return file.decodePage(pid, new byte[BufferPool.getPageSize()]);
+        }
+    }
+
+    /**
+     * The pages recovery or rollback has changed, with their pageLSNs, the
+     * offset of the end of the last record applied to each. At most
+     * recoveryPages of them stay in memory: the least recently changed one
+     * is written to its file, after the log up to its pageLSN, to make
+     * room, and only its pageLSN is kept.
+     */
+    private final class RecoveryPages {
+        private final LinkedHashMap<PageId, Page> pages = new LinkedHashMap<>(16, 0.75f, true);
+        private final Map<PageId, Long> lsns = new HashMap<>();
+        private final Set<Integer> tables = new HashSet<>();
+
+        /** Return the pageLSN of pid if it has changed, else null. */
+        Long lsn(PageId pid) {
+            return lsns.get(pid);
+        }
+
+        /** Return the image of pid as changed so far, or else as in its file. */
+        Page get(PageId pid) throws IOException {
+            Page page = pages.get(pid);
+            return page != null ? page : readFilePage(pid);
+        }
+
+        /** Make page, changed by the record that ends at offset lsn, the image of its page. */
+        void put(Page page, long lsn) throws IOException {
+            pages.put(page.getId(), page);
+            lsns.put(page.getId(), lsn);
+            if (pages.size() > recoveryPages) {
+                Iterator<Page> eldest = pages.values().iterator();
+                Page evicted = eldest.next();
+                eldest.remove();
+                write(evicted);
+            }
+        }
+
+        /** Write every page still in memory; return the ids of the tables written. */
+        Set<Integer> writeAll() throws IOException {
+            for (Page page : pages.values()) {
+                write(page);
+            }
+            pages.clear();
+            return tables;
+        }
+
+        private void write(Page page) throws IOException {
+            // WAL: the records the image holds must be on disk first
+            if (lsnBase + lsns.get(page.getId()) > durableLsn) {
+                forceHeld();
+            }
+            installPage(page, tables);
+        }
+    }
+
+    /** Copy a page image written by writePageData from in to out as it is, without decoding it. */
+    private void copyPageData(DataInput in, DataOutput out) throws IOException {
+        PageIdType t = idType(in.readByte());
+        out.writeByte(t.type);
+        for (int i = 0; i < t.ints; i++) {
+            out.writeInt(in.readInt());
+        }
+        out.writeByte(in.readByte());
+        out.writeInt(in.readInt());
+        int stored = in.readInt();
+        out.writeInt(stored);
+        byte[] payload = new byte[stored];
+        in.readFully(payload);
+        out.write(payload);
+    }
+
+    /** Return where the record at offset is after truncating the log before
+        minLogRecord, or -1 for no record if it is cut off. */
+    private static long movedOffset(long offset, long minLogRecord) {
+        return offset < minLogRecord ? -1 : (offset - minLogRecord) + HEADER_SIZE;
+    }
+
+    /** Note that an update of tid moved to newStart, if tid is live. */
+    private void lastUpdateMoved(long tid, long newStart) {
+        if (tidToLastUpdate.containsKey(tid)) {
+            tidToLastUpdate.put(tid, newStart);
         }
-        return newPage;
+    }
 
+    /** Copy the page id and delta of a DELTA record from in to out. */
+    private void copyDelta(DataInput in, DataOutput out) throws IOException {
+        PageId pid = readPageId(in);
+        writePageId(out, pid);
+        PageDelta.read(in, pid).write(out);
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -289,62 +989,74 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        out.writeInt(BEGIN_RECORD);
+        out.writeLong(tid.getId());
+        out.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        currentOffset = endOffset();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
     /** Checkpoint the log and write a checkpoint record. */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
+        //make sure the buffer pool is quiesced before proceeding
+        BufferPool pool = Database.getBufferPool();
+        pool.quiesce();
+        try {
             synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+                //Debug.log("CHECKPOINT, offset = " + endOffset());
                 preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
-
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+                forceHeld();
+                pool.flushAllPages();
+                writeCheckpoint();
             }
+        } finally {
+            pool.resume();
         }
 
         logTruncate();
     }
 
+    /** Write a CHECKPOINT record of the live transactions, with every
+        update logged before it in the data files, and point the header
+        of the log at it once it is on disk.
+    */
+    private void writeCheckpoint() throws IOException {
+        Set<Long> keys = tidToFirstLogRecord.keySet();
+        Iterator<Long> els = keys.iterator();
+        long startCpOffset = endOffset();
+        out.writeInt(CHECKPOINT_RECORD);
+        out.writeLong(-1); //no tid , but leave space for convenience
+
+        //write list of outstanding transactions
+        out.writeInt(keys.size());
+        while (els.hasNext()) {
+            Long key = els.next();
+            Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
+            out.writeLong(key);
+            //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
+            out.writeLong(tidToFirstLogRecord.get(key));
+            out.writeLong(tidToLastUpdate.getOrDefault(key, -1L));
+        }
+        out.writeLong(currentOffset);
+        currentOffset = endOffset();
+
+        //once the CP is on disk, make sure the CP location at the
+        // beginning of the log file is updated; recovery starts there
+        forceHeld();
+        raf.seek(CHECKPOINT_POINTER);
+        raf.writeLong(startCpOffset);
+        //Debug.log("CP OFFSET = " + currentOffset);
+    }
+
     /** Truncate any unneeded portion of the log to reduce its space
         consumption */
     public synchronized void logTruncate() throws IOException {
+        awaitNoForce();
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+        drain();
+        long cpLoc = readHeader();
 
         long minLogRecord = cpLoc;
 
@@ -364,6 +1076,7 @@ public class LogFile {
                 @SuppressWarnings("unused")
                 long tid = raf.readLong();
                 long firstLogRecord = raf.readLong();
+                raf.readLong();
                 if (firstLogRecord < minLogRecord) {
                     minLogRecord = firstLogRecord;
                 }
@@ -374,7 +1087,9 @@ public class LogFile {
         File newFile = new File("logtmp" + System.currentTimeMillis());
         RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
         logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
+        logNew.writeInt(LOG_MAGIC);
+        logNew.writeInt(LOG_VERSION);
+        logNew.writeLong(cpLoc == NO_CHECKPOINT_ID ? NO_CHECKPOINT_ID : (cpLoc - minLogRecord) + HEADER_SIZE);
 
         raf.seek(minLogRecord);
 
@@ -392,11 +1107,36 @@ public class LogFile {
 
                 switch (type) {
                 case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
+                    logNew.writeLong(movedOffset(raf.readLong(), minLogRecord));
+                    copyPageData(raf, logNew);
+                    copyPageData(raf, logNew);
+                    lastUpdateMoved(record_tid, newStart);
+                    break;
+                case DELTA_RECORD:
+                    logNew.writeLong(movedOffset(raf.readLong(), minLogRecord));
+                    copyDelta(raf, logNew);
+                    lastUpdateMoved(record_tid, newStart);
+                    break;
+                case COMPENSATION_RECORD:
+                    logNew.writeLong(movedOffset(raf.readLong(), minLogRecord));
+                    logNew.writeLong(movedOffset(raf.readLong(), minLogRecord));
+                    lastUpdateMoved(record_tid, newStart);
+                    int undone = raf.readInt();
+                    logNew.writeInt(undone);
+                    if (undone == DELTA_RECORD) {
+                        copyDelta(raf, logNew);
+                    } else {
+                        copyPageData(raf, logNew);
+                    }
+                    break;
+                case FLUSH_RECORD:
+                    int numPages = raf.readInt();
+                    logNew.writeInt(numPages);
+                    while (numPages-- > 0) {
+                        writePageId(logNew, readPageId(raf));
+                        long pageLsn = raf.readLong();
+                        logNew.writeLong((pageLsn - minLogRecord) + HEADER_SIZE);
+                    }
                     break;
                 case CHECKPOINT_RECORD:
                     int numXactions = raf.readInt();
@@ -405,7 +1145,8 @@ public class LogFile {
                         long xid = raf.readLong();
                         long xoffset = raf.readLong();
                         logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
+                        logNew.writeLong((xoffset - minLogRecord) + HEADER_SIZE);
+                        logNew.writeLong(movedOffset(raf.readLong(), minLogRecord));
                     }
                     break;
                 case BEGIN_RECORD:
@@ -432,6 +1173,11 @@ public class LogFile {
         newFile.delete();
 
         currentOffset = raf.getFilePointer();
+        flushedOffset = currentOffset;
+        // offset o of the old file is offset o - minLogRecord + HEADER_SIZE now
+        lsnBase += minLogRecord - HEADER_SIZE;
+        // the copy is the log now
+        forceHeld();
         //print();
     }
 
@@ -440,62 +1186,74 @@ public class LogFile {
         transaction semantics, this should not be called on
         transactions that have already committed (though this may not
         be enforced by this method.)
+        <p>
+        A logged page was written as logged, and the locks of the
+        aborting transaction kept others from changing it since, so its
+        updates are undone, newest first, on the pages on disk, each
+        logged as a COMPENSATION record.
 
         @param transactionId The transaction to rollback
     */
     public void rollback(TransactionId transactionId)
         throws NoSuchElementException, IOException {
-        synchronized (Database.getBufferPool()) {
+        BufferPool pool = Database.getBufferPool();
+        pool.quiesce();
+        try {
             synchronized(this) {
                 preAppend();
+                drain();
                 // some code goes here
-                Long firstLogRecord = tidToFirstLogRecord.get(transactionId.getId());
-                //移动到日志开始的地方
-                raf.seek(firstLogRecord);
-                Set<PageId> set = new HashSet<>();
-                while (true) {
-                    try {
-                        //Each log record begins with an integer type and a long integer transaction id.
-                        int type = raf.readInt();
-                        long tid = raf.readLong();
-                        switch (type) {
-                            case UPDATE_RECORD :
-                                //UPDATE RECORDS consist of two entries, a before image and an
-                                //after image.  These images are serialized Page objects, and can be
-                                //accessed with the LogFile.readPageData() and LogFile.writePageData()
-                                //methods.  See LogFile.print() for an example.
-                                Page beforeImage = readPageData(raf);
-                                Page afterImage = readPageData(raf);
-                                PageId pageId = beforeImage.getId();
-                                if (tid == transactionId.getId() && !set.contains(pageId)) {
-                                    set.add(pageId);
-                                    Database.getBufferPool().discardPage(pageId);
-                                    Database.getCatalog().getDatabaseFile(pageId.getTableId()).writePage(beforeImage);
-                                }
-                                break;
-                            case CHECKPOINT_RECORD:
-                                //CHECKPOINT records consist of active transactions at the time
-                                //the checkpoint was taken and their first log record on disk.  The format
-                                //of the record is an integer count of the number of transactions, as well
-                                //as a long integer transaction id and a long integer first record offset
-                                //for each active transaction.
-                                int txCnt = raf.readInt();
-                                while (txCnt > 0) {
-                                    raf.readLong();
-                                    raf.readLong();
-                                    txCnt--;
-                                }
-                                break;
-                            default:
-                                //others
-                                break;
-                        }
-                        //Each log record ends with a long integer file offset representing the position in the log file where the record began.
-                        raf.readLong();
-                    } catch (EOFException e) {
-                        break;
-                    }
+                Long lastUpdate = tidToLastUpdate.get(transactionId.getId());
+                if (lastUpdate == null) {
+                    return;
                 }
+                Map<Long, Long> last = new HashMap<>();
+                last.put(transactionId.getId(), lastUpdate);
+                RecoveryPages pages = new RecoveryPages();
+                undo(last, pages);
+                tidToLastUpdate.put(transactionId.getId(), last.get(transactionId.getId()));
+                pages.writeAll();
+            }
+        } finally {
+            pool.resume();
+        }
+    }
+
+    /**
+     * Undo the transactions in last, each mapped to the offset of its last
+     * update or compensation record, or -1 if it has none, newest update
+     * first, following each transaction's records back through their prev
+     * offsets. Each update is undone on its page in pages and logged as a
+     * COMPENSATION record, whose offset becomes the transaction's last; a
+     * COMPENSATION record met on the way skips to its undoNext update, so
+     * an undo cut short by a crash goes on where it stopped.
+     */
+    private void undo(Map<Long, Long> last, RecoveryPages pages) throws IOException {
+        // offset and tid of the next record of each transaction, newest first
+        PriorityQueue<long[]> next = new PriorityQueue<>((a, b) -> Long.compare(b[0], a[0]));
+        for (Map.Entry<Long, Long> e : last.entrySet()) {
+            if (e.getValue() >= 0) {
+                next.add(new long[] { e.getValue(), e.getKey() });
+            }
+        }
+        while (!next.isEmpty()) {
+            long[] record = next.poll();
+            long tid = record[1];
+            DataInputStream in = new DataInputStream(new LogReader(raf, record[0], LogReader.RECORD_BUFFER_SIZE));
+            int type = in.readInt();
+            if (in.readLong() != tid || (type != UPDATE_RECORD && type != DELTA_RECORD && type != COMPENSATION_RECORD)) {
+                throw new IOException("no update of transaction " + tid + " at offset " + record[0] + " of " + logFile);
+            }
+            Update u = readUpdate(in, type, tid, pid -> type != COMPENSATION_RECORD);
+            long undoNext = u.undoNext;
+            if (!u.compensation) {
+                Page page = u.needsPage() ? pages.get(u.pid) : null;
+                last.put(tid, logCompensation(u, last.get(tid)));
+                pages.put(u.undo(page), currentOffset);
+                undoNext = u.prev;
+            }
+            if (undoNext >= 0) {
+                next.add(new long[] { undoNext, tid });
             }
         }
     }
@@ -507,6 +1265,7 @@ public class LogFile {
     public synchronized void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
+            awaitNoForce();
             raf.close();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
@@ -517,84 +1276,216 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        <p>
+        Analysis reads the log from the last checkpoint on and finds the
+        transactions that never finished and the pages updated since.
+        Redo repeats history from the first of those updates that may not
+        be on disk, in log order and whatever the transaction, skipping
+        the updates a page already holds by its pageLSN, as known from
+        the FLUSH records or the updates redone. Undo then rolls back the
+        unfinished transactions, logging COMPENSATION records and an
+        ABORT record for each. The pages are written and a checkpoint
+        ends recovery, so a crash during or after it recovers from there.
     */
     public void recover() throws IOException {
-        synchronized (Database.getBufferPool()) {
+        BufferPool pool = Database.getBufferPool();
+        pool.quiesce();
+        try {
             synchronized (this) {
                 recoveryUndecided = false;
+                awaitNoForce();
+                drain();
                 // some code goes here
                 raf = new RandomAccessFile(logFile, "rw");
-                //已提交的事务id集合
-                Set<Long> committedId = new HashSet<>();
-                //存放事务id对应的beforePage和afterPage
-                Map<Long, List<Page>> beforePages = new HashMap<>();
-                Map<Long, List<Page>> afterPages = new HashMap<>();
+                // skip the header of the log
+                long cpLoc = NO_CHECKPOINT_ID;
+                if (raf.length() < HEADER_SIZE) {
+                    writeHeader();
+                } else {
+                    cpLoc = readHeader();
+                }
+
+                // analysis: from the checkpoint on, every page in the file
+                // holds every update logged before it
+                long start = cpLoc == NO_CHECKPOINT_ID ? HEADER_SIZE : cpLoc;
+                // each unfinished transaction with its last update, or -1
+                Map<Long, Long> losers = new HashMap<>();
+                Map<PageId, DirtyPage> dirtyPages = new HashMap<>();
+                LogReader reader = new LogReader(raf, start);
+                DataInputStream in = new DataInputStream(reader);
+                long end = start;
                 while (true) {
                     try {
-                        int type = raf.readInt();
-                        long tid = raf.readLong();
+                        long recordStart = end;
+                        int type = in.readInt();
+                        long tid = in.readLong();
+                        if (recordStart == cpLoc && type != CHECKPOINT_RECORD) {
+                            throw new IOException("checkpoint pointer of " + logFile + " does not point to a checkpoint record");
+                        }
                         switch (type) {
-                            case UPDATE_RECORD:
-                                Page beforeImage = readPageData(raf);
-                                Page afterImage = readPageData(raf);
-                                List<Page> l1 = beforePages.getOrDefault(tid, new ArrayList<>());
-                                l1.add(beforeImage);
-                                beforePages.put(tid, l1);
-                                List<Page> l2 = afterPages.getOrDefault(tid, new ArrayList<>());
-                                l2.add(afterImage);
-                                afterPages.put(tid, l2);
+                            case BEGIN_RECORD:
+                                losers.putIfAbsent(tid, -1L);
                                 break;
                             case COMMIT_RECORD:
-                                committedId.add(tid);
+                            case ABORT_RECORD:
+                                losers.remove(tid);
+                                break;
+                            case UPDATE_RECORD:
+                            case DELTA_RECORD:
+                            case COMPENSATION_RECORD:
+                                PageId pid = readUpdate(in, type, tid, p -> false).pid;
+                                // a page written back after its transaction
+                                // ended is logged as its update, too
+                                if (losers.containsKey(tid)) {
+                                    losers.put(tid, recordStart);
+                                }
+                                dirtyPages.computeIfAbsent(pid, p -> new DirtyPage()).updated(recordStart);
                                 break;
                             case CHECKPOINT_RECORD:
-                                int numTxs = raf.readInt();
+                                int numTxs = in.readInt();
                                 while (numTxs -- > 0) {
-                                    raf.readLong();
-                                    raf.readLong();
+                                    long liveTid = in.readLong();
+                                    in.readLong();
+                                    losers.putIfAbsent(liveTid, in.readLong());
+                                }
+                                break;
+                            case FLUSH_RECORD:
+                                int numPages = in.readInt();
+                                while (numPages-- > 0) {
+                                    PageId written = readPageId(in);
+                                    long pageLsn = in.readLong();
+                                    DirtyPage dirty = dirtyPages.get(written);
+                                    if (dirty != null && dirty.written(pageLsn)) {
+                                        dirtyPages.remove(written);
+                                    }
                                 }
                                 break;
                             default:
                                 break;
                         }
                         //end
-                        raf.readLong();
-
+                        in.readLong();
+                        end = reader.offset;
                     } catch (EOFException e) {
                         break;
                     }
                 }
-
-                //处理未提交事务，直接写before-image
-                for (long tid :beforePages.keySet()) {
-                    if (!committedId.contains(tid)) {
-                        List<Page> pages = beforePages.get(tid);
-                        for (Page p : pages) {
-                            Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
-                        }
+                // append after the last whole record, over any torn one
+                raf.setLength(end);
+                currentOffset = end;
+                flushedOffset = currentOffset;
+                durableLsn = lsnBase + end;
+
+                // redo: repeat history from the oldest update a page in
+                // its file may miss
+                RecoveryPages pages = new RecoveryPages();
+                long redoStart = end;
+                for (DirtyPage dirty : dirtyPages.values()) {
+                    redoStart = Math.min(redoStart, dirty.recLsn);
+                }
+                reader = new LogReader(raf, redoStart);
+                in = new DataInputStream(reader);
+                while (reader.offset < end) {
+                    long recordStart = reader.offset;
+                    int type = in.readInt();
+                    long tid = in.readLong();
+                    switch (type) {
+                        case UPDATE_RECORD:
+                        case DELTA_RECORD:
+                        case COMPENSATION_RECORD:
+                            Update u = readUpdate(in, type, tid, pid -> needsRedo(dirtyPages.get(pid), pages.lsn(pid), recordStart));
+                            in.readLong();
+                            if (u.hasContents()) {
+                                Page page = u.needsPage() ? pages.get(u.pid) : null;
+                                pages.put(u.redo(page), reader.offset);
+                            }
+                            continue;
+                        case CHECKPOINT_RECORD:
+                            skipFully(in, in.readInt() * (LONG_SIZE + LONG_SIZE + LONG_SIZE));
+                            break;
+                        case FLUSH_RECORD:
+                            int numPages = in.readInt();
+                            while (numPages-- > 0) {
+                                readPageId(in);
+                                in.readLong();
+                            }
+                            break;
+                        default:
+                            break;
                     }
+                    in.readLong();
                 }
 
-                //处理已提交事务，直接写after-image
-                for (long tid : committedId) {
-                    if (afterPages.containsKey(tid)) {
-                        List<Page> pages = afterPages.get(tid);
-                        for (Page page : pages) {
-                            Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
-                        }
-                    }
+                // undo the transactions that never finished
+                undo(losers, pages);
+                for (long tid : losers.keySet()) {
+                    preAppend();
+                    out.writeInt(ABORT_RECORD);
+                    out.writeLong(tid);
+                    out.writeLong(currentOffset);
+                    currentOffset = endOffset();
+                }
+                for (int tableId : pages.writeAll()) {
+                    Database.getCatalog().getDatabaseFile(tableId).force();
                 }
+                writeCheckpoint();
+            }
+        } finally {
+            pool.resume();
+        }
+    }
+
+    /** A page analysis found updated since the checkpoint. */
+    private static final class DirtyPage {
+        /** Offset of the first update the page in its file may miss. */
+        long recLsn = -1;
+        /** Offset of the last update of the page. */
+        long lastLsn = -1;
+        /** The page's pageLSN in its file, as the FLUSH records tell. */
+        long diskLsn = -1;
+
+        /** Note the update of the page at offset start. */
+        void updated(long start) {
+            if (recLsn < 0) {
+                recLsn = start;
             }
-         }
+            lastLsn = start;
+        }
+
+        /** Note that the page was written with pageLsn; return true if it holds all its updates so far. */
+        boolean written(long pageLsn) {
+            diskLsn = Math.max(diskLsn, pageLsn);
+            return lastLsn < diskLsn;
+        }
+    }
+
+    /**
+     * Return true if the update at offset start of a page analysis found
+     * as dirty must be redone: the page in its file may miss it and the
+     * redone image of the page, with pageLSN lsn if any, does not hold it.
+     */
+    private static boolean needsRedo(DirtyPage dirty, Long lsn, long start) {
+        if (dirty == null || start < dirty.recLsn) {
+            return false;
+        }
+        return start >= (lsn != null ? lsn : dirty.diskLsn);
+    }
+
+    /** Write page to its file, dropping any cached copy, and note its table in installed. */
+    private void installPage(Page page, Set<Integer> installed) throws IOException {
+        installed.add(page.getId().getTableId());
+        Database.getBufferPool().discardPage(page.getId());
+        Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
     }
 
     /** Print out a human readable represenation of the log */
-    public void print() throws IOException {
+    public synchronized void print() throws IOException {
+        drain();
         long curOffset = raf.getFilePointer();
 
-        raf.seek(0);
-
-        System.out.println("0: checkpoint record at offset " + raf.readLong());
+        long cpLoc = readHeader();
+        System.out.println("0: log format version " + LOG_VERSION);
+        System.out.println(CHECKPOINT_POINTER + ": checkpoint record at offset " + cpLoc);
 
         while (true) {
             try {
@@ -628,29 +1519,84 @@ public class LogFile {
                         long firstRecord = raf.readLong();
                         System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
                         System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
+                        System.out.println(raf.getFilePointer() + ": LAST UPDATE RECORD: " + raf.readLong());
                     }
                     System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
 
                     break;
                 case UPDATE_RECORD:
                     System.out.println(" (UPDATE)");
+                    System.out.println(raf.getFilePointer() + ": PREVIOUS UPDATE OFFSET: " + raf.readLong());
 
                     long start = raf.getFilePointer();
-                    Page before = readPageData(raf);
+                    PageId before = readPageId(raf);
+                    long beforeData = raf.getFilePointer();
+                    byte beforeEncoding = skipPageData(raf);
 
                     long middle = raf.getFilePointer();
-                    Page after = readPageData(raf);
+                    PageId after = readPageId(raf);
+                    long afterData = raf.getFilePointer();
+                    byte afterEncoding = skipPageData(raf);
+
+                    System.out.println(start + ": before image table id " + before.getTableId());
+                    System.out.println((start + 1 + INT_SIZE) + ": before image page number " + before.getPageNumber());
+                    System.out.println(beforeData + " TO " + middle + ": page data, encoding " + beforeEncoding);
+
+                    System.out.println(middle + ": after image table id " + after.getTableId());
+                    System.out.println((middle + 1 + INT_SIZE) + ": after image page number " + after.getPageNumber());
+                    System.out.println(afterData + " TO " + (raf.getFilePointer()) + ": page data, encoding " + afterEncoding);
+
+                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+
+                    break;
+                case DELTA_RECORD:
+                    System.out.println(" (DELTA)");
+                    System.out.println(raf.getFilePointer() + ": PREVIOUS UPDATE OFFSET: " + raf.readLong());
+
+                    long deltaStart = raf.getFilePointer();
+                    PageId pid = readPageId(raf);
+                    long deltaData = raf.getFilePointer();
+                    PageDelta delta = PageDelta.read(raf, pid);
+
+                    System.out.println(deltaStart + ": table id " + pid.getTableId());
+                    System.out.println((deltaStart + 1 + INT_SIZE) + ": page number " + pid.getPageNumber());
+                    System.out.println(deltaData + " TO " + raf.getFilePointer() + ": " + delta.getChangedSlots() + " changed slots");
 
-                    System.out.println(start + ": before image table id " + before.getId().getTableId());
-                    System.out.println((start + INT_SIZE) + ": before image page number " + before.getId().getPageNumber());
-                    System.out.println((start + INT_SIZE) + " TO " + (middle - INT_SIZE) + ": page data");
+                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
 
-                    System.out.println(middle + ": after image table id " + after.getId().getTableId());
-                    System.out.println((middle + INT_SIZE) + ": after image page number " + after.getId().getPageNumber());
-                    System.out.println((middle + INT_SIZE) + " TO " + (raf.getFilePointer()) + ": page data");
+                    break;
+                case COMPENSATION_RECORD:
+                    System.out.println(" (COMPENSATION)");
+                    System.out.println(raf.getFilePointer() + ": PREVIOUS UPDATE OFFSET: " + raf.readLong());
+                    System.out.println(raf.getFilePointer() + ": UNDO NEXT OFFSET: " + raf.readLong());
+                    int undone = raf.readInt();
+                    long clrStart = raf.getFilePointer();
+                    PageId clrPid = readPageId(raf);
+                    if (undone == DELTA_RECORD) {
+                        PageDelta.skip(raf);
+                    } else {
+                        skipPageData(raf);
+                    }
+                    System.out.println(clrStart + ": " + (undone == DELTA_RECORD ? "delta" : "image") + " of table id "
+                            + clrPid.getTableId() + " page number " + clrPid.getPageNumber()
+                            + " TO " + raf.getFilePointer());
 
                     System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
 
+                    break;
+                case FLUSH_RECORD:
+                    System.out.println(" (FLUSH)");
+                    int numPages = raf.readInt();
+                    System.out.println((raf.getFilePointer() - INT_SIZE) + ": NUMBER OF PAGES WRITTEN: " + numPages);
+
+                    while (numPages-- > 0) {
+                        long pageStart = raf.getFilePointer();
+                        PageId written = readPageId(raf);
+                        System.out.println(pageStart + ": table id " + written.getTableId() + " page number "
+                                + written.getPageNumber() + " AS OF " + raf.readLong());
+                    }
+                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+
                     break;
                 }
 
@@ -664,8 +1610,84 @@ public class LogFile {
         raf.seek(curOffset);
     }
 
-    public  synchronized void force() throws IOException {
+    /** Force every record appended so far to disk, sharing the force
+        with concurrent committers.
+    */
+    public void force() throws IOException {
+        force(getEndLsn());
+    }
+
+    /** Force the log to disk up to lsn, e.g. the pageLSN of a page about
+        to be written, sharing the force with concurrent committers. Does
+        nothing if the log is already on disk that far.
+    */
+    public void force(long lsn) throws IOException {
+        awaitDurable(lsn);
+    }
+
+    /** Force the log while holding the monitor, which concurrent
+        committers then cannot release to join.
+    */
+    private void forceHeld() throws IOException {
+        drain();
         raf.getChannel().force(true);
+        metrics.logForce();
+        durableLsn = lsnBase + flushedOffset;
+        notifyAll();
+    }
+
+    /** Return once the log is on disk up to lsn, forcing it as the
+        flusher of a group unless another committer's force covers it.
+    */
+    private void awaitDurable(long lsn) throws IOException {
+        synchronized (this) {
+            while (durableLsn < lsn && forcing) {
+                waitForFlusher();
+            }
+            if (durableLsn >= lsn) {
+                return;
+            }
+            forcing = true;
+        }
+        try {
+            long window = groupCommitMicros;
+            if (window > 0) {
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(window));
+            }
+            long upTo;
+            FileChannel channel;
+            synchronized (this) {
+                drain();
+                upTo = lsnBase + flushedOffset;
+                channel = raf.getChannel();
+            }
+            channel.force(true);
+            metrics.logForce();
+            synchronized (this) {
+                durableLsn = Math.max(durableLsn, upTo);
+            }
+        } finally {
+            synchronized (this) {
+                forcing = false;
+                notifyAll();
+            }
+        }
+    }
+
+    /** Wait, holding the monitor, until no flusher is forcing the file outside it. */
+    private void awaitNoForce() throws IOException {
+        while (forcing) {
+            waitForFlusher();
+        }
+    }
+
+    private void waitForFlusher() throws IOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for the log force");
+        }
     }
 
 }
@@ -0,0 +1,117 @@
+package simpledb.storage;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum). The victim is the resident
+ * page whose K-th most recent access lies furthest in the past; pages seen
+ * fewer than K times count as infinitely old and go first, oldest last access
+ * first. A page touched once by a sequential scan therefore never displaces
+ * a page that has been hit repeatedly.
+ * <p>
+ * Access history of evicted pages is kept for up to capacity pages, so a page
+ * that comes back soon after eviction is recognised as re-referenced.
+ */
+public class LruKPolicy implements ReplacementPolicy {
+
+    public static final int DEFAULT_K = 2;
+
+    /** Access history of one page; times[0] is the most recent access. */
+    private static class History {
+        private final PageId pid;
+        private final long[] times;
+        private long seq;
+
+        History(PageId pid, int k) {
+            this.pid = pid;
+            this.times = new long[k];
+        }
+
+        void record(long now) {
+            System.arraycopy(times, 0, times, 1, times.length - 1);
+            times[0] = now;
+        }
+
+        long kth() {
+            return times[times.length - 1];
+        }
+    }
+
+    private static final Comparator<History> BY_KTH_ACCESS = Comparator
+            .comparingLong(History::kth)
+            .thenComparingLong((History h) -> h.times[0])
+            .thenComparingLong(h -> h.seq);
+
+    private final int k;
+    private final int capacity;
+    private final Map<PageId, History> resident;
+    private final TreeSet<History> order;
+    private final LinkedHashMap<PageId, History> retained;
+    private long now;
+
+    public LruKPolicy(int capacity, int k) {
+        if (k < 1) throw new IllegalArgumentException("K must be at least 1");
+        this.k = k;
+        this.capacity = capacity;
+        this.resident = new HashMap<>();
+        this.order = new TreeSet<>(BY_KTH_ACCESS);
+        this.retained = new LinkedHashMap<>();
+        this.now = 0;
+    }
+
+    public synchronized void admit(PageId pid) {
+        History h = retained.remove(pid);
+        if (h == null) {
+            h = new History(pid, k);
+        }
+        h.record(++now);
+        h.seq = now;
+        resident.put(pid, h);
+        order.add(h);
+    }
+
+    public synchronized void access(PageId pid) {
+        History h = resident.get(pid);
+        if (h == null) return;
+        order.remove(h);
+        h.record(++now);
+        order.add(h);
+    }
+
+    public synchronized PageId evict(PageId incoming, Predicate<PageId> evictable) {
+        for (History h : order) {
+            if (evictable.test(h.pid)) {
+                order.remove(h);
+                resident.remove(h.pid);
+                retained.put(h.pid, h);
+                if (retained.size() > capacity) {
+                    Iterator<PageId> oldest = retained.keySet().iterator();
+                    oldest.next();
+                    oldest.remove();
+                }
+                return h.pid;
+            }
+        }
+        return null;
+    }
+
+    /** A page is hot once it has been accessed K times. */
+    public synchronized boolean isReferenced(PageId pid) {
+        History h = resident.get(pid);
+        return h != null && h.kth() != 0;
+    }
+
+    public synchronized void remove(PageId pid) {
+        History h = resident.remove(pid);
+        if (h != null) {
+            order.remove(h);
+        }
+        retained.remove(pid);
+    }
+}
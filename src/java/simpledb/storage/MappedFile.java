@@ -0,0 +1,113 @@
+package simpledb.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * MappedFile maps the file behind a {@link FileHandle} into memory read-only
+ * and hands out slices of the mapping, so pages can be decoded in place
+ * without a read call or an intermediate copy.
+ * <p>
+ * A single MappedByteBuffer cannot exceed 2 GB, so the file is mapped in
+ * segments of a whole number of pages; a page never straddles two segments.
+ * The mapping only covers the file as long as it was when last mapped; a
+ * slice past its end remaps the tail of the file. Writes made through the
+ * handle are visible through the mapping, as both go through the OS page
+ * cache.
+ * <p>
+ * Superseded segments are unmapped when the garbage collector reclaims them.
+ */
+public class MappedFile {
+
+    /** Upper bound on the bytes mapped by one segment. */
+    private static final int MAX_SEGMENT_BYTES = 1 << 30;
+
+    /** An immutable snapshot of the mapped segments. */
+    private static class Mapping {
+        final MappedByteBuffer[] segments;
+        final long length;
+
+        Mapping(MappedByteBuffer[] segments, long length) {
+            this.segments = segments;
+            this.length = length;
+        }
+    }
+
+    private final FileHandle handle;
+    private final int segmentSize;
+    private volatile Mapping mapping;
+
+    /**
+     * Create a mapping of handle's file for pages of pageSize bytes. Nothing
+     * is mapped until the first slice is requested.
+     */
+    public MappedFile(FileHandle handle, int pageSize) {
+        this(handle, pageSize, MAX_SEGMENT_BYTES);
+    }
+
+    /**
+     * Create a mapping as above whose segments hold at most maxSegmentBytes,
+     * rounded down to whole pages.
+     */
+    public MappedFile(FileHandle handle, int pageSize, int maxSegmentBytes) {
+        this.handle = handle;
+        this.segmentSize = Math.max(1, maxSegmentBytes / pageSize) * pageSize;
+        this.mapping = new Mapping(new MappedByteBuffer[0], 0);
+    }
+
+    /** Return the number of segments currently mapped. */
+    public int numSegments() {
+        return mapping.segments.length;
+    }
+
+    /**
+     * Return a read-only view of length bytes at position. The view shares
+     * memory with the mapping; it does not copy. The range must not cross a
+     * segment boundary, which page-aligned ranges of at most a page never do.
+     *
+     * @throws IllegalArgumentException if the range lies past the end of the file
+     */
+    public ByteBuffer slice(long position, int length) throws IOException {
+        Mapping m = mapping;
+        if (position + length > m.length) {
+            m = remap(position + length);
+        }
+        int segment = (int) (position / segmentSize);
+        int offset = (int) (position % segmentSize);
+        if (offset + length > segmentSize) {
+            throw new IllegalArgumentException("range crosses a segment boundary");
+        }
+        ByteBuffer view = m.segments[segment].duplicate();
+        view.limit(offset + length);
+        view.position(offset);
+        return view.slice();
+    }
+
+    /** Extend the mapping to the current end of the file, which must reach needed. */
+    private synchronized Mapping remap(long needed) throws IOException {
+        Mapping m = mapping;
+        if (needed <= m.length) {
+            return m;
+        }
+        long length = handle.length();
+        if (needed > length) {
+            throw new IllegalArgumentException("position " + needed + " is past the end of the file");
+        }
+        FileChannel ch = handle.channel();
+        int numSegments = (int) ((length + segmentSize - 1) / segmentSize);
+        MappedByteBuffer[] segments = Arrays.copyOf(m.segments, numSegments);
+        // keep full segments; remap the old partial tail and map new ones
+        int first = (int) (m.length / segmentSize);
+        for (int i = first; i < numSegments; i++) {
+            long start = (long) i * segmentSize;
+            long size = Math.min(segmentSize, length - start);
+            segments[i] = ch.map(FileChannel.MapMode.READ_ONLY, start, size);
+        }
+        m = new Mapping(segments, length);
+        mapping = m;
+        return m;
+    }
+}
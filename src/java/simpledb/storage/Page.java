@@ -9,8 +9,8 @@ import simpledb.transaction.TransactionId;
  * Pages may be "dirty", indicating that they have been modified since they
  * were last written out to disk.
  *
- * For recovery purposes, pages MUST have a single constructor of the form:
- *     Page(PageId id, byte[] data)
+ * For recovery purposes, the DbFile of a page MUST be able to rebuild it
+ * from its page data with {@link DbFile#decodePage}.
  */
 public interface Page {
 
@@ -0,0 +1,116 @@
+package simpledb.storage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * PageArena keeps raw page images outside of the Java heap, in fixed-size
+ * frames carved out of preallocated direct ByteBuffers. The frame size is
+ * {@link BufferPool#getPageSize()} at the time the arena is created.
+ * <p>
+ * The arena only ever holds clean page images, so dropping an entry is always
+ * safe. When every frame is taken the oldest image is recycled (FIFO).
+ * <p>
+ * The arena does no locking of its own; the owning {@link BufferPool} shard
+ * serializes access to it.
+ */
+public class PageArena {
+
+    /** Largest number of bytes placed in a single direct buffer. */
+    private static final int MAX_CHUNK_BYTES = 1 << 30;
+
+    private final int pageSize;
+    private final int framesPerChunk;
+    private final ByteBuffer[] chunks;
+    private final int capacity;
+
+    /** Resident images in insertion order, so the first entry is the oldest. */
+    private final Map<PageId, Integer> frameOf;
+    private final Deque<Integer> freeFrames;
+
+    /**
+     * Preallocate an arena of numFrames page frames.
+     *
+     * @param numFrames number of page images the arena can hold
+     */
+    public PageArena(int numFrames) {
+        this.pageSize = BufferPool.getPageSize();
+        this.framesPerChunk = Math.max(1, MAX_CHUNK_BYTES / pageSize);
+        int numChunks = (numFrames + framesPerChunk - 1) / framesPerChunk;
+        this.chunks = new ByteBuffer[numChunks];
+        for (int i = 0; i < numChunks; i++) {
+            int frames = Math.min(framesPerChunk, numFrames - i * framesPerChunk);
+            this.chunks[i] = ByteBuffer.allocateDirect(frames * pageSize);
+        }
+        this.capacity = numFrames;
+        this.frameOf = new LinkedHashMap<>();
+        this.freeFrames = new ArrayDeque<>(numFrames);
+        for (int i = 0; i < numFrames; i++) {
+            this.freeFrames.add(i);
+        }
+    }
+
+    /** @return the number of frames in this arena */
+    public int capacity() {
+        return capacity;
+    }
+
+    /** @return the number of page images currently held */
+    public int size() {
+        return frameOf.size();
+    }
+
+    /**
+     * Store a copy of a clean page image, replacing any older image of the same
+     * page and recycling the oldest frame if the arena is full.
+     *
+     * @param pid the page the image belongs to
+     * @param data the page bytes, as produced by {@link Page#getPageData()}
+     */
+    public void put(PageId pid, byte[] data) {
+        if (capacity == 0) return;
+        if (data.length != pageSize) {
+            throw new IllegalArgumentException("page image is " + data.length + " bytes, arena frames are " + pageSize);
+        }
+        Integer frame = frameOf.get(pid);
+        if (frame == null) {
+            if (freeFrames.isEmpty()) {
+                remove(frameOf.keySet().iterator().next());
+            }
+            frame = freeFrames.poll();
+            frameOf.put(pid, frame);
+        }
+        frameBuffer(frame).put(data);
+    }
+
+    /**
+     * Copy the image of pid out of the arena.
+     *
+     * @return the page bytes, or null if the arena holds no image of pid
+     */
+    public byte[] get(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        if (frame == null) return null;
+        byte[] data = new byte[pageSize];
+        frameBuffer(frame).get(data);
+        return data;
+    }
+
+    /** Drop the image of pid, if any, and return its frame to the free list. */
+    public void remove(PageId pid) {
+        Integer frame = frameOf.remove(pid);
+        if (frame == null) return;
+        freeFrames.add(frame);
+    }
+
+    private ByteBuffer frameBuffer(int frame) {
+        ByteBuffer buf = chunks[frame / framesPerChunk].duplicate();
+        int offset = (frame % framesPerChunk) * pageSize;
+        buf.limit(offset + pageSize);
+        buf.position(offset);
+        return buf;
+    }
+}
@@ -0,0 +1,305 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * PageDelta is the change an update makes to a {@link SlottedPage}, as the
+ * log records it in place of whole before and after images: the old and
+ * new values of the page's fixed fields, if they changed, and of every slot
+ * that was inserted, deleted, overwritten or moved. Each distinct slot
+ * value is kept once in a table that the changed slots refer to, old
+ * values first, and slots whose references both step by one are written
+ * as one run, so that entries shifted along the page, as B+ tree entries
+ * are to stay sorted, cost their contents once and a few bytes per run. A
+ * B+ tree split or merge logs as deletes from one page and inserts into the
+ * other.
+ * <p>
+ * Redo sets each changed slot to its new value and undo to its old one,
+ * whatever the page holds, so either can be repeated and applied to the
+ * page as it is on disk, just like installing a whole image.
+ */
+final class PageDelta {
+
+    /** Slot reference meaning "empty". */
+    private static final int EMPTY = 0xffff;
+    /** Most slot values or changed slots a delta can hold. */
+    private static final int MAX_ENTRIES = EMPTY;
+
+    final PageId pid;
+    /** Old and new fixed fields, both empty if they did not change. */
+    private final byte[] fixedBefore;
+    private final byte[] fixedAfter;
+    private final byte[][] values;
+    private final int[] slots;
+    private final int[] before;
+    private final int[] after;
+
+    private PageDelta(PageId pid, byte[] fixedBefore, byte[] fixedAfter, byte[][] values,
+                      int[] slots, int[] before, int[] after) {
+        this.pid = pid;
+        this.fixedBefore = fixedBefore;
+        this.fixedAfter = fixedAfter;
+        this.values = values;
+        this.slots = slots;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * Return the delta that turns before into after, two images of one
+     * {@link SlottedPage}, or null if the page is not slotted or the delta
+     * would not be smaller than the two images.
+     */
+    static PageDelta diff(Page before, Page after) {
+        if (!(before instanceof SlottedPage) || !(after instanceof SlottedPage)) {
+            return null;
+        }
+        SlotLayout layout = ((SlottedPage) after).getSlotLayout();
+        if (layout.getNumSlots() > MAX_ENTRIES) {
+            return null;
+        }
+        byte[] b = before.getPageData();
+        byte[] a = after.getPageData();
+        if (b.length != a.length) {
+            return null;
+        }
+
+        int fixed = layout.getFixedLength();
+        boolean fixedChanged = !Arrays.equals(Arrays.copyOf(b, fixed), Arrays.copyOf(a, fixed));
+        List<Integer> changed = new ArrayList<>();
+        List<byte[]> oldValues = new ArrayList<>();
+        List<byte[]> newValues = new ArrayList<>();
+        for (int i = 0; i < layout.getNumSlots(); i++) {
+            byte[] old = layout.isSlotUsed(b, i) ? layout.getSlot(b, i) : null;
+            byte[] now = layout.isSlotUsed(a, i) ? layout.getSlot(a, i) : null;
+            if (old == null ? now == null : Arrays.equals(old, now)) {
+                continue;
+            }
+            changed.add(i);
+            oldValues.add(old);
+            newValues.add(now);
+        }
+        if (changed.size() >= MAX_ENTRIES) {
+            return null;
+        }
+
+        // old values first, so that a shifted entry's new reference is an old one
+        Map<ByteBuffer, Integer> refs = new HashMap<>();
+        List<byte[]> values = new ArrayList<>();
+        int[] slots = new int[changed.size()];
+        int[] olds = new int[changed.size()];
+        int[] news = new int[changed.size()];
+        for (int k = 0; k < slots.length; k++) {
+            slots[k] = changed.get(k);
+            olds[k] = ref(oldValues.get(k), refs, values);
+        }
+        for (int k = 0; k < slots.length; k++) {
+            news[k] = ref(newValues.get(k), refs, values);
+        }
+        if (values.size() >= MAX_ENTRIES) {
+            return null;
+        }
+        PageDelta delta = new PageDelta(after.getId(),
+                fixedChanged ? Arrays.copyOf(b, fixed) : new byte[0],
+                fixedChanged ? Arrays.copyOf(a, fixed) : new byte[0],
+                values.toArray(new byte[0][]), slots, olds, news);
+        if (delta.size() >= b.length + a.length) {
+            return null;
+        }
+        // bytes the layout does not describe, such as padding, must not have changed
+        if (!Arrays.equals(delta.apply(layout, b, true), a) || !Arrays.equals(delta.apply(layout, a, false), b)) {
+            return null;
+        }
+        return delta;
+    }
+
+    private static int ref(byte[] value, Map<ByteBuffer, Integer> refs, List<byte[]> values) {
+        if (value == null) {
+            return EMPTY;
+        }
+        return refs.computeIfAbsent(ByteBuffer.wrap(value), k -> {
+            values.add(value);
+            return values.size() - 1;
+        });
+    }
+
+    /** Return page with this delta redone. */
+    Page redo(Page page) throws IOException {
+        return apply(page, true);
+    }
+
+    /** Return page with this delta undone. */
+    Page undo(Page page) throws IOException {
+        return apply(page, false);
+    }
+
+    private Page apply(Page page, boolean redo) throws IOException {
+        if (!(page instanceof SlottedPage)) {
+            throw new IOException("cannot apply a slot delta to " + pid + ", which is not slotted");
+        }
+        byte[] image = apply(((SlottedPage) page).getSlotLayout(), page.getPageData(), redo);
+        return Database.getCatalog().getDatabaseFile(pid.getTableId()).decodePage(pid, image);
+    }
+
+    private byte[] apply(SlotLayout layout, byte[] image, boolean redo) {
+        byte[] result = image.clone();
+        byte[] fixed = redo ? fixedAfter : fixedBefore;
+        System.arraycopy(fixed, 0, result, 0, fixed.length);
+        int[] refs = redo ? after : before;
+        for (int k = 0; k < slots.length; k++) {
+            layout.setSlot(result, slots[k], refs[k] == EMPTY ? null : values[refs[k]]);
+        }
+        return result;
+    }
+
+    /** Return the delta that undoes this one, for a compensation record. */
+    PageDelta inverse() {
+        return new PageDelta(pid, fixedAfter, fixedBefore, values, slots, after, before);
+    }
+
+    /** Return the number of bytes {@link #write} writes. */
+    int size() {
+        int size = 2 + 2 * fixedBefore.length + 2 + 2;
+        for (int v = 0; v < values.length; v = endOfGroup(v)) {
+            size += 4;
+        }
+        for (byte[] v : values) {
+            size += v.length;
+        }
+        for (int k = 0; k < slots.length; k = endOfRun(k)) {
+            size += 8;
+        }
+        return size;
+    }
+
+    /** Return the index after the values of the same length as value v and following it. */
+    private int endOfGroup(int v) {
+        int end = v + 1;
+        while (end < values.length && end - v < MAX_ENTRIES && values[end].length == values[v].length) {
+            end++;
+        }
+        return end;
+    }
+
+    /**
+     * Return the index after the changed slots that follow slot k and whose
+     * slot and references each step by one from the previous one.
+     */
+    private int endOfRun(int k) {
+        int end = k + 1;
+        while (end < slots.length && end - k < MAX_ENTRIES && slots[end] == slots[end - 1] + 1
+                && before[end] == step(before[end - 1]) && after[end] == step(after[end - 1])) {
+            end++;
+        }
+        return end;
+    }
+
+    private static int step(int ref) {
+        return ref == EMPTY ? EMPTY : ref + 1;
+    }
+
+    /*  delta data is:
+        short   n, length of the fixed fields if they changed, else 0
+        byte[]  n old and n new bytes of the fixed fields
+        short   number of groups of slot values
+        each    short length and short count of the values, byte[] values
+        short   number of runs of changed slots
+        each    short first slot, short count, short old and short new value
+                of the first slot, 0xffff if empty; the slot and the
+                values of each next slot are one more, or still empty
+    */
+    void write(DataOutput out) throws IOException {
+        out.writeShort(fixedBefore.length);
+        out.write(fixedBefore);
+        out.write(fixedAfter);
+        int groups = 0;
+        for (int v = 0; v < values.length; v = endOfGroup(v)) {
+            groups++;
+        }
+        out.writeShort(groups);
+        for (int v = 0; v < values.length; ) {
+            int end = endOfGroup(v);
+            out.writeShort(values[v].length);
+            out.writeShort(end - v);
+            for (; v < end; v++) {
+                out.write(values[v]);
+            }
+        }
+        int runs = 0;
+        for (int k = 0; k < slots.length; k = endOfRun(k)) {
+            runs++;
+        }
+        out.writeShort(runs);
+        for (int k = 0; k < slots.length; ) {
+            int end = endOfRun(k);
+            out.writeShort(slots[k]);
+            out.writeShort(end - k);
+            out.writeShort(before[k]);
+            out.writeShort(after[k]);
+            k = end;
+        }
+    }
+
+    /** Read the delta of pid that {@link #write} wrote. */
+    static PageDelta read(DataInput in, PageId pid) throws IOException {
+        byte[] fixedBefore = new byte[in.readUnsignedShort()];
+        in.readFully(fixedBefore);
+        byte[] fixedAfter = new byte[fixedBefore.length];
+        in.readFully(fixedAfter);
+        List<byte[]> values = new ArrayList<>();
+        for (int groups = in.readUnsignedShort(); groups > 0; groups--) {
+            int length = in.readUnsignedShort();
+            for (int count = in.readUnsignedShort(); count > 0; count--) {
+                byte[] v = new byte[length];
+                in.readFully(v);
+                values.add(v);
+            }
+        }
+        List<int[]> changes = new ArrayList<>();
+        for (int runs = in.readUnsignedShort(); runs > 0; runs--) {
+            int slot = in.readUnsignedShort();
+            int count = in.readUnsignedShort();
+            int old = in.readUnsignedShort();
+            int now = in.readUnsignedShort();
+            for (; count > 0; count--) {
+                changes.add(new int[] { slot++, old, now });
+                old = step(old);
+                now = step(now);
+            }
+        }
+        int[] slots = new int[changes.size()];
+        int[] before = new int[changes.size()];
+        int[] after = new int[changes.size()];
+        for (int k = 0; k < slots.length; k++) {
+            slots[k] = changes.get(k)[0];
+            before[k] = changes.get(k)[1];
+            after[k] = changes.get(k)[2];
+        }
+        return new PageDelta(pid, fixedBefore, fixedAfter, values.toArray(new byte[0][]), slots, before, after);
+    }
+
+    /** Skip a delta that {@link #write} wrote. */
+    static void skip(DataInput in) throws IOException {
+        LogFile.skipFully(in, 2 * in.readUnsignedShort());
+        for (int groups = in.readUnsignedShort(); groups > 0; groups--) {
+            int length = in.readUnsignedShort();
+            LogFile.skipFully(in, length * in.readUnsignedShort());
+        }
+        LogFile.skipFully(in, 8 * in.readUnsignedShort());
+    }
+
+    /** Return the number of changed slots. */
+    int getChangedSlots() {
+        return slots.length;
+    }
+}
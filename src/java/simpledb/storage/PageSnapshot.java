@@ -0,0 +1,128 @@
+package simpledb.storage;
+
+import java.io.*;
+import java.lang.reflect.Constructor;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * PageSnapshot reads and writes the list of pages resident in a
+ * {@link BufferPool}, so that a restarted pool can read its hot set back in
+ * instead of refilling one miss at a time.
+ * <p>
+ * A snapshot holds page ids and reference bits only, never page contents:
+ * the pages are read from their files again when it is loaded, so a stale
+ * snapshot costs some useless reads but can never return stale data. The
+ * file is replaced atomically, so a crash while writing leaves the previous
+ * snapshot in place.
+ * <p>
+ * The format is a magic number, the names of the page id classes used, and
+ * one record per page: class index, reference bit and the ints of
+ * {@link PageId#serialize()}. Page ids are rebuilt through the class's
+ * constructor taking that many ints, as the log does.
+ */
+class PageSnapshot {
+    private static final int MAGIC = 0x50475331; // "PGS1"
+
+    /** A page that was resident when the snapshot was taken. */
+    static final class Entry {
+        final PageId pid;
+        final boolean referenced;
+
+        Entry(PageId pid, boolean referenced) {
+            this.pid = pid;
+            this.referenced = referenced;
+        }
+    }
+
+    /** Orders pages the way they lie on disk: by table, then page number. */
+    static final Comparator<Entry> BY_LOCATION = (a, b) -> {
+        int[] x = a.pid.serialize();
+        int[] y = b.pid.serialize();
+        for (int i = 0; i < Math.min(x.length, y.length); i++) {
+            if (x[i] != y[i]) {
+                return Integer.compare(x[i], y[i]);
+            }
+        }
+        return Integer.compare(x.length, y.length);
+    };
+
+    private PageSnapshot() {
+    }
+
+    /** Replace the snapshot in file with entries. */
+    static void write(File file, List<Entry> entries) throws IOException {
+        List<String> classes = new ArrayList<>();
+        Map<Class<?>, Integer> classIndex = new HashMap<>();
+        for (Entry e : entries) {
+            if (!classIndex.containsKey(e.pid.getClass())) {
+                classIndex.put(e.pid.getClass(), classes.size());
+                classes.add(e.pid.getClass().getName());
+            }
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(classes.size());
+            for (String name : classes) {
+                out.writeUTF(name);
+            }
+            out.writeInt(entries.size());
+            for (Entry e : entries) {
+                int[] ints = e.pid.serialize();
+                out.writeByte(classIndex.get(e.pid.getClass()));
+                out.writeBoolean(e.referenced);
+                out.writeByte(ints.length);
+                for (int i : ints) {
+                    out.writeInt(i);
+                }
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Read the snapshot in file.
+     *
+     * @return the pages it lists, or an empty list if there is no snapshot
+     * @throws IOException if the file is not a readable snapshot
+     */
+    static List<Entry> read(File file) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        if (!file.exists()) {
+            return entries;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a page snapshot");
+            }
+            String[] classes = new String[in.readInt()];
+            for (int i = 0; i < classes.length; i++) {
+                classes[i] = in.readUTF();
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = classes[in.readUnsignedByte()];
+                boolean referenced = in.readBoolean();
+                Object[] args = new Object[in.readUnsignedByte()];
+                for (int j = 0; j < args.length; j++) {
+                    args[j] = in.readInt();
+                }
+                entries.add(new Entry(newPageId(name, args), referenced));
+            }
+        }
+        return entries;
+    }
+
+    private static PageId newPageId(String className, Object[] args) throws IOException {
+        try {
+            Class<?>[] params = new Class<?>[args.length];
+            Arrays.fill(params, int.class);
+            Constructor<?> c = Class.forName(className).getConstructor(params);
+            return (PageId) c.newInstance(args);
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new IOException("cannot rebuild page id " + className + ": " + e);
+        }
+    }
+}
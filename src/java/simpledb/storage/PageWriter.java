@@ -0,0 +1,62 @@
+package simpledb.storage;
+
+import java.io.IOException;
+
+/**
+ * PageWriter is the background writer of a {@link BufferPool} running in
+ * STEAL / NO-FORCE mode. Every interval it writes back the dirty pages no
+ * running transaction holds a lock on, mostly pages of transactions that
+ * committed without forcing their pages, so that eviction usually finds
+ * clean victims and the log does not have to be replayed far at restart.
+ *
+ * @see BufferPool#setStealNoForce(boolean, long)
+ */
+class PageWriter extends Thread {
+    private final BufferPool pool;
+    private final long intervalMillis;
+    private boolean running = true; // protected by this
+
+    PageWriter(BufferPool pool, long intervalMillis) {
+        super("simpledb-page-writer");
+        this.pool = pool;
+        this.intervalMillis = intervalMillis;
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            synchronized (this) {
+                if (running) {
+                    try {
+                        wait(intervalMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!running) {
+                    return;
+                }
+            }
+            try {
+                pool.writeBackPages();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /** Stop the writer and wait for a write-back in progress to finish. */
+    void shutdown() {
+        // no interrupt, so a write-back in progress is never cut short
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        try {
+            join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
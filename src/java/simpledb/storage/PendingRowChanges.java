@@ -0,0 +1,197 @@
+package simpledb.storage;
+
+import simpledb.common.DbException;
+import simpledb.transaction.TransactionId;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * PendingRowChanges keeps, for every heap page changed under row locking,
+ * the tuples that running transactions have inserted into or deleted from
+ * it, in the order the changes were made. Several transactions may have
+ * changes pending on one page, so a page can be neither written nor rolled
+ * back as a whole; instead its committed image is derived by undoing the
+ * pending changes on a copy, and an aborting transaction undoes just its
+ * own rows. Row locks keep a slot from being changed by two running
+ * transactions, so undoing one transaction's changes never disturbs
+ * another's.
+ *
+ * @Threadsafe the changes of a page are guarded by the latch of its
+ * {@link BufferPool.Frame}, which every method takes
+ */
+class PendingRowChanges {
+
+    /** One inserted or deleted tuple. */
+    private static final class Change {
+        final TransactionId transactionId;
+        final Tuple tuple;
+        final int slot;
+        final boolean inserted;
+
+        Change(TransactionId transactionId, Tuple tuple, boolean inserted) {
+            this.transactionId = transactionId;
+            this.tuple = tuple;
+            this.slot = tuple.getRecordId().getTupleNumber();
+            this.inserted = inserted;
+        }
+
+        /** Reverse this change on page. */
+        void undo(HeapPage page) {
+            if (inserted) {
+                page.clearSlot(slot);
+                return;
+            }
+            try {
+                page.insertTuple(tuple, slot);
+            } catch (DbException e) {
+                // the deleter's row lock kept the slot free
+                throw new IllegalStateException("cannot restore " + tuple.getRecordId(), e);
+            }
+        }
+    }
+
+    private final Map<PageId, List<Change>> changes = new ConcurrentHashMap<>();
+
+    /**
+     * Record that transactionId has just inserted tuple into the page of
+     * frame, or deleted it if inserted is false. Call while still holding
+     * the exclusive latch taken for the change, so that no image of the page
+     * shows the change without it being recorded.
+     */
+    void record(BufferPool.Frame frame, TransactionId transactionId, Tuple tuple, boolean inserted) {
+        assert frame.isLatchedExclusive();
+        changes.computeIfAbsent(frame.getPageId(), k -> new ArrayList<>())
+                .add(new Change(transactionId, tuple, inserted));
+    }
+
+    /** Return true if transactionId has changes pending on the page of frame. */
+    boolean contains(BufferPool.Frame frame, TransactionId transactionId) {
+        frame.latchShared();
+        try {
+            List<Change> list = changes.get(frame.getPageId());
+            if (list != null) {
+                for (Change c : list) {
+                    if (c.transactionId.equals(transactionId)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        } finally {
+            frame.unlatchShared();
+        }
+    }
+
+    /** Return a transaction other than exclude with changes pending on the page of frame, or null if there is none. */
+    TransactionId otherWriter(BufferPool.Frame frame, TransactionId exclude) {
+        frame.latchShared();
+        try {
+            List<Change> list = changes.get(frame.getPageId());
+            if (list != null) {
+                for (Change c : list) {
+                    if (!c.transactionId.equals(exclude)) {
+                        return c.transactionId;
+                    }
+                }
+            }
+            return null;
+        } finally {
+            frame.unlatchShared();
+        }
+    }
+
+    /** Forget transactionId's changes to the page of frame, which have become committed. */
+    void forget(BufferPool.Frame frame, TransactionId transactionId) {
+        frame.latchExclusive();
+        try {
+            List<Change> list = changes.get(frame.getPageId());
+            if (list != null) {
+                list.removeIf(c -> c.transactionId.equals(transactionId));
+                if (list.isEmpty()) {
+                    changes.remove(frame.getPageId());
+                }
+            }
+        } finally {
+            frame.unlatchExclusive();
+        }
+    }
+
+    /** Undo transactionId's changes to the page of frame, newest first, and forget them. */
+    void rollback(BufferPool.Frame frame, TransactionId transactionId) {
+        frame.latchExclusive();
+        try {
+            HeapPage page = (HeapPage) frame.getPage();
+            List<Change> list = changes.get(page.getId());
+            if (list == null) {
+                return;
+            }
+            for (int i = list.size() - 1; i >= 0; i--) {
+                Change c = list.get(i);
+                if (c.transactionId.equals(transactionId)) {
+                    c.undo(page);
+                    list.remove(i);
+                }
+            }
+            if (list.isEmpty()) {
+                changes.remove(page.getId());
+            }
+        } finally {
+            frame.unlatchExclusive();
+        }
+    }
+
+    /**
+     * Return the tuples of the page of frame that transactionId may read:
+     * the committed ones plus its own changes, in slot order. Only a page
+     * with changes pending is copied.
+     */
+    List<Tuple> visibleTuples(BufferPool.Frame frame, TransactionId transactionId) throws IOException {
+        List<Tuple> tuples = new ArrayList<>();
+        frame.latchShared();
+        try {
+            if (!changes.containsKey(frame.getPageId())) {
+                ((HeapPage) frame.getPage()).iterator().forEachRemaining(tuples::add);
+                return tuples;
+            }
+        } finally {
+            frame.unlatchShared();
+        }
+        committedImage(frame, transactionId).iterator().forEachRemaining(tuples::add);
+        return tuples;
+    }
+
+    /**
+     * Return a copy of the page of frame with the pending changes of every
+     * transaction but keep undone: its committed contents plus, if keep is
+     * not null, keep's own changes.
+     */
+    HeapPage committedImage(BufferPool.Frame frame, TransactionId keep) throws IOException {
+        HeapPage page;
+        byte[] data;
+        List<Change> undo = new ArrayList<>();
+        frame.latchShared();
+        try {
+            page = (HeapPage) frame.getPage();
+            data = page.getPageData();
+            List<Change> list = changes.get(page.getId());
+            if (list != null) {
+                for (Change c : list) {
+                    if (!c.transactionId.equals(keep)) {
+                        undo.add(c);
+                    }
+                }
+            }
+        } finally {
+            frame.unlatchShared();
+        }
+        HeapPage image = new HeapPage(page.getId(), data);
+        for (int i = undo.size() - 1; i >= 0; i--) {
+            undo.get(i).undo(image);
+        }
+        return image;
+    }
+}
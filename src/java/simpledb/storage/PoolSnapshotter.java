@@ -0,0 +1,73 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * PoolSnapshotter is the warm-restart thread of a {@link BufferPool}. It
+ * first reads back the pages listed in the pool's snapshot file, while
+ * queries are already being served, and then rewrites the snapshot every
+ * interval so that the next restart finds a recent hot set.
+ *
+ * @see BufferPool#setWarmRestart(File, long)
+ */
+class PoolSnapshotter extends Thread {
+    private final BufferPool pool;
+    private final File file;
+    private final long intervalMillis;
+    private boolean running = true; // protected by this
+
+    PoolSnapshotter(BufferPool pool, File file, long intervalMillis) {
+        super("simpledb-pool-snapshotter");
+        this.pool = pool;
+        this.file = file;
+        this.intervalMillis = intervalMillis;
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        try {
+            pool.loadResidentPages(file);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        while (true) {
+            synchronized (this) {
+                if (running) {
+                    try {
+                        wait(intervalMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!running) {
+                    return;
+                }
+            }
+            try {
+                pool.saveResidentPages(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /** Stop the thread, wait for it to finish, and take a last snapshot. */
+    void shutdown() {
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        try {
+            join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            pool.saveResidentPages(file);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
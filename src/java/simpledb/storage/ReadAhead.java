@@ -0,0 +1,137 @@
+package simpledb.storage;
+
+import simpledb.transaction.TransactionId;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ReadAhead prefetches pages into a {@link BufferPool} on background threads,
+ * so that a scan finds its next pages already resident instead of stalling
+ * on a read for every page.
+ * <p>
+ * Heap file scans are detected: once a transaction reads consecutive pages of
+ * a heap file, the next pages of that file are prefetched, with a window that
+ * doubles on every further sequential read up to a maximum and collapses on
+ * the first non-sequential one. Access methods that know where they go next,
+ * such as a B+ tree scan following right-sibling pointers, ask for pages
+ * directly through {@link BufferPool#prefetch}.
+ * <p>
+ * A miss on a page that is being prefetched waits for the prefetch instead of
+ * reading the page a second time. Requests beyond what the prefetch threads
+ * can queue are dropped; read-ahead is only a hint.
+ */
+class ReadAhead {
+    /** Largest number of prefetch requests waiting for a thread. */
+    private static final int MAX_QUEUED = 256;
+    private static final int THREADS = 2;
+
+    /** Prefetch threads shared by every pool; they exit when idle. */
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(
+            THREADS, THREADS, 5, TimeUnit.SECONDS, new LinkedBlockingQueue<>(MAX_QUEUED), r -> {
+                Thread t = new Thread(r, "simpledb-read-ahead");
+                t.setDaemon(true);
+                return t;
+            });
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * The window, in pages, named by the system property
+     * simpledb.storage.ReadAhead.window, or 0 (no read-ahead) if unset.
+     */
+    static int windowFromProperty() {
+        String window = System.getProperty("simpledb.storage.ReadAhead.window");
+        return window == null ? 0 : Integer.parseInt(window.trim());
+    }
+
+    /** A sequential stream of one transaction through one heap file. */
+    private static class Stream {
+        int lastPage = -2;
+        int window;
+        /** First page not yet requested. */
+        int nextToFetch;
+    }
+
+    private final BufferPool pool;
+    private final int maxWindow;
+    private final Map<PageId, CompletableFuture<Void>> inFlight = new ConcurrentHashMap<>();
+    private final Map<TransactionId, Map<Integer, Stream>> streams = new ConcurrentHashMap<>();
+
+    ReadAhead(BufferPool pool, int maxWindow) {
+        this.pool = pool;
+        this.maxWindow = maxWindow;
+    }
+
+    int maxWindow() {
+        return maxWindow;
+    }
+
+    /**
+     * Note that tid read page pageNo of the heap file tableId, which has
+     * numPages pages, and prefetch ahead of it if tid is scanning the file.
+     */
+    void accessed(TransactionId tid, int tableId, int pageNo, int numPages) {
+        Stream s = streams.computeIfAbsent(tid, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(tableId, k -> new Stream());
+        int from;
+        int to;
+        synchronized (s) {
+            if (pageNo != s.lastPage + 1) {
+                s.lastPage = pageNo;
+                s.window = 0;
+                s.nextToFetch = pageNo + 1;
+                return;
+            }
+            s.lastPage = pageNo;
+            s.window = Math.min(maxWindow, Math.max(2, s.window * 2));
+            from = Math.max(s.nextToFetch, pageNo + 1);
+            to = Math.min(numPages, pageNo + 1 + s.window);
+            s.nextToFetch = Math.max(s.nextToFetch, to);
+        }
+        for (int i = from; i < to; i++) {
+            prefetch(new HeapPageId(tableId, i));
+        }
+    }
+
+    /** Forget the streams of a finished transaction. */
+    void forget(TransactionId tid) {
+        streams.remove(tid);
+    }
+
+    /** Load pid into the pool in the background, unless it is already on its way. */
+    void prefetch(PageId pid) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        if (inFlight.putIfAbsent(pid, done) != null) {
+            return;
+        }
+        try {
+            EXECUTOR.execute(() -> {
+                try {
+                    pool.loadAhead(pid);
+                } finally {
+                    inFlight.remove(pid);
+                    done.complete(null);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(pid);
+            done.complete(null);
+        }
+    }
+
+    /** Wait until a prefetch of pid in progress, if any, has finished. */
+    void await(PageId pid) {
+        CompletableFuture<Void> done = inFlight.get(pid);
+        if (done != null) {
+            done.join();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package simpledb.storage;
+
+import java.util.function.Predicate;
+
+/**
+ * ReplacementPolicy decides which resident page a {@link BufferPool} shard
+ * gives up when it needs room for another one. Each shard owns one policy
+ * instance sized to the shard's capacity.
+ * <p>
+ * The shard calls {@link #admit}, {@link #evict} and {@link #remove} while
+ * holding its monitor. {@link #access} is called on every page hit without
+ * any shard lock, so implementations must make it safe to run concurrently
+ * with the other methods.
+ *
+ * @see BufferPool
+ */
+public interface ReplacementPolicy {
+
+    /** The replacement policies that ship with SimpleDb. */
+    enum Type {
+        CLOCK, LRU_K, TWO_Q, ARC;
+
+        /** Create a policy of this type for a pool of capacity frames. */
+        public ReplacementPolicy create(int capacity) {
+            switch (this) {
+            case LRU_K:
+                return new LruKPolicy(capacity, LruKPolicy.DEFAULT_K);
+            case TWO_Q:
+                return new TwoQueuePolicy(capacity);
+            case ARC:
+                return new ArcPolicy(capacity);
+            default:
+                return new ClockPolicy(capacity);
+            }
+        }
+
+        /**
+         * The policy named by the system property simpledb.storage.ReplacementPolicy
+         * (for example -Dsimpledb.storage.ReplacementPolicy=ARC), or CLOCK if unset.
+         */
+        public static Type fromProperty() {
+            String name = System.getProperty("simpledb.storage.ReplacementPolicy");
+            return name == null ? CLOCK : valueOf(name.trim().toUpperCase());
+        }
+    }
+
+    /**
+     * A page that was not resident has been brought into the pool. The
+     * caller evicts first when its shard is full, but a shard that borrows
+     * frames from others may come to hold more pages than the capacity the
+     * policy was created for.
+     */
+    void admit(PageId pid);
+
+    /** A resident page has been accessed. */
+    void access(PageId pid);
+
+    /**
+     * Choose a resident page to give up and stop tracking it as resident.
+     *
+     * @param incoming the page about to be admitted in the freed frame
+     * @param evictable tells whether a resident page may be evicted right now
+     * @return the evicted page, or null if no resident page is evictable
+     */
+    PageId evict(PageId incoming, Predicate<PageId> evictable);
+
+    /** A page has left the pool for reasons other than eviction; forget it. */
+    void remove(PageId pid);
+
+    /**
+     * Return true if the resident page pid is in the policy's hot set, e.g.
+     * its CLOCK reference bit is set. Used to snapshot the pool so that a
+     * warm restart can favour the pages worth keeping.
+     */
+    default boolean isReferenced(PageId pid) {
+        return false;
+    }
+}
@@ -0,0 +1,91 @@
+package simpledb.storage;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * ReplacementSimulator replays a recorded stream of page accesses against a
+ * {@link ReplacementPolicy} and reports the hit ratio a buffer pool of a given
+ * size would have seen, without doing any I/O.
+ * <p>
+ * A trace is a text file with one access per line, "tableId pageNo". Traces
+ * can be recorded from a live pool with
+ * {@link BufferPool#setAccessTrace(java.util.function.Consumer)} and
+ * {@link #traceWriter(PrintWriter)}.
+ * <p>
+ * Usage: java simpledb.storage.ReplacementSimulator trace-file pool-pages
+ */
+public class ReplacementSimulator {
+
+    /**
+     * Replay trace against policy, as a pool of capacity frames would.
+     *
+     * @return the fraction of accesses that found the page resident
+     */
+    public static double hitRatio(ReplacementPolicy policy, int capacity, Iterable<PageId> trace) {
+        Set<PageId> resident = new HashSet<>();
+        long hits = 0;
+        long accesses = 0;
+        for (PageId pid : trace) {
+            accesses++;
+            if (resident.contains(pid)) {
+                hits++;
+                policy.access(pid);
+                continue;
+            }
+            if (resident.size() >= capacity) {
+                PageId victim = policy.evict(pid, p -> true);
+                resident.remove(victim);
+            }
+            resident.add(pid);
+            policy.admit(pid);
+        }
+        return accesses == 0 ? 0.0 : (double) hits / accesses;
+    }
+
+    /** Return a trace consumer that appends every access to out in trace file format. */
+    public static Consumer<PageId> traceWriter(final PrintWriter out) {
+        return pid -> {
+            synchronized (out) {
+                out.println(pid.getTableId() + " " + pid.getPageNumber());
+            }
+        };
+    }
+
+    /** Read a trace file written in "tableId pageNo" format. */
+    public static List<PageId> readTrace(File f) throws IOException {
+        List<PageId> trace = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new FileReader(f))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) continue;
+                String[] parts = line.split("\\s+");
+                trace.add(new HeapPageId(Integer.parseInt(parts[0]), Integer.parseInt(parts[1])));
+            }
+        }
+        return trace;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: java simpledb.storage.ReplacementSimulator trace-file pool-pages");
+            System.exit(1);
+        }
+        List<PageId> trace = readTrace(new File(args[0]));
+        int capacity = Integer.parseInt(args[1]);
+        System.out.println(trace.size() + " accesses, " + capacity + " frames");
+        for (ReplacementPolicy.Type type : ReplacementPolicy.Type.values()) {
+            double ratio = hitRatio(type.create(capacity), capacity, trace);
+            System.out.printf("%-6s hit ratio %.4f%n", type, ratio);
+        }
+    }
+}
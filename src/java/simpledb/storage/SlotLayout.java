@@ -0,0 +1,116 @@
+package simpledb.storage;
+
+import java.util.Arrays;
+
+/**
+ * SlotLayout describes where the slots of a {@link SlottedPage} are in its
+ * page image: fixed fields from offset 0, then a bitmap of used slots, one
+ * bit per slot with slot 0 in the low bit of its first byte, then one or
+ * more arrays holding a fixed number of bytes per slot. A slot's contents
+ * are its bytes in each array, in order; an empty slot is all zeros. Bytes
+ * after the arrays are padding.
+ *
+ * @see PageDelta
+ */
+public final class SlotLayout {
+    private final int fixedLength;
+    private final int numSlots;
+    private final int[] arrayOffsets;
+    private final int[] slotSizes;
+    private final int[] firstSlots;
+
+    /**
+     * Create a layout with a single array of slots, each slotSize bytes,
+     * right after the bitmap.
+     *
+     * @param fixedLength the number of bytes of fixed fields before the bitmap
+     * @param numSlots the number of slots
+     * @param slotSize the number of bytes of each slot
+     */
+    public SlotLayout(int fixedLength, int numSlots, int slotSize) {
+        this(fixedLength, numSlots, new int[] { slotSize }, new int[] { 0 });
+    }
+
+    /**
+     * Create a layout whose slots are spread over several consecutive
+     * arrays, the first one right after the bitmap. Array a holds slotSizes[a]
+     * bytes of each slot from firstSlots[a] on, and nothing of the slots
+     * before; the slots an array skips take no room in it.
+     */
+    public SlotLayout(int fixedLength, int numSlots, int[] slotSizes, int[] firstSlots) {
+        this.fixedLength = fixedLength;
+        this.numSlots = numSlots;
+        this.slotSizes = slotSizes.clone();
+        this.firstSlots = firstSlots.clone();
+        this.arrayOffsets = new int[slotSizes.length];
+        int offset = fixedLength + getBitmapLength();
+        for (int a = 0; a < slotSizes.length; a++) {
+            arrayOffsets[a] = offset;
+            offset += (numSlots - firstSlots[a]) * slotSizes[a];
+        }
+    }
+
+    /** Return the number of bytes of fixed fields at the start of the page. */
+    public int getFixedLength() {
+        return fixedLength;
+    }
+
+    public int getNumSlots() {
+        return numSlots;
+    }
+
+    int getBitmapLength() {
+        return (numSlots + 7) / 8;
+    }
+
+    /** Return true if slot i is used in image. */
+    boolean isSlotUsed(byte[] image, int i) {
+        return (image[fixedLength + i / 8] & (1 << (i % 8))) != 0;
+    }
+
+    /** Return the contents of slot i in image. */
+    byte[] getSlot(byte[] image, int i) {
+        byte[] slot = new byte[getSlotLength(i)];
+        int n = 0;
+        for (int a = 0; a < slotSizes.length; a++) {
+            if (i >= firstSlots[a]) {
+                System.arraycopy(image, arrayOffsets[a] + (i - firstSlots[a]) * slotSizes[a], slot, n, slotSizes[a]);
+                n += slotSizes[a];
+            }
+        }
+        return slot;
+    }
+
+    /** Set slot i of image to contents, or mark it empty and zero it if contents is null. */
+    void setSlot(byte[] image, int i, byte[] contents) {
+        int bit = 1 << (i % 8);
+        if (contents == null) {
+            image[fixedLength + i / 8] &= ~bit;
+        } else {
+            image[fixedLength + i / 8] |= bit;
+        }
+        int n = 0;
+        for (int a = 0; a < slotSizes.length; a++) {
+            if (i >= firstSlots[a]) {
+                int offset = arrayOffsets[a] + (i - firstSlots[a]) * slotSizes[a];
+                if (contents == null) {
+                    Arrays.fill(image, offset, offset + slotSizes[a], (byte) 0);
+                } else {
+                    System.arraycopy(contents, n, image, offset, slotSizes[a]);
+                }
+                n += slotSizes[a];
+            }
+        }
+    }
+
+    /** Return the number of bytes of slot i. */
+    int getSlotLength(int i) {
+        int length = 0;
+        for (int a = 0; a < slotSizes.length; a++) {
+            if (i >= firstSlots[a]) {
+                length += slotSizes[a];
+            }
+        }
+        return length;
+    }
+}
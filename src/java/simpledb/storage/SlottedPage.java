@@ -0,0 +1,15 @@
+package simpledb.storage;
+
+/**
+ * A page whose image keeps its records in numbered slots of fixed size, as
+ * described by its {@link SlotLayout}. The log records a change to such a
+ * page as the slots it inserted, deleted or moved, rather than as whole
+ * before and after images.
+ *
+ * @see PageDelta
+ */
+public interface SlottedPage extends Page {
+
+    /** Return the layout of this page's image. */
+    SlotLayout getSlotLayout();
+}
@@ -0,0 +1,462 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * StorageMetrics counts what the buffer pool and the table files do: page
+ * hits and misses, evictions and failed evictions, dirty pages written out,
+ * page reads and writes per table, bytes moved and the latency of each page
+ * I/O, and how many log forces commits take. There is one instance per process, shared by every buffer pool and
+ * file, so the counters survive {@link Database#resetBufferPool}.
+ * <p>
+ * Every counter is a {@link LongAdder}, so recording a hit from many threads
+ * at once touches different cells instead of one contended word. Reading is
+ * the expensive side: {@link #snapshot()} sums every cell, and the JMX bean
+ * registered as {@value #OBJECT_NAME} does the same per attribute.
+ * <p>
+ * Counters only grow; measure an interval by subtracting two snapshots with
+ * {@link Snapshot#since}.
+ */
+public class StorageMetrics implements StorageMetricsMXBean {
+
+    /** The JMX name the process-wide instance is registered under. */
+    public static final String OBJECT_NAME = "simpledb:type=StorageMetrics";
+
+    /**
+     * Number of latency buckets. Bucket 0 counts I/Os under 1 microsecond,
+     * bucket i those from 2^(i-1) up to 2^i microseconds, and the last
+     * bucket everything slower.
+     */
+    public static final int LATENCY_BUCKETS = 24;
+
+    private static final StorageMetrics INSTANCE = new StorageMetrics();
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+        } catch (JMException | SecurityException e) {
+            // e.g. registered by another class loader; the counters still work
+        }
+    }
+
+    /** Return the process-wide metrics. */
+    public static StorageMetrics get() {
+        return INSTANCE;
+    }
+
+    /** Page reads and writes of one table. */
+    private static final class TableCounters {
+        final LongAdder reads = new LongAdder();
+        final LongAdder writes = new LongAdder();
+    }
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder evictFailures = new LongAdder();
+    private final LongAdder dirtyPageWrites = new LongAdder();
+    private final LongAdder pageReads = new LongAdder();
+    private final LongAdder pageWrites = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder commits = new LongAdder();
+    private final LongAdder logForces = new LongAdder();
+    private final Map<Integer, TableCounters> tables = new ConcurrentHashMap<>();
+    private final LongAdder[] readLatency = newHistogram();
+    private final LongAdder[] writeLatency = newHistogram();
+
+    private StorageMetrics() {
+    }
+
+    private static LongAdder[] newHistogram() {
+        LongAdder[] buckets = new LongAdder[LATENCY_BUCKETS];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+        return buckets;
+    }
+
+    /** Return the bucket an I/O of the given duration falls in. */
+    static int bucket(long nanos) {
+        long micros = nanos / 1000;
+        return Math.min(LATENCY_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+    private TableCounters table(int tableId) {
+        TableCounters t = tables.get(tableId);
+        return t != null ? t : tables.computeIfAbsent(tableId, k -> new TableCounters());
+    }
+
+    void hit() {
+        hits.increment();
+    }
+
+    void miss() {
+        misses.increment();
+    }
+
+    void eviction() {
+        evictions.increment();
+    }
+
+    void evictFailure() {
+        evictFailures.increment();
+    }
+
+    void dirtyPageWrite() {
+        dirtyPageWrites.increment();
+    }
+
+    void commit() {
+        commits.increment();
+    }
+
+    void logForce() {
+        logForces.increment();
+    }
+
+    /**
+     * Record that a page of tableId was read from its file.
+     *
+     * @param bytes the size of the page
+     * @param nanos how long the read took
+     */
+    public void pageRead(int tableId, int bytes, long nanos) {
+        pageReads.increment();
+        bytesRead.add(bytes);
+        table(tableId).reads.increment();
+        readLatency[bucket(nanos)].increment();
+    }
+
+    /**
+     * Record that a page of tableId was written to its file.
+     *
+     * @param bytes the size of the page
+     * @param nanos how long the write took
+     */
+    public void pageWritten(int tableId, int bytes, long nanos) {
+        pageWrites.increment();
+        bytesWritten.add(bytes);
+        table(tableId).writes.increment();
+        writeLatency[bucket(nanos)].increment();
+    }
+
+    /** Return the current value of every counter. */
+    public Snapshot snapshot() {
+        Map<Integer, Long> reads = new HashMap<>();
+        Map<Integer, Long> writes = new HashMap<>();
+        for (Map.Entry<Integer, TableCounters> e : tables.entrySet()) {
+            reads.put(e.getKey(), e.getValue().reads.sum());
+            writes.put(e.getKey(), e.getValue().writes.sum());
+        }
+        return new Snapshot(hits.sum(), misses.sum(), evictions.sum(), evictFailures.sum(),
+                dirtyPageWrites.sum(), pageReads.sum(), pageWrites.sum(), bytesRead.sum(), bytesWritten.sum(),
+                commits.sum(), logForces.sum(), reads, writes, sums(readLatency), sums(writeLatency));
+    }
+
+    private static long[] sums(LongAdder[] buckets) {
+        long[] counts = new long[buckets.length];
+        for (int i = 0; i < buckets.length; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+
+    /**
+     * The values of the counters at one point in time. Counters are summed
+     * one after the other while recording goes on, so a snapshot is not an
+     * atomic cut, but each value is exact for some moment during the call.
+     */
+    public static final class Snapshot {
+        private final long hits, misses, evictions, evictFailures, dirtyPageWrites;
+        private final long pageReads, pageWrites, bytesRead, bytesWritten;
+        private final long commits, logForces;
+        private final Map<Integer, Long> tableReads, tableWrites;
+        private final long[] readLatency, writeLatency;
+
+        private Snapshot(long hits, long misses, long evictions, long evictFailures, long dirtyPageWrites,
+                         long pageReads, long pageWrites, long bytesRead, long bytesWritten,
+                         long commits, long logForces, Map<Integer, Long> tableReads, Map<Integer, Long> tableWrites,
+                         long[] readLatency, long[] writeLatency) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.evictFailures = evictFailures;
+            this.dirtyPageWrites = dirtyPageWrites;
+            this.pageReads = pageReads;
+            this.pageWrites = pageWrites;
+            this.bytesRead = bytesRead;
+            this.bytesWritten = bytesWritten;
+            this.commits = commits;
+            this.logForces = logForces;
+            this.tableReads = Collections.unmodifiableMap(tableReads);
+            this.tableWrites = Collections.unmodifiableMap(tableWrites);
+            this.readLatency = readLatency;
+            this.writeLatency = writeLatency;
+        }
+
+        /** Return the counts accumulated between earlier and this snapshot. */
+        public Snapshot since(Snapshot earlier) {
+            return new Snapshot(hits - earlier.hits, misses - earlier.misses, evictions - earlier.evictions,
+                    evictFailures - earlier.evictFailures, dirtyPageWrites - earlier.dirtyPageWrites,
+                    pageReads - earlier.pageReads, pageWrites - earlier.pageWrites,
+                    bytesRead - earlier.bytesRead, bytesWritten - earlier.bytesWritten,
+                    commits - earlier.commits, logForces - earlier.logForces,
+                    minus(tableReads, earlier.tableReads), minus(tableWrites, earlier.tableWrites),
+                    minus(readLatency, earlier.readLatency), minus(writeLatency, earlier.writeLatency));
+        }
+
+        private static Map<Integer, Long> minus(Map<Integer, Long> a, Map<Integer, Long> b) {
+            Map<Integer, Long> diff = new HashMap<>();
+            for (Map.Entry<Integer, Long> e : a.entrySet()) {
+                long d = e.getValue() - b.getOrDefault(e.getKey(), 0L);
+                if (d != 0) {
+                    diff.put(e.getKey(), d);
+                }
+            }
+            return diff;
+        }
+
+        private static long[] minus(long[] a, long[] b) {
+            long[] diff = new long[a.length];
+            for (int i = 0; i < a.length; i++) {
+                diff[i] = a[i] - b[i];
+            }
+            return diff;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        /** Hits over all page requests, or 0 if there were none. */
+        public double getHitRatio() {
+            long requests = hits + misses;
+            return requests == 0 ? 0 : (double) hits / requests;
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+
+        public long getEvictFailures() {
+            return evictFailures;
+        }
+
+        public long getDirtyPageWrites() {
+            return dirtyPageWrites;
+        }
+
+        public long getPageReads() {
+            return pageReads;
+        }
+
+        public long getPageWrites() {
+            return pageWrites;
+        }
+
+        public long getBytesRead() {
+            return bytesRead;
+        }
+
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        public long getCommits() {
+            return commits;
+        }
+
+        public long getLogForces() {
+            return logForces;
+        }
+
+        /** Log forces over commits, or 0 if there were no commits. */
+        public double getLogForcesPerCommit() {
+            return commits == 0 ? 0 : (double) logForces / commits;
+        }
+
+        /** Return the page reads of tableId. */
+        public long getPageReads(int tableId) {
+            return tableReads.getOrDefault(tableId, 0L);
+        }
+
+        /** Return the page writes of tableId. */
+        public long getPageWrites(int tableId) {
+            return tableWrites.getOrDefault(tableId, 0L);
+        }
+
+        /** Return the page reads of every table read, keyed by table id. */
+        public Map<Integer, Long> getTablePageReads() {
+            return tableReads;
+        }
+
+        /** Return the page writes of every table written, keyed by table id. */
+        public Map<Integer, Long> getTablePageWrites() {
+            return tableWrites;
+        }
+
+        /** Return the read latency bucket counts; see {@link StorageMetrics#LATENCY_BUCKETS}. */
+        public long[] getReadLatencyHistogram() {
+            return readLatency.clone();
+        }
+
+        /** Return the write latency bucket counts; see {@link StorageMetrics#LATENCY_BUCKETS}. */
+        public long[] getWriteLatencyHistogram() {
+            return writeLatency.clone();
+        }
+
+        /**
+         * Return an upper bound in microseconds on the given fraction of
+         * the reads, e.g. 0.99 for the 99th percentile, or 0 if there were
+         * no reads.
+         */
+        public long readLatencyPercentileMicros(double fraction) {
+            return percentileMicros(readLatency, fraction);
+        }
+
+        /** Return an upper bound in microseconds on the given fraction of the writes. */
+        public long writeLatencyPercentileMicros(double fraction) {
+            return percentileMicros(writeLatency, fraction);
+        }
+
+        private static long percentileMicros(long[] buckets, double fraction) {
+            long total = 0;
+            for (long n : buckets) {
+                total += n;
+            }
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen > 0 && seen >= fraction * total) {
+                    return i == buckets.length - 1 ? Long.MAX_VALUE : 1L << i;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hits=%d misses=%d evictions=%d evictFailures=%d dirtyPageWrites=%d"
+                            + " pageReads=%d pageWrites=%d bytesRead=%d bytesWritten=%d commits=%d logForces=%d",
+                    hits, misses, evictions, evictFailures, dirtyPageWrites,
+                    pageReads, pageWrites, bytesRead, bytesWritten, commits, logForces);
+        }
+    }
+
+    // StorageMetricsMXBean
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public double getHitRatio() {
+        long h = hits.sum();
+        long requests = h + misses.sum();
+        return requests == 0 ? 0 : (double) h / requests;
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public long getEvictFailures() {
+        return evictFailures.sum();
+    }
+
+    @Override
+    public long getDirtyPageWrites() {
+        return dirtyPageWrites.sum();
+    }
+
+    @Override
+    public long getPageReads() {
+        return pageReads.sum();
+    }
+
+    @Override
+    public long getPageWrites() {
+        return pageWrites.sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getCommits() {
+        return commits.sum();
+    }
+
+    @Override
+    public long getLogForces() {
+        return logForces.sum();
+    }
+
+    @Override
+    public double getLogForcesPerCommit() {
+        long c = commits.sum();
+        return c == 0 ? 0 : (double) logForces.sum() / c;
+    }
+
+    @Override
+    public Map<String, Long> getTablePageReads() {
+        return byTableName(snapshot().getTablePageReads());
+    }
+
+    @Override
+    public Map<String, Long> getTablePageWrites() {
+        return byTableName(snapshot().getTablePageWrites());
+    }
+
+    @Override
+    public long[] getReadLatencyHistogram() {
+        return sums(readLatency);
+    }
+
+    @Override
+    public long[] getWriteLatencyHistogram() {
+        return sums(writeLatency);
+    }
+
+    private static Map<String, Long> byTableName(Map<Integer, Long> counts) {
+        Map<String, Long> named = new TreeMap<>();
+        for (Map.Entry<Integer, Long> e : counts.entrySet()) {
+            String name;
+            try {
+                name = Database.getCatalog().getTableName(e.getKey());
+            } catch (NoSuchElementException ex) {
+                name = String.valueOf(e.getKey());
+            }
+            named.merge(name, e.getValue(), Long::sum);
+        }
+        return named;
+    }
+}
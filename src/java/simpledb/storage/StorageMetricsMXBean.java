@@ -0,0 +1,54 @@
+package simpledb.storage;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link StorageMetrics}, registered as
+ * {@value StorageMetrics#OBJECT_NAME}. Every attribute is read live from the
+ * counters; latency histograms are bucket counts as described in
+ * {@link StorageMetrics#LATENCY_BUCKETS}.
+ */
+public interface StorageMetricsMXBean {
+
+    long getHits();
+
+    long getMisses();
+
+    /** Hits over all page requests, or 0 before the first request. */
+    double getHitRatio();
+
+    long getEvictions();
+
+    /** Times a shard found no clean, unpinned page to evict. */
+    long getEvictFailures();
+
+    /** Dirty pages written out by the buffer pool. */
+    long getDirtyPageWrites();
+
+    long getPageReads();
+
+    long getPageWrites();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    /** Transactions that wrote a commit record. */
+    long getCommits();
+
+    /** Times the log was forced to disk, by commits or before dirty pages were written. */
+    long getLogForces();
+
+    /** Log forces over commits, or 0 before the first commit; below 1 when group commit batches. */
+    double getLogForcesPerCommit();
+
+    /** Page reads per table, keyed by table name (or id, for tables no longer in the catalog). */
+    Map<String, Long> getTablePageReads();
+
+    /** Page writes per table, keyed like {@link #getTablePageReads}. */
+    Map<String, Long> getTablePageWrites();
+
+    long[] getReadLatencyHistogram();
+
+    long[] getWriteLatencyHistogram();
+}
@@ -0,0 +1,99 @@
+package simpledb.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.function.Predicate;
+
+/**
+ * Full 2Q replacement (Johnson and Shasha). New pages enter a small FIFO,
+ * A1in. Pages pushed out of A1in are remembered, without their contents, in
+ * the ghost FIFO A1out; only a page that is requested again while remembered
+ * there is promoted to the main LRU queue, Am. A one-pass scan therefore
+ * cycles through A1in and never reaches the hot pages in Am.
+ */
+public class TwoQueuePolicy implements ReplacementPolicy {
+
+    private final int maxIn;
+    private final int maxOut;
+
+    /** Iteration order of all three sets is oldest first. */
+    private final LinkedHashSet<PageId> a1in;
+    private final LinkedHashSet<PageId> a1out;
+    private final LinkedHashSet<PageId> am;
+
+    /** Use the sizes recommended by the paper: A1in 25%, A1out 50% of capacity. */
+    public TwoQueuePolicy(int capacity) {
+        this(Math.max(1, capacity / 4), Math.max(1, capacity / 2));
+    }
+
+    public TwoQueuePolicy(int maxIn, int maxOut) {
+        this.maxIn = maxIn;
+        this.maxOut = maxOut;
+        this.a1in = new LinkedHashSet<>();
+        this.a1out = new LinkedHashSet<>();
+        this.am = new LinkedHashSet<>();
+    }
+
+    public synchronized void admit(PageId pid) {
+        if (a1out.remove(pid)) {
+            am.add(pid);
+        } else {
+            a1in.add(pid);
+        }
+    }
+
+    public synchronized void access(PageId pid) {
+        if (am.remove(pid)) {
+            am.add(pid);
+        }
+        // a hit in A1in is deliberately ignored: correlated references
+        // right after admission say nothing about long-term popularity
+    }
+
+    public synchronized PageId evict(PageId incoming, Predicate<PageId> evictable) {
+        PageId victim = null;
+        if (a1in.size() > maxIn || am.isEmpty()) {
+            victim = oldest(a1in, evictable);
+        }
+        if (victim == null) {
+            victim = oldest(am, evictable);
+        }
+        if (victim == null) {
+            victim = oldest(a1in, evictable);
+        }
+        if (victim == null) {
+            return null;
+        }
+        if (a1in.remove(victim)) {
+            a1out.add(victim);
+            if (a1out.size() > maxOut) {
+                Iterator<PageId> it = a1out.iterator();
+                it.next();
+                it.remove();
+            }
+        } else {
+            am.remove(victim);
+        }
+        return victim;
+    }
+
+    /** A page is hot once it has been promoted to Am. */
+    public synchronized boolean isReferenced(PageId pid) {
+        return am.contains(pid);
+    }
+
+    public synchronized void remove(PageId pid) {
+        a1in.remove(pid);
+        a1out.remove(pid);
+        am.remove(pid);
+    }
+
+    private static PageId oldest(LinkedHashSet<PageId> queue, Predicate<PageId> evictable) {
+        for (PageId pid : queue) {
+            if (evictable.test(pid)) {
+                return pid;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,153 @@
+package simpledb.storage;
+
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * VersionStore keeps the committed images of heap pages that commits have
+ * replaced while snapshot transactions that may still read them are
+ * running; see {@link BufferPool#beginSnapshot}.
+ * <p>
+ * Commits are numbered in the order they make their pages' new committed
+ * images visible. A snapshot remembers the number of the last commit when
+ * it began, and sees a page as the oldest version that a later commit
+ * replaced, or as the current committed image if no later commit has
+ * changed it. Versions are only kept while snapshots are running, and are
+ * dropped as soon as the oldest running snapshot no longer needs them.
+ * <p>
+ * Under STEAL a running transaction's changes can be written over a
+ * page's committed image on disk, and a page read back from there has
+ * them in its before image. The store then also keeps the committed image
+ * the write replaced, for as long as the writer runs, so that snapshots
+ * still read it and the writer's commit can keep it as a version even if
+ * the page is no longer in the pool.
+ *
+ * @Threadsafe
+ */
+class VersionStore {
+
+    /** A committed image, and the number of the commit that replaced it. */
+    private static final class Version {
+        final long replacedBy;
+        final Page image;
+
+        Version(long replacedBy, Page image) {
+            this.replacedBy = replacedBy;
+            this.image = image;
+        }
+    }
+
+    /** The commit each running snapshot began after. */
+    private final Map<TransactionId, Long> snapshots = new ConcurrentHashMap<>();
+    /** Versions of each page, oldest first. */
+    private final Map<PageId, List<Version>> versions = new HashMap<>();
+    /** Committed images of pages whose image on disk holds changes of a running transaction. */
+    private final Map<PageId, Page> overwritten = new HashMap<>();
+    private long lastCommit;
+
+    /** Start a snapshot for tid that sees every commit made so far. */
+    synchronized void begin(TransactionId tid) {
+        snapshots.put(tid, lastCommit);
+    }
+
+    /** Return true if tid is a running snapshot. */
+    boolean isSnapshot(TransactionId tid) {
+        return snapshots.containsKey(tid);
+    }
+
+    /**
+     * End the snapshot of tid, if it has one, and drop the versions no
+     * remaining snapshot can see.
+     *
+     * @return true if tid was a snapshot
+     */
+    synchronized boolean end(TransactionId tid) {
+        if (snapshots.remove(tid) == null) {
+            return false;
+        }
+        long oldest = Long.MAX_VALUE;
+        for (long s : snapshots.values()) {
+            oldest = Math.min(oldest, s);
+        }
+        final long keepAfter = oldest;
+        Iterator<List<Version>> it = versions.values().iterator();
+        while (it.hasNext()) {
+            List<Version> list = it.next();
+            list.removeIf(v -> v.replacedBy <= keepAfter);
+            if (list.isEmpty()) {
+                it.remove();
+            }
+        }
+        return true;
+    }
+
+    /** Return true if some snapshot is running, so that commits must keep the images they replace. */
+    synchronized boolean hasSnapshots() {
+        return !snapshots.isEmpty();
+    }
+
+    /**
+     * Keep committed, the committed image of pid, as replaced by the commit
+     * in progress. Call before the commit changes the page's committed
+     * image, holding its frame's exclusive latch.
+     */
+    synchronized void keep(PageId pid, Page committed) {
+        versions.computeIfAbsent(pid, k -> new ArrayList<>()).add(new Version(lastCommit + 1, committed));
+    }
+
+    /**
+     * Keep committed, the committed image of pid, because changes of a
+     * running transaction are about to be written over it on disk, unless
+     * an earlier write of that transaction has kept it already.
+     */
+    synchronized void keepOverwritten(PageId pid, Page committed) {
+        overwritten.putIfAbsent(pid, committed);
+    }
+
+    /** Return the committed image kept by {@link #keepOverwritten} for pid, or null. */
+    synchronized Page getOverwritten(PageId pid) {
+        return overwritten.isEmpty() ? null : overwritten.get(pid);
+    }
+
+    /** Forget the committed images kept for pids, whose writer is completing. */
+    synchronized void forgetOverwritten(Collection<PageId> pids) {
+        if (!overwritten.isEmpty()) {
+            overwritten.keySet().removeAll(pids);
+        }
+    }
+
+    /** Make the commit in progress visible to snapshots that begin from now on. */
+    synchronized void committed() {
+        lastCommit++;
+    }
+
+    /**
+     * Return the image of pid that the snapshot of tid sees if a commit has
+     * replaced it since the snapshot began, or else the committed image
+     * kept because a running transaction has overwritten it on disk, or
+     * null if the before image of the page in the pool is the one to read.
+     * Call holding the page's frame latch, shared.
+     */
+    synchronized Page get(TransactionId tid, PageId pid) {
+        Long snapshot = snapshots.get(tid);
+        if (snapshot == null) {
+            return null;
+        }
+        List<Version> list = versions.get(pid);
+        if (list != null) {
+            for (Version v : list) {
+                if (v.replacedBy > snapshot) {
+                    return v.image;
+                }
+            }
+        }
+        return overwritten.isEmpty() ? null : overwritten.get(pid);
+    }
+}
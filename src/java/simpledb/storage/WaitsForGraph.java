@@ -0,0 +1,96 @@
+package simpledb.storage;
+
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+/**
+ * WaitsForGraph records, for every parked lock request of a
+ * {@link LockManager}, the transactions it waits for: the holders of the
+ * page and the requests queued ahead of it. Page locks update it as they
+ * block, grant and release, so finding a deadlock never has to scan the lock
+ * table.
+ *
+ * @Threadsafe all methods synchronize on the graph
+ */
+class WaitsForGraph {
+    private final Map<LockManager.Waiter, Set<TransactionId>> edges = new HashMap<>();
+
+    /** Record that waiter now waits for blockers. */
+    synchronized void setEdges(LockManager.Waiter waiter, Set<TransactionId> blockers) {
+        edges.put(waiter, blockers);
+    }
+
+    /** Forget waiter, which has been granted its lock or gave up. */
+    synchronized void remove(LockManager.Waiter waiter) {
+        edges.remove(waiter);
+    }
+
+    synchronized boolean isEmpty() {
+        return edges.isEmpty();
+    }
+
+    /** Return the parked requests of tid. */
+    synchronized List<LockManager.Waiter> waitersOf(TransactionId tid) {
+        List<LockManager.Waiter> waiters = new ArrayList<>();
+        for (LockManager.Waiter w : edges.keySet()) {
+            if (w.transactionId.equals(tid)) {
+                waiters.add(w);
+            }
+        }
+        return waiters;
+    }
+
+    /**
+     * Return the edges between transactions, leaving out requests that have
+     * already been told to abort.
+     */
+    synchronized Map<TransactionId, Set<TransactionId>> transactionEdges() {
+        Map<TransactionId, Set<TransactionId>> graph = new HashMap<>();
+        for (Map.Entry<LockManager.Waiter, Set<TransactionId>> e : edges.entrySet()) {
+            if (!e.getKey().aborted) {
+                graph.computeIfAbsent(e.getKey().transactionId, k -> new HashSet<>()).addAll(e.getValue());
+            }
+        }
+        return graph;
+    }
+
+    /**
+     * Return the transactions of one cycle of graph, or null if it has none.
+     */
+    static List<TransactionId> findCycle(Map<TransactionId, Set<TransactionId>> graph) {
+        Set<TransactionId> done = new HashSet<>();
+        for (TransactionId start : graph.keySet()) {
+            if (done.contains(start)) {
+                continue;
+            }
+            // iterative depth-first search; path holds the grey nodes in order
+            List<TransactionId> path = new ArrayList<>();
+            Set<TransactionId> onPath = new HashSet<>();
+            Deque<Iterator<TransactionId>> stack = new ArrayDeque<>();
+            path.add(start);
+            onPath.add(start);
+            stack.push(graph.getOrDefault(start, Collections.emptySet()).iterator());
+            while (!stack.isEmpty()) {
+                Iterator<TransactionId> next = stack.peek();
+                if (!next.hasNext()) {
+                    stack.pop();
+                    TransactionId finished = path.remove(path.size() - 1);
+                    onPath.remove(finished);
+                    done.add(finished);
+                    continue;
+                }
+                TransactionId to = next.next();
+                if (onPath.contains(to)) {
+                    return new ArrayList<>(path.subList(path.indexOf(to), path.size()));
+                }
+                if (!done.contains(to) && graph.containsKey(to)) {
+                    path.add(to);
+                    onPath.add(to);
+                    stack.push(graph.get(to).iterator());
+                }
+            }
+        }
+        return null;
+    }
+}
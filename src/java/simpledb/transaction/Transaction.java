@@ -12,6 +12,7 @@ import java.io.*;
 public class Transaction {
     private final TransactionId tid;
     volatile boolean started = false;
+    private volatile boolean snapshot = false;
 
     public Transaction() {
         tid = new TransactionId();
@@ -27,6 +28,17 @@ public class Transaction {
         }
     }
 
+    /**
+     * Start the transaction as a read-only snapshot of the data committed so
+     * far; see {@link simpledb.storage.BufferPool#beginSnapshot}. It writes
+     * nothing, so it logs nothing either.
+     */
+    public void startSnapshot() {
+        snapshot = true;
+        started = true;
+        Database.getBufferPool().beginSnapshot(tid);
+    }
+
     public TransactionId getId() {
         return tid;
     }
@@ -44,20 +56,27 @@ public class Transaction {
     /** Handle the details of transaction commit / abort */
     public void transactionComplete(boolean abort) throws IOException {
 
-        if (started) {
+        if (started && snapshot) {
+            Database.getBufferPool().transactionComplete(tid, !abort);
+            started = false;
+        } else if (started) {
             //write abort log record and rollback transaction
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } 
 
-            // Release locks and flush pages if needed
-            Database.getBufferPool().transactionComplete(tid, !abort); // release locks
+            // flush or log pages, keeping the locks
+            Database.getBufferPool().completePages(tid, !abort);
 
-            // write commit log record
+            // write commit log record and wait until it is durable; under
+            // NO FORCE it is all that makes the commit durable, so nobody may
+            // read the changes before
             if (!abort) {
             	Database.getLogFile().logCommit(tid);
             }
 
+            Database.getBufferPool().releaseTransaction(tid); // release locks
+
             //setting this here means we could possibly write multiple abort records -- OK?
             started = false;
         }
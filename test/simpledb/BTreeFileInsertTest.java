@@ -176,6 +176,23 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 		assertTrue(page.getId().getPageNumber() == 2 || otherPage.getId().getPageNumber() == 2);
 	}
 
+	@Test
+	public void testInsertWithoutSplitDirtiesLeaf() throws Exception {
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0);
+		Database.getBufferPool().insertTuple(tid, empty.getId(), BTreeUtility.getBTreeTuple(1, 2));
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+
+		// the root leaf has room, so the insert changes it and nothing else
+		List<Page> dirtied = empty.insertTuple(tid, BTreeUtility.getBTreeTuple(2, 2));
+		assertEquals(1, dirtied.size());
+		BTreeLeafPage leaf = (BTreeLeafPage) dirtied.get(0);
+		assertEquals(2, leaf.getNumTuples());
+	}
+
 	/**
 	 * JUnit suite target
 	 */
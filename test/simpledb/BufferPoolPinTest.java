@@ -0,0 +1,181 @@
+package simpledb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BufferPoolPinTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private TransactionId tid;
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, null);
+        bp = new BufferPool(2, 1);
+        Database.resetBufferPool(bp);
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() {
+        bp.transactionComplete(tid);
+    }
+
+    private HeapPageId pid(int pageNo) {
+        return new HeapPageId(hf.getId(), pageNo);
+    }
+
+    /**
+     * Unit test for BufferPool.pinPage(): a pinned frame is never chosen for
+     * eviction and keeps returning the same page.
+     */
+    @Test public void pinnedPagesStayResident() throws Exception {
+        BufferPool.Frame frame = bp.pinPage(tid, pid(0), Permissions.READ_ONLY);
+        Page page = frame.getPage();
+        assertEquals(1, frame.getPinCount());
+        for (int i = 1; i < 4; i++) {
+            bp.getPage(tid, pid(i), Permissions.READ_ONLY);
+        }
+        assertSame(page, frame.getPage());
+        assertSame(page, bp.getPage(tid, pid(0), Permissions.READ_ONLY));
+
+        bp.unpin(tid, frame);
+        assertEquals(0, frame.getPinCount());
+        for (int i = 1; i < 4; i++) {
+            bp.getPage(tid, pid(i), Permissions.READ_ONLY);
+        }
+        assertNotSame(page, bp.getPage(tid, pid(0), Permissions.READ_ONLY));
+    }
+
+    /**
+     * Unit test for BufferPool.pinPage(): pins nest, and a pool whose frames
+     * are all pinned cannot take another page.
+     */
+    @Test public void pinCounts() throws Exception {
+        BufferPool.Frame a = bp.pinPage(tid, pid(0), Permissions.READ_ONLY);
+        BufferPool.Frame again = bp.pinPage(tid, pid(0), Permissions.READ_ONLY);
+        assertSame(a, again);
+        assertEquals(2, a.getPinCount());
+        BufferPool.Frame b = bp.pinPage(tid, pid(1), Permissions.READ_ONLY);
+        try {
+            bp.getPage(tid, pid(2), Permissions.READ_ONLY);
+            fail("expected DbException");
+        } catch (DbException expected) {
+        }
+        bp.unpin(tid, a);
+        bp.unpin(tid, a);
+        bp.unpin(tid, b);
+        try {
+            bp.unpin(tid, b);
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+        bp.getPage(tid, pid(2), Permissions.READ_ONLY);
+    }
+
+    /**
+     * Unit test for HeapFileIterator: the page being read is pinned, and no
+     * pin is left behind once the scan is over.
+     */
+    @Test public void scansReleaseTheirPins() throws Exception {
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        it.next();
+        BufferPool.Frame current = bp.pinPage(tid, pid(0), Permissions.READ_ONLY);
+        assertEquals(2, current.getPinCount());
+        bp.unpin(tid, current);
+        int count = 1;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        assertEquals(504 * 4, count);
+        it.close();
+        for (int i = 0; i < 2; i++) {
+            bp.getPage(tid, pid(i), Permissions.READ_ONLY);
+        }
+        // with no pins left, both frames can be recycled
+        bp.getPage(tid, pid(2), Permissions.READ_ONLY);
+        bp.getPage(tid, pid(3), Permissions.READ_ONLY);
+    }
+
+    /**
+     * Unit test for BufferPool.transactionComplete(): a transaction that
+     * aborts in the middle of a scan, e.g. as a deadlock victim, leaves the
+     * scan open, and completing it releases the scan's pin.
+     */
+    @Test public void abortReleasesPinsOfOpenScans() throws Exception {
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        it.next();
+        BufferPool.Frame current = bp.pinPage(tid, pid(0), Permissions.READ_ONLY);
+        bp.unpin(tid, current);
+        assertEquals(1, current.getPinCount());
+
+        bp.transactionComplete(tid, false);
+        assertEquals(0, current.getPinCount());
+        // closing the scan late must not release a pin twice
+        it.close();
+        assertEquals(0, current.getPinCount());
+        TransactionId other = new TransactionId();
+        for (int i = 1; i < 4; i++) {
+            bp.getPage(other, pid(i), Permissions.READ_ONLY);
+        }
+        bp.transactionComplete(other);
+    }
+
+    /**
+     * Unit test for BufferPool.Frame latches: the pool does not write a page
+     * back while a writer holds its exclusive latch, and readers share it.
+     */
+    @Test public void writeBackWaitsForExclusiveLatch() throws Exception {
+        BufferPool.Frame frame = bp.pinPage(tid, pid(0), Permissions.READ_WRITE);
+        frame.getPage().markDirty(true, tid);
+        frame.latchExclusive();
+        Thread flusher = new Thread(() -> {
+            try {
+                bp.flushAllPages();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        flusher.start();
+        flusher.join(200);
+        assertTrue(flusher.isAlive());
+        assertNotNull(frame.getPage().isDirty());
+
+        frame.unlatchExclusive();
+        flusher.join(5000);
+        assertFalse(flusher.isAlive());
+        assertNull(frame.getPage().isDirty());
+
+        frame.latchShared();
+        Thread reader = new Thread(() -> {
+            frame.latchShared();
+            frame.unlatchShared();
+        });
+        reader.start();
+        reader.join(5000);
+        assertFalse(reader.isAlive());
+        frame.unlatchShared();
+        bp.unpin(tid, frame);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolPinTest.class);
+    }
+}
@@ -1,8 +1,6 @@
 package simpledb;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -41,11 +39,9 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     			throws DbException, IOException {
     		List<Page> dirtypages = new ArrayList<>();
     		for(int i = 0; i < duplicates; i++) {
-    			// create a blank page
-    			BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(super.getFile(), true));
-                byte[] emptyData = HeapPage.createEmptyPageData();
-                bw.write(emptyData);
-                bw.close();
+    			// create a blank page; append through the file so its cached length follows
+    			super.writePage(new HeapPage(new HeapPageId(super.getId(), super.numPages()),
+    					HeapPage.createEmptyPageData()));
     			HeapPage p = new HeapPage(new HeapPageId(super.getId(), super.numPages() - 1),
     					HeapPage.createEmptyPageData());
     	        p.insertTuple(t);
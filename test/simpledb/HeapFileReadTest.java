@@ -81,6 +81,40 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.readPage() from several threads sharing the
+     * file's channel
+     */
+    @Test
+    public void readPageConcurrently() throws Exception {
+        final HeapFile big = SystemTestUtil.createRandomHeapFile(2, 504 * 8, null, null);
+        final int pages = big.numPages();
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int offset = t;
+            Thread thread = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 200; i++) {
+                        int pageNo = (i + offset) % pages;
+                        HeapPage page = (HeapPage) big.readPage(new HeapPageId(big.getId(), pageNo));
+                        assertEquals(pageNo, page.getId().getPageNumber());
+                        assertEquals(0, page.getNumEmptySlots());
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(8, pages);
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
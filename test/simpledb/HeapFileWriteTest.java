@@ -12,6 +12,7 @@ import simpledb.storage.*;
 import simpledb.systemtest.SystemTestUtil;
 import simpledb.transaction.TransactionId;
 
+import java.io.File;
 import java.util.Arrays;
 
 public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
@@ -90,6 +91,36 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         it.close();
     }
 
+    /**
+     * Unit test for HeapFile.insertTuple() with a free-space map: only the
+     * page with room stays locked, and later inserts skip the full pages.
+     */
+    @Test public void insertUsesFreeSpaceMap() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 10 + 5, null, null);
+        assertEquals(11, hf.numPages());
+
+        hf.insertTuple(tid, Utility.getHeapTuple(1, 2));
+        for (int i = 0; i < 10; i++) {
+            assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(hf.getId(), i)));
+        }
+        assertTrue(Database.getBufferPool().holdsLock(tid, new HeapPageId(hf.getId(), 10)));
+
+        FreeSpaceMap fsm = hf.getFreeSpaceMap();
+        assertEquals(0, fsm.get(0));
+        assertEquals(FreeSpaceMap.MAX_RECORDED, fsm.get(10));
+        assertEquals(10, fsm.findPageWithSpace(0));
+
+        // the map survives reopening the file
+        File side = FreeSpaceMap.sideFile(hf.getFile());
+        side.deleteOnExit();
+        hf.force();
+        FreeSpaceMap reloaded = new FreeSpaceMap(hf.getFile(), hf.numPages());
+        assertEquals(10, reloaded.findPageWithSpace(0));
+        assertEquals(FreeSpaceMap.MAX_RECORDED, reloaded.get(10));
+        // pages the side file does not know about yet are unknown
+        assertEquals(FreeSpaceMap.UNKNOWN, new FreeSpaceMap(hf.getFile(), 12).get(11));
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,371 @@
+package simpledb;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Permissions;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LockManager;
+import simpledb.storage.PageId;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LockManagerTest {
+    private static final int SETTLE_MILLIS = 50;
+
+    private LockManager lm;
+    private PageId p0, p1;
+    private TransactionId t1, t2, t3;
+
+    @Before public void setUp() {
+        lm = new LockManager();
+        p0 = new HeapPageId(1, 0);
+        p1 = new HeapPageId(1, 1);
+        t1 = new TransactionId();
+        t2 = new TransactionId();
+        t3 = new TransactionId();
+    }
+
+    /** Request a lock from another thread; the future completes with the time it was granted. */
+    private CompletableFuture<Long> lockAsync(PageId pid, TransactionId tid, Permissions perm) {
+        CompletableFuture<Long> f = new CompletableFuture<>();
+        Thread t = new Thread(() -> {
+            try {
+                lm.LockPage(pid, tid, perm);
+                f.complete(System.nanoTime());
+            } catch (TransactionAbortedException e) {
+                f.completeExceptionally(e);
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        return f;
+    }
+
+    private static void settle() throws InterruptedException {
+        Thread.sleep(SETTLE_MILLIS);
+    }
+
+    /**
+     * Unit test for LockManager: a released lock is handed to the parked
+     * waiter right away instead of at its next poll.
+     */
+    @Test public void handoffIsImmediate() throws Exception {
+        long[] micros = new long[10];
+        for (int i = 0; i < micros.length; i++) {
+            TransactionId holder = new TransactionId();
+            TransactionId waiter = new TransactionId();
+            lm.LockPage(p0, holder, Permissions.READ_WRITE);
+            CompletableFuture<Long> granted = lockAsync(p0, waiter, Permissions.READ_WRITE);
+            settle();
+            assertFalse(granted.isDone());
+            long released = System.nanoTime();
+            lm.releaseAllLocks(holder);
+            micros[i] = (granted.get(5, TimeUnit.SECONDS) - released) / 1000;
+            lm.releaseAllLocks(waiter);
+        }
+        Arrays.sort(micros);
+        assertTrue("median handoff " + micros[micros.length / 2] + " us", micros[micros.length / 2] < 5000);
+    }
+
+    /**
+     * Unit test for LockManager: a reader arriving after a queued writer
+     * waits behind it instead of starving it.
+     */
+    @Test public void readersDoNotOvertakeQueuedWriter() throws Exception {
+        lm.LockPage(p0, t1, Permissions.READ_ONLY);
+        CompletableFuture<Long> writer = lockAsync(p0, t2, Permissions.READ_WRITE);
+        settle();
+        CompletableFuture<Long> reader = lockAsync(p0, t3, Permissions.READ_ONLY);
+        settle();
+        assertFalse(writer.isDone());
+        assertFalse(reader.isDone());
+        assertFalse(lm.tryLockPage(p0, new TransactionId(), Permissions.READ_ONLY));
+
+        lm.releaseAllLocks(t1);
+        writer.get(5, TimeUnit.SECONDS);
+        settle();
+        assertFalse(reader.isDone());
+        lm.releaseAllLocks(t2);
+        reader.get(5, TimeUnit.SECONDS);
+        assertTrue(lm.holdsLock(p0, t3));
+    }
+
+    /**
+     * Unit test for LockManager: consecutive queued readers are granted
+     * together when the writer ahead of them releases.
+     */
+    @Test public void queuedReadersAreGrantedTogether() throws Exception {
+        lm.LockPage(p0, t1, Permissions.READ_WRITE);
+        CompletableFuture<Long> r2 = lockAsync(p0, t2, Permissions.READ_ONLY);
+        CompletableFuture<Long> r3 = lockAsync(p0, t3, Permissions.READ_ONLY);
+        settle();
+        lm.releaseAllLocks(t1);
+        r2.get(5, TimeUnit.SECONDS);
+        r3.get(5, TimeUnit.SECONDS);
+        assertTrue(lm.holdsLock(p0, t2));
+        assertTrue(lm.holdsLock(p0, t3));
+    }
+
+    /**
+     * Unit test for LockManager: an upgrade goes ahead of writers that
+     * queued before it.
+     */
+    @Test public void upgradesGoFirst() throws Exception {
+        lm.LockPage(p0, t1, Permissions.READ_ONLY);
+        lm.LockPage(p0, t2, Permissions.READ_ONLY);
+        CompletableFuture<Long> writer = lockAsync(p0, t3, Permissions.READ_WRITE);
+        settle();
+        CompletableFuture<Long> upgrade = lockAsync(p0, t1, Permissions.READ_WRITE);
+        settle();
+        assertFalse(upgrade.isDone());
+
+        lm.releaseAllLocks(t2);
+        upgrade.get(5, TimeUnit.SECONDS);
+        settle();
+        assertFalse(writer.isDone());
+        lm.releaseAllLocks(t1);
+        writer.get(5, TimeUnit.SECONDS);
+    }
+
+    /** Wait until f has completed, normally or not; return true if it was aborted. */
+    private static boolean aborted(CompletableFuture<Long> f) throws Exception {
+        try {
+            f.get(5, TimeUnit.SECONDS);
+            return false;
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TransactionAbortedException);
+            return true;
+        }
+    }
+
+    /** Make t1 and t2 wait for each other over p0 and p1; return their requests. */
+    private List<CompletableFuture<Long>> deadlock() throws Exception {
+        lm.LockPage(p0, t1, Permissions.READ_ONLY);
+        lm.LockPage(p1, t2, Permissions.READ_ONLY);
+        CompletableFuture<Long> a = lockAsync(p1, t1, Permissions.READ_WRITE);
+        settle();
+        CompletableFuture<Long> b = lockAsync(p0, t2, Permissions.READ_WRITE);
+        return Arrays.asList(a, b);
+    }
+
+    /**
+     * Unit test for LockManager: the detector aborts exactly one transaction
+     * of a cycle, under YOUNGEST the younger one, and the
+     * withdrawn request does not block the page afterwards.
+     */
+    @Test public void detectorAbortsOneVictim() throws Exception {
+        lm.setDeadlockPolicy(LockManager.DeadlockPolicy.YOUNGEST);
+        List<CompletableFuture<Long>> reqs = deadlock();
+        assertTrue(aborted(reqs.get(1)));
+        lm.releaseAllLocks(t2);
+        assertFalse(aborted(reqs.get(0)));
+        lm.releaseAllLocks(t1);
+        TransactionId fresh = new TransactionId();
+        assertTrue(lm.tryLockPage(p0, fresh, Permissions.READ_WRITE));
+        assertTrue(lm.tryLockPage(p1, fresh, Permissions.READ_WRITE));
+    }
+
+    /**
+     * Unit test for LockManager: under FEWEST_LOCKS the transaction that has
+     * done more work survives, even if it is the younger one.
+     */
+    @Test public void victimHoldsFewestLocks() throws Exception {
+        lm.setDeadlockPolicy(LockManager.DeadlockPolicy.FEWEST_LOCKS);
+        for (int i = 2; i < 6; i++) {
+            lm.LockPage(new HeapPageId(1, i), t2, Permissions.READ_WRITE);
+        }
+        List<CompletableFuture<Long>> reqs = deadlock();
+        assertTrue(aborted(reqs.get(0)));
+        lm.releaseAllLocks(t1);
+        assertFalse(aborted(reqs.get(1)));
+    }
+
+    /**
+     * Unit test for LockManager: under WAIT_DIE a request that would wait for
+     * an older transaction aborts at once, while an older one waits.
+     */
+    @Test public void waitDie() throws Exception {
+        lm.setDeadlockPolicy(LockManager.DeadlockPolicy.WAIT_DIE);
+        lm.LockPage(p0, t2, Permissions.READ_WRITE);
+        CompletableFuture<Long> older = lockAsync(p0, t1, Permissions.READ_ONLY);
+        settle();
+        assertFalse(older.isDone());
+        lm.LockPage(p1, t1, Permissions.READ_WRITE);
+        try {
+            lm.LockPage(p1, t3, Permissions.READ_ONLY);
+            fail("expected the younger request to die");
+        } catch (TransactionAbortedException expected) {
+        }
+        lm.releaseAllLocks(t2);
+        assertFalse(aborted(older));
+    }
+
+    /**
+     * Unit test for LockManager: under WOUND_WAIT an older request aborts
+     * the younger transaction it waits for, which fails at its next wait.
+     */
+    @Test public void woundWait() throws Exception {
+        lm.setDeadlockPolicy(LockManager.DeadlockPolicy.WOUND_WAIT);
+        List<CompletableFuture<Long>> reqs = deadlock();
+        assertTrue(aborted(reqs.get(1)));
+        lm.releaseAllLocks(t2);
+        assertFalse(aborted(reqs.get(0)));
+        // a younger request simply waits for the older holder
+        CompletableFuture<Long> younger = lockAsync(p1, t3, Permissions.READ_ONLY);
+        settle();
+        assertFalse(younger.isDone());
+        lm.releaseAllLocks(t1);
+        assertFalse(aborted(younger));
+    }
+
+    /**
+     * Unit test for LockManager: releaseAllLocks releases exactly what the
+     * transaction holds, and lock objects of unlocked pages leave the table.
+     */
+    @Test public void lockTableShrinks() throws Exception {
+        lm.setEscalationThreshold(0);
+        for (int i = 0; i < 5000; i++) {
+            lm.LockPage(new HeapPageId(2, i), t1, i % 2 == 0 ? Permissions.READ_ONLY : Permissions.READ_WRITE);
+        }
+        lm.LockPage(p0, t2, Permissions.READ_ONLY);
+        // every page plus the intention locks on tables 1 and 2
+        assertEquals(5003, lm.getLockTableSize());
+        lm.releaseAllLocks(t1);
+        assertEquals(2, lm.getLockTableSize());
+        assertTrue(lm.holdsLock(p0, t2));
+        assertFalse(lm.holdsLock(new HeapPageId(2, 0), t1));
+
+        // failed attempts and single releases do not leave objects behind either
+        assertFalse(lm.tryLockPage(p0, t3, Permissions.READ_WRITE));
+        lm.ReleasePage(p0, t2);
+        lm.ReleasePage(p1, t2);
+        assertEquals(0, lm.getLockTableSize());
+        assertTrue(lm.tryLockPage(p0, t3, Permissions.READ_WRITE));
+        assertEquals(2, lm.getLockTableSize());
+    }
+
+    /**
+     * Unit test for LockManager: a transaction that locks more pages of a
+     * table than the escalation threshold ends up with one table lock that
+     * still covers every page.
+     */
+    @Test public void escalation() throws Exception {
+        lm.setEscalationThreshold(100);
+        for (int i = 0; i < 150; i++) {
+            lm.LockPage(new HeapPageId(2, i), t1, Permissions.READ_ONLY);
+        }
+        assertTrue(lm.getLockTableSize() < 100);
+        for (int i = 0; i < 200; i++) {
+            assertTrue(lm.holdsLock(new HeapPageId(2, i), t1));
+        }
+        // readers of the table are not bothered, writers are
+        assertTrue(lm.tryLockPage(new HeapPageId(2, 0), t2, Permissions.READ_ONLY));
+        assertFalse(lm.tryLockPage(new HeapPageId(2, 0), t3, Permissions.READ_WRITE));
+        assertTrue(lm.isLockedByOther(new HeapPageId(2, 500), t3));
+
+        // no escalation while another transaction writes to the table
+        lm.LockPage(new HeapPageId(4, 0), t3, Permissions.READ_WRITE);
+        for (int i = 1; i < 150; i++) {
+            lm.LockPage(new HeapPageId(4, i), t2, Permissions.READ_WRITE);
+        }
+        assertFalse(lm.holdsLock(new HeapPageId(4, 0), t2));
+        assertFalse(lm.holdsLock(new HeapPageId(4, 200), t2));
+
+        lm.releaseAllLocks(t1);
+        lm.releaseAllLocks(t2);
+        lm.releaseAllLocks(t3);
+        assertEquals(0, lm.getLockTableSize());
+    }
+
+    /**
+     * Unit test for LockManager: a table lock conflicts with page locks of
+     * other transactions through their intention locks, and covers the
+     * holder's own page requests.
+     */
+    @Test public void tableLocks() throws Exception {
+        lm.LockPage(p0, t1, Permissions.READ_ONLY);
+        lm.LockPage(p1, t2, Permissions.READ_WRITE);
+        // IS and IX on table 1 coexist, but table S waits for t2's IX
+        CompletableFuture<Void> scan = CompletableFuture.runAsync(() -> {
+            try {
+                lm.LockTable(1, t3, Permissions.READ_ONLY);
+            } catch (TransactionAbortedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        settle();
+        assertFalse(scan.isDone());
+        lm.releaseAllLocks(t2);
+        scan.get(5, TimeUnit.SECONDS);
+
+        // the table lock covers t3's reads without page locks, and keeps others from writing
+        int size = lm.getLockTableSize();
+        lm.LockPage(new HeapPageId(1, 7), t3, Permissions.READ_ONLY);
+        assertEquals(size, lm.getLockTableSize());
+        assertTrue(lm.holdsLock(new HeapPageId(1, 7), t3));
+        assertTrue(lm.tryLockPage(p1, t1, Permissions.READ_ONLY));
+        assertFalse(lm.tryLockPage(p1, t1, Permissions.READ_WRITE));
+        lm.releaseAllLocks(t3);
+        assertTrue(lm.tryLockPage(p1, t1, Permissions.READ_WRITE));
+    }
+
+    /**
+     * Unit test for LockManager: exclusive locks stay exclusive while lock
+     * objects are constantly reclaimed and reused for other pages.
+     */
+    @Test public void recycledLocksStayExclusive() throws Exception {
+        int[] owners = new int[4];
+        Thread[] threads = new Thread[4];
+        Throwable[] failure = new Throwable[1];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                Random rand = new Random();
+                try {
+                    for (int n = 0; n < 2000; n++) {
+                        TransactionId tid = new TransactionId();
+                        int page = rand.nextInt(owners.length);
+                        lm.LockPage(new HeapPageId(3, page), tid, Permissions.READ_WRITE);
+                        synchronized (owners) {
+                            assertEquals(0, owners[page]++);
+                        }
+                        Thread.yield();
+                        synchronized (owners) {
+                            owners[page]--;
+                        }
+                        lm.releaseAllLocks(tid);
+                    }
+                } catch (Throwable e) {
+                    synchronized (failure) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join(60000);
+        }
+        synchronized (failure) {
+            assertNull(String.valueOf(failure[0]), failure[0]);
+        }
+        assertEquals(0, lm.getLockTableSize());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
@@ -0,0 +1,96 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.storage.ReplacementPolicy;
+import simpledb.storage.ReplacementSimulator;
+
+public class ReplacementPolicyTest {
+    private static final int CAPACITY = 50;
+    private static final int HOT_PAGES = 30;
+
+    /**
+     * A point-query workload on HOT_PAGES pages, interrupted by short
+     * sequential scans that together touch far more pages than the pool holds.
+     */
+    private static List<PageId> hotSetWithScans() {
+        List<PageId> trace = new ArrayList<>();
+        int scanPage = 0;
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 3; i++) {
+                for (int p = 0; p < HOT_PAGES; p++) {
+                    trace.add(new HeapPageId(1, p));
+                }
+            }
+            for (int i = 0; i < 40; i++) {
+                trace.add(new HeapPageId(2, scanPage++));
+            }
+        }
+        return trace;
+    }
+
+    /**
+     * Every policy should evict only pages the pool allows it to, and report
+     * that nothing is evictable rather than pick a forbidden page.
+     */
+    @Test public void respectsEvictable() {
+        for (ReplacementPolicy.Type type : ReplacementPolicy.Type.values()) {
+            ReplacementPolicy policy = type.create(3);
+            PageId a = new HeapPageId(1, 0);
+            PageId b = new HeapPageId(1, 1);
+            PageId c = new HeapPageId(1, 2);
+            policy.admit(a);
+            policy.admit(b);
+            policy.admit(c);
+            policy.access(a);
+
+            assertEquals(type.toString(), b, policy.evict(null, p -> p.equals(b)));
+            assertNull(type.toString(), policy.evict(null, p -> p.equals(b)));
+            assertNull(type.toString(), policy.evict(null, p -> false));
+
+            policy.remove(c);
+            assertEquals(type.toString(), a, policy.evict(null, p -> true));
+            assertNull(type.toString(), policy.evict(null, p -> true));
+        }
+    }
+
+    /** Scan-resistant policies keep the hot set while CLOCK gets flushed by scans. */
+    @Test public void scanResistance() {
+        List<PageId> trace = hotSetWithScans();
+        double clock = ReplacementSimulator.hitRatio(ReplacementPolicy.Type.CLOCK.create(CAPACITY), CAPACITY, trace);
+        for (ReplacementPolicy.Type type : new ReplacementPolicy.Type[] {
+                ReplacementPolicy.Type.LRU_K, ReplacementPolicy.Type.TWO_Q, ReplacementPolicy.Type.ARC }) {
+            double ratio = ReplacementSimulator.hitRatio(type.create(CAPACITY), CAPACITY, trace);
+            assertTrue(type + " hit ratio " + ratio + " should beat CLOCK " + clock, ratio > clock);
+        }
+    }
+
+    /** A pool big enough for every page misses only on first access, whatever the policy. */
+    @Test public void compulsoryMissesOnly() {
+        List<PageId> trace = new ArrayList<>();
+        for (int round = 0; round < 4; round++) {
+            for (int p = 0; p < CAPACITY; p++) {
+                trace.add(new HeapPageId(1, p));
+            }
+        }
+        for (ReplacementPolicy.Type type : ReplacementPolicy.Type.values()) {
+            assertEquals(type.toString(), 0.75,
+                    ReplacementSimulator.hitRatio(type.create(CAPACITY), CAPACITY, trace), 1e-9);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
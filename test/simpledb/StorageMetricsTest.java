@@ -0,0 +1,118 @@
+package simpledb;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class StorageMetricsTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, null);
+        bp = Database.resetBufferPool(2);
+    }
+
+    private HeapPageId pid(int pageNo) {
+        return new HeapPageId(hf.getId(), pageNo);
+    }
+
+    /**
+     * Unit test for StorageMetrics: hits, misses, evictions and per-table
+     * reads follow the requests made to the pool.
+     */
+    @Test public void countsPoolActivity() throws Exception {
+        StorageMetrics.Snapshot before = StorageMetrics.get().snapshot();
+        TransactionId tid = new TransactionId();
+        bp.getPage(tid, pid(0), Permissions.READ_ONLY);
+        bp.getPage(tid, pid(0), Permissions.READ_ONLY);
+        bp.getPage(tid, pid(1), Permissions.READ_ONLY);
+        bp.getPage(tid, pid(2), Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+
+        StorageMetrics.Snapshot d = StorageMetrics.get().snapshot().since(before);
+        assertEquals(1, d.getHits());
+        assertEquals(3, d.getMisses());
+        assertEquals(0.25, d.getHitRatio(), 1e-9);
+        assertEquals(1, d.getEvictions());
+        assertEquals(3, d.getPageReads(hf.getId()));
+        assertEquals(3L * BufferPool.getPageSize(), d.getBytesRead());
+        long timed = 0;
+        for (long n : d.getReadLatencyHistogram()) {
+            timed += n;
+        }
+        assertEquals(d.getPageReads(), timed);
+        assertTrue(d.readLatencyPercentileMicros(0.5) > 0);
+    }
+
+    /**
+     * Unit test for StorageMetrics: committing writes the dirty page once,
+     * and a pool full of dirty pages counts the failed eviction.
+     */
+    @Test public void countsWrites() throws Exception {
+        StorageMetrics.Snapshot before = StorageMetrics.get().snapshot();
+        TransactionId tid = new TransactionId();
+        bp.insertTuple(tid, hf.getId(), Utility.getHeapTuple(1, 2));
+        bp.transactionComplete(tid);
+
+        StorageMetrics.Snapshot d = StorageMetrics.get().snapshot().since(before);
+        assertEquals(1, d.getDirtyPageWrites());
+        assertEquals(1, d.getPageWrites(hf.getId()));
+        assertEquals(BufferPool.getPageSize(), d.getBytesWritten());
+        assertEquals(0, d.getEvictFailures());
+
+        tid = new TransactionId();
+        for (int i = 0; i < 2; i++) {
+            bp.getPage(tid, pid(i), Permissions.READ_WRITE).markDirty(true, tid);
+        }
+        try {
+            bp.getPage(tid, pid(2), Permissions.READ_ONLY);
+            fail("expected DbException");
+        } catch (simpledb.common.DbException expected) {
+        }
+        bp.transactionComplete(tid, false);
+        assertTrue(StorageMetrics.get().snapshot().since(before).getEvictFailures() > 0);
+    }
+
+    /**
+     * Unit test for the JMX bean: it is registered and reports the same
+     * counters as snapshot().
+     */
+    @Test public void exposedOverJmx() throws Exception {
+        TransactionId tid = new TransactionId();
+        bp.getPage(tid, pid(0), Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(StorageMetrics.OBJECT_NAME);
+        StorageMetrics.get();
+        assertTrue(server.isRegistered(name));
+        long misses = (Long) server.getAttribute(name, "Misses");
+        assertTrue(misses > 0);
+        assertEquals(StorageMetrics.LATENCY_BUCKETS, ((long[]) server.getAttribute(name, "ReadLatencyHistogram")).length);
+        assertNotNull(server.getAttribute(name, "TablePageReads"));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(StorageMetricsTest.class);
+    }
+}
@@ -0,0 +1,140 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.Page;
+import simpledb.storage.ReplacementPolicy;
+import simpledb.storage.StorageMetrics;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Hammers a buffer pool from several threads with random page reads over a
+ * table that fits in the pool, once with a single shard and once with one
+ * shard per thread, checking that every read returns the requested page and
+ * that, the table fitting in either pool, no page is evicted and each is read
+ * from disk at most once per thread.
+ */
+public class BufferPoolContentionTest extends SimpleDbTestBase {
+    private static final int THREADS = 8;
+    private static final int TABLE_PAGES = 128;
+    private static final int POOL_PAGES = 128;
+    private static final int READS_PER_THREAD = 20000;
+
+    private static void readConcurrently(final BufferPool bp, final HeapFile f) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            final long seed = i;
+            Thread t = new Thread(() -> {
+                TransactionId tid = new TransactionId();
+                Random r = new Random(seed);
+                try {
+                    start.await();
+                    for (int j = 0; j < READS_PER_THREAD; j++) {
+                        HeapPageId pid = new HeapPageId(f.getId(), r.nextInt(TABLE_PAGES));
+                        Page p = bp.getPage(tid, pid, Permissions.READ_ONLY);
+                        if (!pid.equals(p.getId())) {
+                            throw new AssertionError("asked for " + pid.getPageNumber() + ", got " + p.getId().getPageNumber());
+                        }
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                } finally {
+                    bp.transactionComplete(tid);
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+    }
+
+    private static void checkReads(BufferPool bp, HeapFile f) throws Exception {
+        StorageMetrics.Snapshot before = StorageMetrics.get().snapshot();
+        readConcurrently(bp, f);
+        StorageMetrics.Snapshot reads = StorageMetrics.get().snapshot().since(before);
+        assertEquals((long) THREADS * READS_PER_THREAD, reads.getHits() + reads.getMisses());
+        assertEquals(0, reads.getEvictions());
+        // threads racing for a page may all miss it, but only until it is in
+        assertTrue(reads.getMisses() >= TABLE_PAGES);
+        assertTrue(reads.getMisses() <= THREADS * TABLE_PAGES);
+    }
+
+    @Test public void testShardedReads() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * TABLE_PAGES, null, null);
+        assertEquals(TABLE_PAGES, f.numPages());
+
+        checkReads(new BufferPool(POOL_PAGES, 1), f);
+        checkReads(new BufferPool(POOL_PAGES, THREADS), f);
+    }
+
+    @Test public void testDefaultShards() {
+        assertEquals(1, new BufferPool(BufferPool.DEFAULT_PAGES).getNumShards());
+        assertEquals(1, new BufferPool(1).getNumShards());
+        assertEquals(10, new BufferPool(10, 64).getNumShards());
+        assertEquals(4, new BufferPool(100, 4).getNumShards());
+    }
+
+    /**
+     * A transaction can dirty every frame of a sharded NO STEAL pool, not
+     * just the frames of the shards its pages hash to: full shards borrow
+     * frames from the others, and only a pool with no clean frame left
+     * refuses a page. Consecutive page numbers hash to consecutive shards,
+     * so the first pages dirtied, THREADS apart, all go to one shard.
+     */
+    @Test public void testShardsBorrowFrames() throws Exception {
+        int share = POOL_PAGES / THREADS;
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * 2 * share * THREADS, null, null);
+        List<Integer> pages = new ArrayList<>();
+        for (int i = 0; i < 2 * share; i++) {
+            pages.add(i * THREADS);
+        }
+        for (int i = 0; pages.size() <= POOL_PAGES; i++) {
+            if (i % THREADS != 0) {
+                pages.add(i);
+            }
+        }
+        for (ReplacementPolicy.Type policy : ReplacementPolicy.Type.values()) {
+            BufferPool bp = new BufferPool(POOL_PAGES, THREADS, 0, policy);
+            TransactionId tid = new TransactionId();
+            try {
+                for (int pageNo : pages.subList(0, POOL_PAGES)) {
+                    bp.getPage(tid, new HeapPageId(f.getId(), pageNo), Permissions.READ_WRITE).markDirty(true, tid);
+                }
+                try {
+                    bp.getPage(tid, new HeapPageId(f.getId(), pages.get(POOL_PAGES)), Permissions.READ_ONLY);
+                    fail(policy + ": expected DbException");
+                } catch (DbException expected) {
+                }
+            } finally {
+                bp.transactionComplete(tid, false);
+            }
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolContentionTest.class);
+    }
+}
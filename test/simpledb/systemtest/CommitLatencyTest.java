@@ -0,0 +1,75 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Commits small transactions through buffer pools of growing size, every
+ * frame filled with a page of the table, and checks that each commit writes
+ * its one-page write set and nothing else, whatever the size of the pool.
+ */
+public class CommitLatencyTest extends SimpleDbTestBase {
+    private static final int[] POOL_SIZES = { 64, 512, 2048 };
+    private static final int COMMITS = 30;
+
+    /** Create a table of numPages empty pages. */
+    private static HeapFile createEmptyTable(int numPages) throws IOException {
+        File f = File.createTempFile("commit", ".dat");
+        f.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            byte[] empty = HeapPage.createEmptyPageData();
+            for (int i = 0; i < numPages; i++) {
+                out.write(empty);
+            }
+        }
+        HeapFile table = new HeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        return table;
+    }
+
+    /** Commit one-tuple inserts through a full pool of poolPages; return the metrics of the commits. */
+    private static StorageMetrics.Snapshot commits(HeapFile table, int poolPages) throws Exception {
+        BufferPool bp = Database.resetBufferPool(poolPages);
+        TransactionId reader = new TransactionId();
+        for (int i = 0; i < poolPages; i++) {
+            bp.getPage(reader, new HeapPageId(table.getId(), i), Permissions.READ_ONLY);
+        }
+        bp.transactionComplete(reader);
+
+        StorageMetrics.Snapshot before = StorageMetrics.get().snapshot();
+        for (int i = 0; i < COMMITS; i++) {
+            TransactionId tid = new TransactionId();
+            bp.insertTuple(tid, table.getId(), Utility.getHeapTuple(i, 2));
+            bp.transactionComplete(tid);
+        }
+        return StorageMetrics.get().snapshot().since(before);
+    }
+
+    @Test public void testCommitWritesOnlyWriteSet() throws Exception {
+        int largest = POOL_SIZES[POOL_SIZES.length - 1];
+        HeapFile table = createEmptyTable(largest);
+
+        for (int poolPages : POOL_SIZES) {
+            StorageMetrics.Snapshot run = commits(table, poolPages);
+            assertEquals(poolPages + " pages", COMMITS, run.getPageWrites(table.getId()));
+            assertEquals(poolPages + " pages", 0, run.getPageReads(table.getId()));
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CommitLatencyTest.class);
+    }
+}
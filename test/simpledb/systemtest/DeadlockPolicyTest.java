@@ -0,0 +1,86 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Permissions;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LockManager;
+import simpledb.storage.PageId;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Runs the same contended workload under every deadlock policy: threads
+ * write-lock a few random pages of a small table in random order, holding
+ * each lock for a moment, so that transactions constantly wait for each
+ * other and regularly deadlock. Checks that under every policy each thread
+ * gets a fixed number of transactions through, retrying the aborted ones.
+ */
+public class DeadlockPolicyTest extends SimpleDbTestBase {
+    private static final int THREADS = 4;
+    private static final int PAGES = 16;
+    private static final int LOCKS_PER_TXN = 3;
+    private static final int COMMITS_PER_THREAD = 100;
+    private static final long WORK_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    /** Run the workload against lm until every thread has committed; return the commits. */
+    private static long run(LockManager lm) throws InterruptedException {
+        AtomicLong commits = new AtomicLong();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            long seed = i;
+            Thread t = new Thread(() -> {
+                Random rand = new Random(seed);
+                int committed = 0;
+                while (committed < COMMITS_PER_THREAD) {
+                    TransactionId tid = new TransactionId();
+                    try {
+                        for (int j = 0; j < LOCKS_PER_TXN; j++) {
+                            PageId pid = new HeapPageId(1, rand.nextInt(PAGES));
+                            Permissions perm = rand.nextInt(4) == 0 ? Permissions.READ_ONLY : Permissions.READ_WRITE;
+                            lm.LockPage(pid, tid, perm);
+                            LockSupport.parkNanos(WORK_NANOS);
+                        }
+                        committed++;
+                        commits.incrementAndGet();
+                    } catch (TransactionAbortedException e) {
+                        // a deadlock victim; try another transaction
+                    } finally {
+                        lm.releaseAllLocks(tid);
+                    }
+                }
+            });
+            t.setDaemon(true);
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join(30000);
+            assertFalse("workload stuck", t.isAlive());
+        }
+        return commits.get();
+    }
+
+    @Test public void testPoliciesMakeProgress() throws Exception {
+        for (LockManager.DeadlockPolicy policy : LockManager.DeadlockPolicy.values()) {
+            LockManager lm = new LockManager();
+            lm.setDeadlockPolicy(policy);
+            assertEquals(policy.toString(), THREADS * COMMITS_PER_THREAD, run(lm));
+        }
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(DeadlockPolicyTest.class);
+    }
+}
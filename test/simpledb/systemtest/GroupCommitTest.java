@@ -0,0 +1,125 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.SeqScan;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+
+/**
+ * Commits small transactions from several threads under STEAL / NO FORCE,
+ * where the log force is the only synchronous write of a commit, and checks
+ * that concurrent committers share log forces and that every commit is
+ * still durable.
+ */
+public class GroupCommitTest extends SimpleDbTestBase {
+
+    private static HeapFile createTable() throws Exception {
+        File file = File.createTempFile("groupcommit", ".dat");
+        file.deleteOnExit();
+        HeapFile table = new HeapFile(file, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        return table;
+    }
+
+    private static int count(HeapFile table) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), table.getId(), "");
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        t.commit();
+        return count;
+    }
+
+    /**
+     * Run threads committing one-row inserts, each into a table of its own
+     * so that they never wait for each other's locks, perThread times each;
+     * return the metrics of the run.
+     */
+    private static StorageMetrics.Snapshot commit(List<HeapFile> tables, int threads, int perThread)
+            throws Exception {
+        StorageMetrics.Snapshot before = StorageMetrics.get().snapshot();
+        List<CompletableFuture<Void>> committers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            HeapFile table = tables.get(i);
+            committers.add(CompletableFuture.runAsync(() -> {
+                try {
+                    for (int n = 0; n < perThread; n++) {
+                        Transaction t = new Transaction();
+                        t.start();
+                        Database.getBufferPool().insertTuple(t.getId(), table.getId(),
+                                Utility.getHeapTuple(new int[] { n, n }));
+                        t.commit();
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }));
+        }
+        for (CompletableFuture<Void> c : committers) {
+            c.get(30, TimeUnit.SECONDS);
+        }
+        return StorageMetrics.get().snapshot().since(before);
+    }
+
+    @Test public void testConcurrentCommitsShareForces() throws Exception {
+        final int threads = 4;
+        final int perThread = 50;
+        Database.getBufferPool().setStealNoForce(true, 0);
+        List<HeapFile> tables = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            tables.add(createTable());
+        }
+
+        // a lone committer with no window forces the log for every commit
+        Database.getLogFile().setGroupCommitWindow(0);
+        StorageMetrics.Snapshot alone = commit(tables, 1, perThread);
+        assertEquals(perThread, alone.getCommits());
+        assertTrue(alone.getLogForces() >= perThread);
+
+        // with a window, concurrent committers nearly always find a group to join
+        Database.getLogFile().setGroupCommitWindow(1000);
+        StorageMetrics.Snapshot grouped = commit(tables, threads, perThread);
+        assertEquals(threads * perThread, grouped.getCommits());
+        assertTrue(grouped.getLogForces() + " forces", grouped.getLogForces() < threads * perThread);
+
+        // crash: every acknowledged commit is in the log
+        File[] files = new File[threads];
+        for (int i = 0; i < threads; i++) {
+            files[i] = tables.get(i).getFile();
+        }
+        Database.reset();
+        List<HeapFile> reopened = new ArrayList<>();
+        for (File f : files) {
+            reopened.add(Utility.openHeapFile(2, f));
+        }
+        Database.getLogFile().recover();
+        int total = 0;
+        for (HeapFile table : reopened) {
+            total += count(table);
+        }
+        assertEquals((threads + 1) * perThread, total);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
@@ -11,6 +11,9 @@ import simpledb.common.Permissions;
 import simpledb.common.Utility;
 import simpledb.execution.Insert;
 import simpledb.execution.SeqScan;
+import simpledb.index.BTreeChecker;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
 import simpledb.storage.*;
 import simpledb.transaction.Transaction;
 import simpledb.transaction.TransactionAbortedException;
@@ -128,12 +131,21 @@ public class LogTest extends SimpleDbTestBase {
         // adds to the catalog.
         file1 = new File("simple1.db");
         file1.delete();
+        deleteSideFile(file1);
         file2 = new File("simple2.db");
         file2.delete();
+        deleteSideFile(file2);
         hf1 = Utility.createEmptyHeapFile(file1.getAbsolutePath(), 2);
         hf2 = Utility.createEmptyHeapFile(file2.getAbsolutePath(), 2);
     }
 
+    // the free-space map of a heap file outlives it unless deleted too
+    void deleteSideFile(File heapFile) {
+        File side = FreeSpaceMap.sideFile(heapFile);
+        side.delete();
+        side.deleteOnExit();
+    }
+
     @Test public void PatchTest()
             throws IOException, DbException, TransactionAbortedException {
         setup();
@@ -435,6 +447,290 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestCompressedImagesRecover()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        LogFile log = Database.getLogFile();
+        log.setDeltaLogging(false);
+
+        // *** Test:
+        // T1 inserts and commits, logging raw page images
+        // T2 inserts and commits, logging compressed page images
+        // T3 inserts compressed images but does not commit
+        // crash, recovering with compression off
+        // only T1 and T2 data should be there
+
+        long start = log.getEndLsn();
+        doInsert(hf1, 40, 41);
+        long raw = log.getEndLsn() - start;
+
+        log.setCompression(true);
+        start = log.getEndLsn();
+        doInsert(hf1, 42, 43);
+        long compressed = log.getEndLsn() - start;
+        assertTrue(compressed + " vs " + raw, compressed < raw);
+
+        Transaction t3 = new Transaction();
+        t3.start();
+        insertRow(hf2, t3, 44);
+        Database.getBufferPool().flushAllPages(); // XXX defeat NO-STEAL-based abort
+        insertRow(hf2, t3, 45);
+
+        crash();
+        assertFalse(Database.getLogFile().isCompression());
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 40, true);
+        look(hf1, t, 41, true);
+        look(hf1, t, 42, true);
+        look(hf1, t, 43, true);
+        look(hf2, t, 44, false);
+        look(hf2, t, 45, false);
+        t.commit();
+    }
+
+    /** Return the sorted first fields of the tuples of f that t sees. */
+    List<Integer> keys(DbFile f, Transaction t) throws DbException, TransactionAbortedException {
+        SeqScan scan = new SeqScan(t.getId(), f.getId(), "");
+        scan.open();
+        List<Integer> keys = new ArrayList<>();
+        while (scan.hasNext()) {
+            keys.add(((IntField) scan.next().getField(0)).getValue());
+        }
+        scan.close();
+        keys.sort(null);
+        return keys;
+    }
+
+    @Test public void TestDeltaRecordsRecover()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        LogFile log = Database.getLogFile();
+        File btreeFile = new File("simplebt.db");
+        btreeFile.delete();
+        BTreeFile bf = BTreeUtility.createEmptyBTreeFile(btreeFile.getAbsolutePath(), 2, 0);
+
+        // *** Test:
+        // a one-row insert logs the row, not the page
+        // T1 inserts enough rows into a B+ tree to split its pages, commits
+        // T2 inserts more, is stolen and aborts
+        // T3 inserts more, is stolen and does not commit
+        // crash
+        // only T1's rows should be there, in a sound tree
+
+        doInsert(hf1, 1, 2);
+        long start = log.getEndLsn();
+        doInsert(hf1, 3, 4);
+        long delta = log.getEndLsn() - start;
+        log.setDeltaLogging(false);
+        start = log.getEndLsn();
+        doInsert(hf1, 5, 6);
+        long images = log.getEndLsn() - start;
+        log.setDeltaLogging(true);
+        assertTrue(delta + " vs " + images, delta * 10 < images);
+
+        List<Integer> committed = new ArrayList<>();
+        Transaction t1 = new Transaction();
+        t1.start();
+        for (int i = 0; i < 1500; i++) {
+            int key = (i * 7919) % 1500;
+            Database.getBufferPool().insertTuple(t1.getId(), bf.getId(), BTreeUtility.getBTreeTuple(key, 2));
+            committed.add(key);
+        }
+        t1.commit();
+        committed.sort(null);
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        for (int i = 0; i < 600; i++) {
+            Database.getBufferPool().insertTuple(t2.getId(), bf.getId(), BTreeUtility.getBTreeTuple(2000 + i, 2));
+        }
+        Database.getBufferPool().flushAllPages(); // XXX defeat NO-STEAL-based abort
+        abort(t2);
+
+        Transaction t3 = new Transaction();
+        t3.start();
+        for (int i = 0; i < 600; i++) {
+            Database.getBufferPool().insertTuple(t3.getId(), bf.getId(), BTreeUtility.getBTreeTuple(i % 300, 2));
+            if (i == 300) {
+                Database.getBufferPool().flushAllPages(); // XXX defeat NO-STEAL-based abort
+            }
+        }
+        Database.getBufferPool().flushAllPages();
+
+        Database.reset();
+        hf1 = Utility.openHeapFile(2, file1);
+        hf2 = Utility.openHeapFile(2, file2);
+        bf = BTreeUtility.openBTreeFile(2, btreeFile, 0);
+        Database.getLogFile().recover();
+
+        Transaction t = new Transaction();
+        t.start();
+        assertEquals(committed, keys(bf, t));
+        BTreeChecker.checkRep(bf, t.getId(), new HashMap<>(), false);
+        look(hf1, t, 3, true);
+        look(hf1, t, 6, true);
+        t.commit();
+    }
+
+    @Test public void TestLsnsAndPageLsn()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        LogFile log = Database.getLogFile();
+
+        // *** Test:
+        // LSNs grow with every record, also across the truncation that
+        // follows a checkpoint, and writing a page back forces the log
+        // just past its pageLSN
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 30);
+        long begun = log.getEndLsn();
+        Database.getBufferPool().flushAllPages();
+        BufferPool.Frame frame = Database.getBufferPool().pinPage(t1.getId(),
+                new HeapPageId(hf1.getId(), 0), Permissions.READ_ONLY);
+        long pageLsn = frame.getPageLsn();
+        Database.getBufferPool().unpin(t1.getId(), frame);
+        assertTrue(pageLsn > begun);
+        assertTrue(log.getDurableLsn() >= pageLsn);
+        t1.commit();
+
+        long beforeCheckpoint = log.getEndLsn();
+        assertTrue(log.getDurableLsn() >= beforeCheckpoint);
+        log.logCheckpoint();
+        assertTrue(log.getEndLsn() > beforeCheckpoint);
+        doInsert(hf2, 31, 32);
+        assertTrue(log.getDurableLsn() > beforeCheckpoint);
+
+        crash();
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 30, true);
+        look(hf2, t, 31, true);
+        look(hf2, t, 32, true);
+        t.commit();
+    }
+
+    // commit a transaction inserting rows from..to-1 into hf
+    void commitRows(HeapFile hf, int from, int to)
+        throws DbException, TransactionAbortedException, IOException {
+        Transaction t = new Transaction();
+        t.start();
+        for (int v = from; v < to; v++)
+            insertRow(hf, t, v);
+        t.commit();
+    }
+
+    @Test public void TestRecoveryStartsAtCheckpoint()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        Database.getBufferPool().setStealNoForce(true, 0);
+
+        // *** Test:
+        // T0 inserts into hf2 and stays open, so the log keeps its records
+        // 100 NO FORCE transactions fill several pages of hf1
+        // checkpoint, writing every page
+        // 5 transactions add rows to the last page of hf1, in memory only
+        // crash, recovering with room for one page
+        // only that page of hf1 and T0's page of hf2 should be written
+
+        Transaction t0 = new Transaction();
+        t0.start();
+        insertRow(hf2, t0, 1);
+        for (int i = 0; i < 100; i++)
+            commitRows(hf1, 1000 + 20 * i, 1000 + 20 * (i + 1));
+        Database.getLogFile().logCheckpoint();
+        for (int i = 0; i < 5; i++)
+            commitRows(hf1, 5000 + i, 5000 + i + 1);
+        int hf1Pages = hf1.numPages();
+        assertTrue(hf1Pages > 2);
+
+        Database.reset();
+        hf1 = Utility.openHeapFile(2, file1);
+        hf2 = Utility.openHeapFile(2, file2);
+        Database.getLogFile().setRecoveryPages(1);
+        StorageMetrics.Snapshot before = StorageMetrics.get().snapshot();
+        Database.getLogFile().recover();
+        StorageMetrics.Snapshot recovery = StorageMetrics.get().snapshot().since(before);
+        assertEquals(1, recovery.getPageWrites(hf1.getId()));
+        assertEquals(1, recovery.getPageWrites(hf2.getId()));
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1000, true);
+        look(hf1, t, 2999, true);
+        look(hf1, t, 5000, true);
+        look(hf1, t, 5004, true);
+        look(hf2, t, 1, false);
+        t.commit();
+    }
+
+    @Test public void TestFlushRecordsSkipRedo()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        Database.getBufferPool().setStealNoForce(true, 0);
+
+        // *** Test:
+        // NO FORCE transactions insert into hf1, whose pages are then
+        // written back, and into hf2, whose pages are not
+        // crash
+        // recovery should redo hf2 only: the log says hf1 is on disk
+
+        commitRows(hf1, 10, 20);
+        commitRows(hf2, 20, 30);
+        Database.getBufferPool().flushAllPages();
+        commitRows(hf2, 30, 40);
+
+        Database.reset();
+        hf1 = Utility.openHeapFile(2, file1);
+        hf2 = Utility.openHeapFile(2, file2);
+        StorageMetrics.Snapshot before = StorageMetrics.get().snapshot();
+        Database.getLogFile().recover();
+        StorageMetrics.Snapshot recovery = StorageMetrics.get().snapshot().since(before);
+        assertEquals(0, recovery.getPageReads(hf1.getId()));
+        assertEquals(0, recovery.getPageWrites(hf1.getId()));
+        assertEquals(1, recovery.getPageWrites(hf2.getId()));
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 10, true);
+        look(hf2, t, 20, true);
+        look(hf2, t, 39, true);
+        t.commit();
+    }
+
+    @Test public void TestUndoResumesFromCompensation()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 inserts, is stolen, and is rolled back, but crashes before
+        // its ABORT record
+        // recovery should find it undone by its COMPENSATION records and
+        // log nothing for it but the ABORT record
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 3);
+        insertRow(hf2, t1, 4);
+        Database.getBufferPool().flushAllPages();
+        Database.getLogFile().rollback(t1.getId());
+        Database.getLogFile().force();
+
+        crash();
+        assertEquals(1, Database.getLogFile().getTotalRecords());
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, false);
+        look(hf2, t, 4, false);
+        t.commit();
+    }
 
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
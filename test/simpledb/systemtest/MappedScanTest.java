@@ -0,0 +1,124 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.SeqScan;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Scans the same table through a plain heap file and through a memory-mapped
+ * one, checking that both return the same tuples and that both read each
+ * page from the file once per scan. Also checks segmented mapping and
+ * remapping after the file grows.
+ */
+public class MappedScanTest extends SimpleDbTestBase {
+    private static final int PAGES = 256;
+    private static final int SCANS = 3;
+
+    private static int scan(HeapFile table) throws Exception {
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, table.getId(), "");
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return count;
+    }
+
+    /** Scan table, larger than the pool, a few times, checking that each scan reads every page once. */
+    private static void checkScans(HeapFile table, int rows) throws Exception {
+        for (int i = 0; i < SCANS; i++) {
+            StorageMetrics.Snapshot before = StorageMetrics.get().snapshot();
+            assertEquals(rows, scan(table));
+            assertEquals(PAGES, StorageMetrics.get().snapshot().since(before).getPageReads(table.getId()));
+        }
+    }
+
+    @Test public void testMappedScan() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        File plainFile = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * PAGES, 1000, null, tuples);
+        File mappedFile = File.createTempFile("mapped", ".dat");
+        mappedFile.deleteOnExit();
+        Files.copy(plainFile.toPath(), mappedFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        HeapFile plain = new HeapFile(plainFile, Utility.getTupleDesc(2));
+        HeapFile mapped = new HeapFile(mappedFile, Utility.getTupleDesc(2), true);
+        Database.getCatalog().addTable(plain, SystemTestUtil.getUUID());
+        Database.getCatalog().addTable(mapped, SystemTestUtil.getUUID());
+        assertTrue(mapped.isMemoryMapped());
+
+        SystemTestUtil.matchTuples(mapped, tuples);
+
+        checkScans(plain, tuples.size());
+        checkScans(mapped, tuples.size());
+    }
+
+    @Test public void testSegmentsAndGrowth() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * 10, 1000, null, tuples);
+        HeapFile table = new HeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+
+        int pageSize = BufferPool.getPageSize();
+        FileHandle handle = new FileHandle(f);
+        MappedFile mapping = new MappedFile(handle, pageSize, 4 * pageSize);
+        for (int i = 0; i < 10; i++) {
+            ByteBuffer slice = mapping.slice((long) i * pageSize, pageSize);
+            HeapPageId pid = new HeapPageId(table.getId(), i);
+            assertArrayEquals(table.readPage(pid).getPageData(), new HeapPage(pid, slice).getPageData());
+        }
+        assertEquals(3, mapping.numSegments());
+
+        // grow the file by one page; the mapping picks it up on demand
+        HeapPageId newPid = new HeapPageId(table.getId(), 10);
+        handle.write(10L * pageSize, HeapPage.createEmptyPageData());
+        assertEquals(pageSize, mapping.slice(10L * pageSize, pageSize).remaining());
+        assertEquals(504, new HeapPage(newPid, mapping.slice(10L * pageSize, pageSize)).getNumEmptySlots());
+        handle.close();
+    }
+
+    /**
+     * A page decoded from the mapping copies its before image out of the
+     * mapping once it is dirtied, so writing the page back to the file
+     * does not change the image the page was read as.
+     */
+    @Test public void testBeforeImageOfMappedPage() throws Exception {
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 504, 1000, null, new ArrayList<>());
+        HeapFile table = new HeapFile(f, Utility.getTupleDesc(2), true);
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        HeapPageId pid = new HeapPageId(table.getId(), 0);
+        HeapPage page = (HeapPage) table.readPage(pid);
+        byte[] original = page.getPageData();
+        assertArrayEquals(original, page.getBeforeImage().getPageData());
+
+        page = (HeapPage) table.readPage(pid);
+        TransactionId tid = new TransactionId();
+        page.deleteTuple(page.iterator().next());
+        page.markDirty(true, tid);
+        table.writePage(page);
+        assertArrayEquals(original, page.getBeforeImage().getPageData());
+        assertArrayEquals(page.getPageData(), table.readPage(pid).getPageData());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MappedScanTest.class);
+    }
+}
@@ -0,0 +1,110 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.SeqScan;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Scans the same table through a buffer pool that caches every page on the
+ * heap and through one that keeps a small decoded tier plus an off-heap
+ * {@link PageArena}. Checks that the arena serves the second scan without
+ * disk reads, though every page of it misses the decoded tier.
+ */
+public class OffHeapBufferPoolTest extends SimpleDbTestBase {
+    private static final int PAGES = 256;
+    private static final int HEAP_TIER_PAGES = 16;
+
+    /** Counts the number of readPage operations. */
+    static class InstrumentedHeapFile extends HeapFile {
+        public int readCount = 0;
+
+        public InstrumentedHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) throws NoSuchElementException {
+            readCount += 1;
+            return super.readPage(pid);
+        }
+    }
+
+    private static int scan(HeapFile table) throws Exception {
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, table.getId(), "");
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return count;
+    }
+
+    /** Scan table twice through bp; return the pool's counts for the second scan. */
+    private static StorageMetrics.Snapshot rescan(BufferPool bp, InstrumentedHeapFile table, int rows) throws Exception {
+        Database.resetBufferPool(bp);
+        table.readCount = 0;
+        assertEquals(rows, scan(table));
+        assertEquals(PAGES, table.readCount);
+        table.readCount = 0;
+        StorageMetrics.Snapshot before = StorageMetrics.get().snapshot();
+        assertEquals(rows, scan(table));
+        assertEquals(0, table.readCount);
+        return StorageMetrics.get().snapshot().since(before);
+    }
+
+    @Test public void testArenaServesEvictedPages() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * PAGES, 1000, null, tuples);
+        InstrumentedHeapFile table = new InstrumentedHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+
+        StorageMetrics.Snapshot onHeap = rescan(new BufferPool(PAGES, 1), table, tuples.size());
+        assertEquals(0, onHeap.getMisses());
+        assertEquals(0, onHeap.getEvictions());
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        // the decoded tier is far smaller than the table, so every page
+        // misses it and is decoded again from the arena
+        StorageMetrics.Snapshot offHeap = rescan(new BufferPool(HEAP_TIER_PAGES, 1, PAGES), table, tuples.size());
+        assertEquals(PAGES, offHeap.getMisses());
+        assertEquals(PAGES, offHeap.getEvictions());
+    }
+
+    @Test public void testArenaRecyclesOldestFrame() {
+        PageArena arena = new PageArena(2);
+        byte[] data = new byte[BufferPool.getPageSize()];
+        for (int i = 0; i < 3; i++) {
+            data[0] = (byte) i;
+            arena.put(new HeapPageId(1, i), data);
+        }
+        assertEquals(2, arena.size());
+        assertNull(arena.get(new HeapPageId(1, 0)));
+        assertEquals(1, arena.get(new HeapPageId(1, 1))[0]);
+        assertEquals(2, arena.get(new HeapPageId(1, 2))[0]);
+
+        arena.remove(new HeapPageId(1, 1));
+        assertNull(arena.get(new HeapPageId(1, 1)));
+        assertEquals(1, arena.size());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OffHeapBufferPoolTest.class);
+    }
+}
@@ -0,0 +1,149 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.execution.SeqScan;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Scans tables through a buffer pool with read-ahead on. Checks that heap
+ * file scans and B+ tree scans have their pages prefetched by the read-ahead
+ * threads and that no page is read twice. Heap file reads are slowed down
+ * so that the threads can get ahead of the scan.
+ */
+public class ReadAheadTest extends SimpleDbTestBase {
+    private static final int PAGES = 64;
+    private static final int READ_MILLIS = 2;
+
+    private static boolean isReadAheadThread() {
+        return Thread.currentThread().getName().startsWith("simpledb-read-ahead");
+    }
+
+    /** Counts readPage calls, and those made by read-ahead threads; each read is slow. */
+    static class SlowHeapFile extends HeapFile {
+        final AtomicInteger reads = new AtomicInteger();
+        final AtomicInteger readsAhead = new AtomicInteger();
+
+        SlowHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            reads.incrementAndGet();
+            if (isReadAheadThread()) {
+                readsAhead.incrementAndGet();
+            }
+            try {
+                Thread.sleep(READ_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return super.readPage(pid);
+        }
+    }
+
+    static class CountingBTreeFile extends BTreeFile {
+        final AtomicInteger reads = new AtomicInteger();
+        final AtomicInteger readsAhead = new AtomicInteger();
+
+        CountingBTreeFile(File f, int keyField, TupleDesc td) {
+            super(f, keyField, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) throws NoSuchElementException {
+            reads.incrementAndGet();
+            if (isReadAheadThread()) {
+                readsAhead.incrementAndGet();
+            }
+            return super.readPage(pid);
+        }
+    }
+
+    private static int scan(DbFile table) throws Exception {
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, table.getId(), "");
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return count;
+    }
+
+    @Test public void testHeapScan() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * PAGES, 1000, null, tuples);
+        SlowHeapFile table = new SlowHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+
+        Database.resetBufferPool(2 * PAGES);
+        assertEquals(0, Database.getBufferPool().getReadAhead());
+        assertEquals(tuples.size(), scan(table));
+        assertEquals(PAGES, table.reads.get());
+        assertEquals(0, table.readsAhead.get());
+
+        Database.resetBufferPool(2 * PAGES);
+        Database.getBufferPool().setReadAhead(8);
+        table.reads.set(0);
+        assertEquals(tuples.size(), scan(table));
+        // every page read exactly once, most of them ahead of the scan
+        assertEquals(PAGES, table.reads.get());
+        assertTrue(table.readsAhead.get() > PAGES / 2);
+    }
+
+    @Test public void testRandomAccessIsNotPrefetched() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * 16, 1000, null, tuples);
+        SlowHeapFile table = new SlowHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+
+        Database.resetBufferPool(2 * PAGES);
+        Database.getBufferPool().setReadAhead(8);
+        TransactionId tid = new TransactionId();
+        for (int pageNo : new int[] { 9, 3, 12, 0, 6 }) {
+            Database.getBufferPool().getPage(tid, new HeapPageId(table.getId(), pageNo), Permissions.READ_ONLY);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(5, table.reads.get());
+        assertEquals(0, table.readsAhead.get());
+    }
+
+    @Test public void testBTreeScan() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        BTreeFile f = BTreeUtility.createBTreeFile(2, 30 * 502, null, tuples, 0);
+        CountingBTreeFile table = new CountingBTreeFile(f.getFile(), 0, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Database.getBufferPool().setReadAhead(8);
+        assertEquals(tuples.size(), scan(table));
+        // each leaf is read once, all but the first by a read-ahead thread
+        assertEquals(table.numPages() + 1, table.reads.get());
+        assertTrue(table.readsAhead.get() > 0);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
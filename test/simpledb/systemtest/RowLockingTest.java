@@ -0,0 +1,317 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.Delete;
+import simpledb.execution.Filter;
+import simpledb.execution.Insert;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+
+/**
+ * Runs inserts and deletes of several transactions against one heap page
+ * with row locking: writers of different rows do not wait for each other,
+ * a writer of the same row does, and neither commit, abort nor crash
+ * recovery lets one transaction's uncommitted rows leak into another's
+ * committed page.
+ */
+public class RowLockingTest extends SimpleDbTestBase {
+    private static final int ROWS = 10;
+
+    private File file;
+
+    private HeapFile createTable() throws Exception {
+        file = File.createTempFile("rowlocking", ".dat");
+        file.deleteOnExit();
+        HeapFile table = new HeapFile(file, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < ROWS; i++) {
+            insert(t, table, i);
+        }
+        t.commit();
+        Database.getBufferPool().setRowLocking(true);
+        return table;
+    }
+
+    private static void insert(Transaction t, HeapFile table, int value) throws Exception {
+        Database.getBufferPool().insertTuple(t.getId(), table.getId(), Utility.getHeapTuple(new int[] { value, value }));
+    }
+
+    /** Return the committed tuples of table, in page order. */
+    private static List<Tuple> tuples(HeapFile table) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), table.getId(), "");
+        scan.open();
+        List<Tuple> tuples = new ArrayList<>();
+        while (scan.hasNext()) {
+            tuples.add(scan.next());
+        }
+        scan.close();
+        t.commit();
+        return tuples;
+    }
+
+    private static List<Integer> values(Iterator<Tuple> it) {
+        List<Integer> values = new ArrayList<>();
+        while (it.hasNext()) {
+            values.add(((IntField) it.next().getField(0)).getValue());
+        }
+        values.sort(null);
+        return values;
+    }
+
+    private static List<Integer> values(HeapFile table) throws Exception {
+        return values(tuples(table).iterator());
+    }
+
+    /** Return 0..ROWS-1 without the given values, plus the given extra ones, sorted. */
+    private static List<Integer> expected(List<Integer> without, int... extra) {
+        List<Integer> values = new ArrayList<>();
+        for (int i = 0; i < ROWS; i++) {
+            if (!without.contains(i)) {
+                values.add(i);
+            }
+        }
+        for (int v : extra) {
+            values.add(v);
+        }
+        values.sort(null);
+        return values;
+    }
+
+    /** Run body in another thread; the future completes when it is done. */
+    private static CompletableFuture<Void> async(ThrowingRunnable body) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                body.run();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    private interface ThrowingRunnable {
+        void run() throws Exception;
+    }
+
+    @Test public void testWritersOfOnePageDoNotBlock() throws Exception {
+        HeapFile table = createTable();
+        List<Tuple> rows = tuples(table);
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(t1, table, 100);
+        Database.getBufferPool().deleteTuple(t1.getId(), rows.get(0));
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        async(() -> {
+            insert(t2, table, 200);
+            Database.getBufferPool().deleteTuple(t2.getId(), rows.get(1));
+        }).get(5, TimeUnit.SECONDS);
+        assertEquals(1, table.numPages());
+        t2.commit();
+
+        // the written page has t2's changes but not those of t1, which is still running
+        HeapPage onDisk = (HeapPage) table.readPage(new HeapPageId(table.getId(), 0));
+        assertEquals(expected(Arrays.asList(1), 200), values(onDisk.iterator()));
+
+        t1.abort();
+        assertEquals(expected(Arrays.asList(1), 200), values(table));
+    }
+
+    @Test public void testWriterOfSameRowWaits() throws Exception {
+        HeapFile table = createTable();
+        List<Tuple> rows = tuples(table);
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        Database.getBufferPool().deleteTuple(t1.getId(), rows.get(0));
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        CompletableFuture<Void> other = async(() -> Database.getBufferPool().deleteTuple(t2.getId(), rows.get(1)));
+        other.get(5, TimeUnit.SECONDS);
+        CompletableFuture<Void> same = async(() -> Database.getBufferPool().deleteTuple(t2.getId(), rows.get(0)));
+        Thread.sleep(100);
+        assertFalse(same.isDone());
+
+        // the aborted delete gives the row back to t2, and its slot is not reused meanwhile
+        Transaction t3 = new Transaction();
+        t3.start();
+        for (int i = 0; i < 5; i++) {
+            insert(t3, table, 300 + i);
+        }
+        t3.commit();
+        t1.abort();
+        same.get(5, TimeUnit.SECONDS);
+        t2.commit();
+        assertEquals(expected(Arrays.asList(0, 1), 300, 301, 302, 303, 304), values(table));
+    }
+
+    /** Delete the rows of table whose first field equals value, through a scan, as t. */
+    private static void deleteWhere(Transaction t, HeapFile table, int value) throws Exception {
+        Filter filter = new Filter(new Predicate(0, Predicate.Op.EQUALS, new IntField(value)),
+                new SeqScan(t.getId(), table.getId(), ""));
+        Delete delete = new Delete(t.getId(), filter);
+        delete.open();
+        assertEquals(1, ((IntField) delete.next().getField(0)).getValue());
+        delete.close();
+    }
+
+    /** Insert a row through the Insert operator, as t. */
+    private static void insertThroughOperator(Transaction t, HeapFile table, int value) throws Exception {
+        Tuple tuple = Utility.getHeapTuple(new int[] { value, value });
+        Insert insert = new Insert(t.getId(), new TupleIterator(tuple.getTupleDesc(), Arrays.asList(tuple)), table.getId());
+        insert.open();
+        assertEquals(1, ((IntField) insert.next().getField(0)).getValue());
+        insert.close();
+    }
+
+    @Test public void testScanningDeleteAndInsertDoNotBlock() throws Exception {
+        HeapFile table = createTable();
+
+        // the scan of t1 locks the rows it reads, not the page
+        Transaction t1 = new Transaction();
+        t1.start();
+        deleteWhere(t1, table, 0);
+        Transaction t2 = new Transaction();
+        t2.start();
+        async(() -> insertThroughOperator(t2, table, 100)).get(5, TimeUnit.SECONDS);
+        t1.commit();
+
+        // the pending insert of t2 is invisible to the scan of t3, which does not wait for it
+        Transaction t3 = new Transaction();
+        t3.start();
+        async(() -> deleteWhere(t3, table, 1)).get(5, TimeUnit.SECONDS);
+        assertEquals(1, table.numPages());
+
+        t2.commit();
+        t3.commit();
+        assertEquals(expected(Arrays.asList(0, 1), 100), values(table));
+    }
+
+    @Test public void testScanWaitsForWriterOfRow() throws Exception {
+        HeapFile table = createTable();
+        List<Tuple> rows = tuples(table);
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        Database.getBufferPool().deleteTuple(t1.getId(), rows.get(0));
+
+        // the reader sees the committed row until the delete commits
+        Transaction t2 = new Transaction();
+        t2.start();
+        CompletableFuture<List<Integer>> scan = CompletableFuture.supplyAsync(() -> {
+            try {
+                List<Integer> values = new ArrayList<>();
+                SeqScan s = new SeqScan(t2.getId(), table.getId(), "");
+                s.open();
+                while (s.hasNext()) {
+                    values.add(((IntField) s.next().getField(0)).getValue());
+                }
+                s.close();
+                values.sort(null);
+                return values;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(100);
+        assertFalse(scan.isDone());
+        t1.commit();
+        assertEquals(expected(Arrays.asList(0)), scan.get(5, TimeUnit.SECONDS));
+        t2.commit();
+    }
+
+    @Test public void testRecoveryKeepsOutRunningRows() throws Exception {
+        HeapFile table = createTable();
+        Database.getBufferPool().setStealNoForce(true, 0);
+        List<Tuple> rows = tuples(table);
+
+        // t1 never finishes
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(t1, table, 100);
+        Database.getBufferPool().deleteTuple(t1.getId(), rows.get(0));
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insert(t2, table, 200);
+        t2.commit();
+        // write back what can be written: the committed image only
+        Database.getBufferPool().flushAllPages();
+        HeapPage onDisk = (HeapPage) table.readPage(new HeapPageId(table.getId(), 0));
+        assertEquals(expected(Arrays.asList(), 200), values(onDisk.iterator()));
+
+        // crash
+        Database.reset();
+        table = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+        assertEquals(expected(Arrays.asList(), 200), values(table));
+    }
+
+    /**
+     * Run a few writers, each committing rows inserted into the same page
+     * one at a time, holding each for a moment before committing; return
+     * the values inserted.
+     */
+    private static List<Integer> hotPageWriters(HeapFile table, int base) throws Exception {
+        final int threads = 4;
+        final int commits = 25;
+        List<CompletableFuture<Void>> writers = new ArrayList<>();
+        List<Integer> inserted = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            int first = base + 1000 * i;
+            writers.add(async(() -> {
+                for (int n = 0; n < commits; n++) {
+                    Transaction t = new Transaction();
+                    t.start();
+                    insert(t, table, first + n);
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                    t.commit();
+                }
+            }));
+            for (int n = 0; n < commits; n++) {
+                inserted.add(first + n);
+            }
+        }
+        for (CompletableFuture<Void> w : writers) {
+            w.get(30, TimeUnit.SECONDS);
+        }
+        return inserted;
+    }
+
+    @Test public void testHotPageWriters() throws Exception {
+        HeapFile table = createTable();
+        Database.getBufferPool().setRowLocking(false);
+        List<Integer> inserted = hotPageWriters(table, 10000);
+        Database.getBufferPool().setRowLocking(true);
+        inserted.addAll(hotPageWriters(table, 20000));
+        assertEquals(expected(Arrays.asList(), inserted.stream().mapToInt(Integer::intValue).toArray()), values(table));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RowLockingTest.class);
+    }
+}
@@ -0,0 +1,155 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.execution.SeqScan;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Runs point queries against a small hot table while a table several times
+ * larger than the buffer pool is scanned. Checks that a scan through a ring
+ * {@link BufferAccessStrategy} leaves the hot table resident, both after the
+ * scan and while it runs.
+ */
+public class ScanResistanceTest extends SimpleDbTestBase {
+    private static final int POOL_PAGES = 64;
+    private static final int HOT_PAGES = 24;
+    private static final int BIG_PAGES = 256;
+    private static final int QUERIES = 1000;
+
+    /** Counts readPage calls; each read takes a millisecond, like a disk would. */
+    static class SlowHeapFile extends HeapFile {
+        final AtomicInteger reads = new AtomicInteger();
+
+        SlowHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            reads.incrementAndGet();
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return super.readPage(pid);
+        }
+    }
+
+    private static SlowHeapFile createTable(int pages) throws Exception {
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * pages, 1000, null, new ArrayList<>());
+        SlowHeapFile table = new SlowHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        return table;
+    }
+
+    private static int scan(DbFileIterator it, TransactionId tid) throws Exception {
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return count;
+    }
+
+    private static int seqScan(HeapFile table) throws Exception {
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, table.getId(), "");
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return count;
+    }
+
+    @Test public void testRingKeepsWorkingSet() throws Exception {
+        SlowHeapFile hot = createTable(HOT_PAGES);
+        SlowHeapFile big = createTable(BIG_PAGES);
+        Database.resetBufferPool(new BufferPool(POOL_PAGES, 1));
+        BufferPool bp = Database.getBufferPool();
+        assertNull(bp.scanStrategy(hot));
+        assertEquals(POOL_PAGES / 8, bp.scanStrategy(big).ringPages());
+
+        assertEquals(504 * HOT_PAGES, seqScan(hot));
+        assertEquals(HOT_PAGES, hot.reads.get());
+
+        // SeqScan picks the ring for the big table; the hot table stays cached
+        assertEquals(504 * BIG_PAGES, seqScan(big));
+        assertEquals(BIG_PAGES, big.reads.get());
+        hot.reads.set(0);
+        assertEquals(504 * HOT_PAGES, seqScan(hot));
+        assertEquals(0, hot.reads.get());
+
+        // without the ring the same scan flushes it out
+        TransactionId tid = new TransactionId();
+        assertEquals(504 * BIG_PAGES, scan(big.iterator(tid), tid));
+        assertEquals(504 * HOT_PAGES, seqScan(hot));
+        assertEquals(HOT_PAGES, hot.reads.get());
+    }
+
+    /** Run point queries against hot while big is scanned over and over. */
+    private static void pointQueries(SlowHeapFile hot, SlowHeapFile big, boolean ring) throws Exception {
+        Database.resetBufferPool(new BufferPool(POOL_PAGES, 1));
+        BufferPool bp = Database.getBufferPool();
+        seqScan(hot);
+        AtomicBoolean done = new AtomicBoolean();
+        Thread scanner = new Thread(() -> {
+            try {
+                while (!done.get()) {
+                    TransactionId tid = new TransactionId();
+                    scan(ring ? big.iterator(tid, bp.scanStrategy(big)) : big.iterator(tid), tid);
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        scanner.start();
+        Random r = new Random(0);
+        for (int i = 0; i < QUERIES; i++) {
+            TransactionId tid = new TransactionId();
+            bp.getPage(tid, new HeapPageId(hot.getId(), r.nextInt(HOT_PAGES)), Permissions.READ_ONLY);
+            bp.transactionComplete(tid);
+            if (i % 10 == 0) {
+                Thread.sleep(1);
+            }
+        }
+        done.set(true);
+        scanner.join();
+    }
+
+    @Test public void testPointQueriesDuringScan() throws Exception {
+        SlowHeapFile hot = createTable(HOT_PAGES);
+        SlowHeapFile big = createTable(BIG_PAGES);
+
+        pointQueries(hot, big, true);
+        // the hot table is read once to warm the pool, and never again
+        assertEquals(HOT_PAGES, hot.reads.get());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ScanResistanceTest.class);
+    }
+}
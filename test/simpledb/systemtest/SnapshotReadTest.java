@@ -0,0 +1,282 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.execution.SeqScan;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+
+/**
+ * Runs snapshot transactions next to writers: a snapshot reads the data
+ * committed when it began, whatever commits meanwhile, without waiting for
+ * writers' locks or making writers wait for its own.
+ */
+public class SnapshotReadTest extends SimpleDbTestBase {
+    private static final int ROWS = 10;
+
+    private HeapFile createTable() throws Exception {
+        File file = File.createTempFile("snapshot", ".dat");
+        file.deleteOnExit();
+        HeapFile table = new HeapFile(file, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < ROWS; i++) {
+            insert(t, table, i);
+        }
+        t.commit();
+        return table;
+    }
+
+    private static void insert(Transaction t, HeapFile table, int value) throws Exception {
+        Database.getBufferPool().insertTuple(t.getId(), table.getId(), Utility.getHeapTuple(new int[] { value, value }));
+    }
+
+    /** Return the sorted values of table that t sees. */
+    private static List<Integer> values(Transaction t, HeapFile table) throws Exception {
+        SeqScan scan = new SeqScan(t.getId(), table.getId(), "");
+        scan.open();
+        List<Integer> values = new ArrayList<>();
+        while (scan.hasNext()) {
+            values.add(((IntField) scan.next().getField(0)).getValue());
+        }
+        scan.close();
+        values.sort(null);
+        return values;
+    }
+
+    /** Return the sorted values of table that a new snapshot sees. */
+    private static List<Integer> snapshotValues(HeapFile table) throws Exception {
+        Transaction t = new Transaction();
+        t.startSnapshot();
+        List<Integer> values = values(t, table);
+        t.commit();
+        return values;
+    }
+
+    private static List<Integer> range(int n, int... extra) {
+        List<Integer> values = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            values.add(i);
+        }
+        for (int v : extra) {
+            values.add(v);
+        }
+        values.sort(null);
+        return values;
+    }
+
+    /** Run body in another thread; the future completes when it is done. */
+    private static CompletableFuture<Void> async(ThrowingRunnable body) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                body.run();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    private interface ThrowingRunnable {
+        void run() throws Exception;
+    }
+
+    @Test public void testSnapshotDoesNotWaitForWriter() throws Exception {
+        HeapFile table = createTable();
+        Transaction writer = new Transaction();
+        writer.start();
+        insert(writer, table, 100);
+
+        Transaction snapshot = new Transaction();
+        snapshot.startSnapshot();
+        List<Integer> before = new ArrayList<>();
+        async(() -> before.addAll(values(snapshot, table))).get(5, TimeUnit.SECONDS);
+        assertEquals(range(ROWS), before);
+
+        writer.commit();
+        // still the data committed when the snapshot began
+        assertEquals(range(ROWS), values(snapshot, table));
+        snapshot.commit();
+        assertEquals(range(ROWS, 100), snapshotValues(table));
+    }
+
+    @Test public void testWriterDoesNotWaitForSnapshot() throws Exception {
+        HeapFile table = createTable();
+        Transaction snapshot = new Transaction();
+        snapshot.startSnapshot();
+        SeqScan scan = new SeqScan(snapshot.getId(), table.getId(), "");
+        scan.open();
+        List<Integer> seen = new ArrayList<>();
+        seen.add(((IntField) scan.next().getField(0)).getValue());
+
+        // delete the rest of the page being scanned and commit
+        async(() -> {
+            Transaction writer = new Transaction();
+            writer.start();
+            SeqScan rows = new SeqScan(writer.getId(), table.getId(), "");
+            rows.open();
+            List<Tuple> doomed = new ArrayList<>();
+            while (rows.hasNext()) {
+                doomed.add(rows.next());
+            }
+            rows.close();
+            for (Tuple t : doomed.subList(1, doomed.size())) {
+                Database.getBufferPool().deleteTuple(writer.getId(), t);
+            }
+            insert(writer, table, 100);
+            writer.commit();
+        }).get(5, TimeUnit.SECONDS);
+
+        while (scan.hasNext()) {
+            seen.add(((IntField) scan.next().getField(0)).getValue());
+        }
+        scan.close();
+        seen.sort(null);
+        assertEquals(range(ROWS), seen);
+        snapshot.commit();
+        assertEquals(Arrays.asList(0, 100), snapshotValues(table));
+    }
+
+    @Test public void testSnapshotSeesNoPendingRows() throws Exception {
+        HeapFile table = createTable();
+        Database.getBufferPool().setRowLocking(true);
+        Transaction running = new Transaction();
+        running.start();
+        insert(running, table, 100);
+
+        Transaction snapshot = new Transaction();
+        snapshot.startSnapshot();
+        Transaction committer = new Transaction();
+        committer.start();
+        insert(committer, table, 200);
+        committer.commit();
+
+        assertEquals(range(ROWS), values(snapshot, table));
+        snapshot.commit();
+        assertEquals(range(ROWS, 200), snapshotValues(table));
+        running.abort();
+        assertEquals(range(ROWS, 200), snapshotValues(table));
+    }
+
+    /** Delete every row of table as t, dirtying all of its pages. */
+    private static void deleteAll(Transaction t, HeapFile table) throws Exception {
+        SeqScan scan = new SeqScan(t.getId(), table.getId(), "");
+        scan.open();
+        List<Tuple> rows = new ArrayList<>();
+        while (scan.hasNext()) {
+            rows.add(scan.next());
+        }
+        scan.close();
+        for (Tuple row : rows) {
+            Database.getBufferPool().deleteTuple(t.getId(), row);
+        }
+    }
+
+    @Test public void testSnapshotOfStolenPages() throws Exception {
+        HeapFile table = createTable();
+        // six pages each, twice the pool
+        HeapFile other = SystemTestUtil.createRandomHeapFile(2, 3000, null, null);
+        HeapFile another = SystemTestUtil.createRandomHeapFile(2, 3000, null, null);
+        Database.resetBufferPool(new BufferPool(3, 1)).setStealNoForce(true, 0);
+
+        Transaction early = new Transaction();
+        early.startSnapshot();
+        // the writer's change to the table is written back and evicted to make room
+        Transaction writer = new Transaction();
+        writer.start();
+        insert(writer, table, 100);
+        deleteAll(writer, other);
+
+        Transaction late = new Transaction();
+        late.startSnapshot();
+        assertEquals(range(ROWS), values(early, table));
+        assertEquals(range(ROWS), values(late, table));
+
+        // evict the table's page again before the writer commits
+        deleteAll(writer, another);
+        writer.commit();
+        assertEquals(range(ROWS), values(early, table));
+        assertEquals(range(ROWS), values(late, table));
+        early.commit();
+        late.commit();
+        assertEquals(range(ROWS, 100), snapshotValues(table));
+    }
+
+    @Test public void testSnapshotIsReadOnly() throws Exception {
+        HeapFile table = createTable();
+        Transaction snapshot = new Transaction();
+        snapshot.startSnapshot();
+        try {
+            insert(snapshot, table, 100);
+            fail("expected DbException");
+        } catch (DbException expected) {
+        }
+        snapshot.commit();
+        assertEquals(range(ROWS), snapshotValues(table));
+    }
+
+    /**
+     * A reporter scanning the table in snapshot after snapshot next to a
+     * writer committing one insert at a time never waits or aborts, and each
+     * snapshot sees the writer's commits up to some point and none after.
+     */
+    @Test public void testReportsSeeCommittedPrefix() throws Exception {
+        final int commits = 100;
+        HeapFile table = createTable();
+        AtomicBoolean done = new AtomicBoolean();
+        List<Integer> seen = new ArrayList<>();
+        CompletableFuture<Void> reporter = async(() -> {
+            while (!done.get()) {
+                Transaction t = new Transaction();
+                t.startSnapshot();
+                List<Integer> values = values(t, table);
+                t.commit();
+                int k = values.size() - ROWS;
+                int[] inserted = new int[k];
+                for (int i = 0; i < k; i++) {
+                    inserted[i] = 1000 + i;
+                }
+                assertEquals(range(ROWS, inserted), values);
+                seen.add(k);
+            }
+        });
+        CompletableFuture<Void> writer = async(() -> {
+            for (int n = 0; n < commits; n++) {
+                Transaction t = new Transaction();
+                t.start();
+                insert(t, table, 1000 + n);
+                t.commit();
+            }
+        });
+        try {
+            writer.get(30, TimeUnit.SECONDS);
+        } finally {
+            done.set(true);
+        }
+        reporter.get(30, TimeUnit.SECONDS);
+        assertFalse(seen.isEmpty());
+        for (int i = 1; i < seen.size(); i++) {
+            assertTrue(seen.get(i - 1) <= seen.get(i));
+        }
+        assertEquals(ROWS + commits, snapshotValues(table).size());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SnapshotReadTest.class);
+    }
+}
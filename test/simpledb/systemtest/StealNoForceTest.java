@@ -0,0 +1,243 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.SeqScan;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+
+/**
+ * Runs transactions through a buffer pool in STEAL / NO FORCE mode: a
+ * transaction may dirty more pages than the pool holds, commit does not write
+ * data pages, and both abort and crash recovery undo stolen pages and redo
+ * committed pages that were never written.
+ */
+public class StealNoForceTest extends SimpleDbTestBase {
+    private static final int POOL_PAGES = 4;
+    private static final int ROWS_PER_PAGE = 504;
+
+    /** Counts the number of writePage operations. */
+    static class InstrumentedHeapFile extends HeapFile {
+        public int writeCount = 0;
+
+        public InstrumentedHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public void writePage(Page page) throws IOException {
+            writeCount += 1;
+            super.writePage(page);
+        }
+    }
+
+    private File file;
+
+    private InstrumentedHeapFile createTable() throws IOException {
+        file = File.createTempFile("stealnoforce", ".dat");
+        file.deleteOnExit();
+        InstrumentedHeapFile table = new InstrumentedHeapFile(file, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        return table;
+    }
+
+    private static BufferPool stealingPool(int pages) throws IOException {
+        BufferPool bp = new BufferPool(pages, 1);
+        bp.setStealNoForce(true, 0);
+        Database.resetBufferPool(bp);
+        return bp;
+    }
+
+    private static void insert(HeapFile table, Transaction t, int from, int to) throws Exception {
+        for (int i = from; i < to; i++) {
+            Database.getBufferPool().insertTuple(t.getId(), table.getId(), Utility.getHeapTuple(new int[] { i, i }));
+        }
+    }
+
+    private static int count(HeapFile table) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), table.getId(), "");
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        t.commit();
+        return count;
+    }
+
+    @After public void stopWriter() throws IOException {
+        Database.getBufferPool().setStealNoForce(false, 0);
+    }
+
+    @Test public void testTransactionLargerThanPool() throws Exception {
+        stealingPool(POOL_PAGES);
+        HeapFile table = createTable();
+        int rows = 2 * POOL_PAGES * ROWS_PER_PAGE;
+
+        Transaction t = new Transaction();
+        t.start();
+        insert(table, t, 0, rows);
+        t.commit();
+
+        assertEquals(2 * POOL_PAGES, table.numPages());
+        assertEquals(rows, count(table));
+    }
+
+    @Test public void testCommitWritesNoDataPages() throws Exception {
+        BufferPool bp = stealingPool(BufferPool.DEFAULT_PAGES);
+        InstrumentedHeapFile table = createTable();
+
+        Transaction t = new Transaction();
+        t.start();
+        insert(table, t, 0, 10);
+        t.commit();
+        assertEquals(0, table.writeCount);
+        assertEquals(10, count(table));
+
+        // switching back to FORCE writes the committed page out
+        bp.setStealNoForce(false, 0);
+        assertEquals(1, table.writeCount);
+        assertEquals(ROWS_PER_PAGE - 10, ((HeapPage) table.readPage(new HeapPageId(table.getId(), 0))).getNumEmptySlots());
+    }
+
+    @Test public void testBackgroundWriter() throws Exception {
+        BufferPool bp = stealingPool(BufferPool.DEFAULT_PAGES);
+        InstrumentedHeapFile table = createTable();
+        bp.setStealNoForce(true, 10);
+
+        Transaction t = new Transaction();
+        t.start();
+        insert(table, t, 0, 10);
+        t.commit();
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (table.writeCount == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, table.writeCount);
+    }
+
+    @Test public void testAbortUndoesStolenPages() throws Exception {
+        stealingPool(POOL_PAGES);
+        HeapFile table = createTable();
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(table, t1, 0, 10);
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insert(table, t2, 10, 2 * POOL_PAGES * ROWS_PER_PAGE);
+        t2.abort();
+
+        assertEquals(10, count(table));
+    }
+
+    @Test public void testRecoverUnwrittenCommitAndStolenAbort() throws Exception {
+        stealingPool(POOL_PAGES);
+        HeapFile table = createTable();
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(table, t1, 0, 10);
+        t1.commit();
+
+        // t2 never finishes; its first pages are stolen to make room
+        Transaction t2 = new Transaction();
+        t2.start();
+        insert(table, t2, 10, 2 * POOL_PAGES * ROWS_PER_PAGE);
+
+        // crash: nothing else reaches the data file
+        Database.reset();
+        table = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+
+        int[] found = new int[2];
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), table.getId(), "");
+        scan.open();
+        while (scan.hasNext()) {
+            int v = ((IntField) scan.next().getField(0)).getValue();
+            found[v < 10 ? 0 : 1]++;
+        }
+        scan.close();
+        t.commit();
+        assertEquals(10, found[0]);
+        assertEquals(0, found[1]);
+    }
+
+    @Test public void testNoCommitOnTopOfUnforcedCommit() throws Exception {
+        stealingPool(BufferPool.DEFAULT_PAGES);
+        HeapFile table = createTable();
+        File log = Database.getLogFile().getFile();
+
+        // t1's commit record waits in the log buffer for half a second
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(table, t1, 0, 10);
+        Database.getLogFile().setGroupCommitWindow(TimeUnit.MILLISECONDS.toMicros(500));
+        CompletableFuture<Void> commit = CompletableFuture.runAsync(() -> {
+            try {
+                t1.commit();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        Thread.sleep(100);
+
+        // t2 reads t1's rows and keeps a copy of the disk as it is then
+        Transaction t2 = new Transaction();
+        t2.start();
+        SeqScan scan = new SeqScan(t2.getId(), table.getId(), "");
+        scan.open();
+        int seen = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            seen++;
+        }
+        scan.close();
+        assertEquals(10, seen);
+        File crashLog = File.createTempFile("stealnoforce", ".log");
+        crashLog.deleteOnExit();
+        Files.copy(log.toPath(), crashLog.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        File crashData = File.createTempFile("stealnoforce", ".dat");
+        crashData.deleteOnExit();
+        Files.copy(file.toPath(), crashData.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        commit.get(5, TimeUnit.SECONDS);
+        insert(table, t2, 10, 11);
+        t2.commit();
+
+        // crash when t2 read the rows: recovery must not undo them
+        Files.copy(crashLog.toPath(), log.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.copy(crashData.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Database.reset();
+        table = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+        assertEquals(10, count(table));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(StealNoForceTest.class);
+    }
+}
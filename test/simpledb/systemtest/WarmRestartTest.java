@@ -0,0 +1,117 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Snapshots the pages resident in a buffer pool, "restarts" by replacing the
+ * pool, and checks that reloading the snapshot brings the same pages back so
+ * that they are hits again, both on demand and from the background thread.
+ */
+public class WarmRestartTest extends SimpleDbTestBase {
+    private static final int PAGES = 20;
+
+    /** Counts the number of readPage operations. */
+    static class InstrumentedHeapFile extends HeapFile {
+        public volatile int readCount = 0;
+
+        public InstrumentedHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) throws NoSuchElementException {
+            readCount += 1;
+            return super.readPage(pid);
+        }
+    }
+
+    private static InstrumentedHeapFile createTable() throws Exception {
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * PAGES, 1000, null, new ArrayList<>());
+        InstrumentedHeapFile table = new InstrumentedHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        return table;
+    }
+
+    private static File snapshotFile() throws Exception {
+        File f = File.createTempFile("pool", ".snapshot");
+        f.delete();
+        f.deleteOnExit();
+        return f;
+    }
+
+    /** Read pages from..to-1 of table in one transaction. */
+    private static void touch(HeapFile table, int from, int to) throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int i = from; i < to; i++) {
+            Database.getBufferPool().getPage(tid, new HeapPageId(table.getId(), i), Permissions.READ_ONLY);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testSaveAndLoad() throws Exception {
+        InstrumentedHeapFile table = createTable();
+        File snapshot = snapshotFile();
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        touch(table, 5, 15);
+        Database.getBufferPool().saveResidentPages(snapshot);
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        table.readCount = 0;
+        assertEquals(10, Database.getBufferPool().loadResidentPages(snapshot));
+        assertEquals(10, table.readCount);
+        touch(table, 5, 15);
+        assertEquals(10, table.readCount);
+
+        // a pool smaller than the snapshot only takes what fits
+        Database.resetBufferPool(4);
+        assertEquals(4, Database.getBufferPool().loadResidentPages(snapshot));
+
+        // no snapshot yet is not an error
+        assertEquals(0, Database.getBufferPool().loadResidentPages(snapshotFile()));
+    }
+
+    @Test public void testBackgroundSnapshots() throws Exception {
+        InstrumentedHeapFile table = createTable();
+        File snapshot = snapshotFile();
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Database.getBufferPool().setWarmRestart(snapshot, 20);
+        touch(table, 0, 8);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!snapshot.exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(snapshot.exists());
+        Database.getBufferPool().setWarmRestart(null, 0);
+
+        // the restarted pool reloads the pages in the background
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        table.readCount = 0;
+        Database.getBufferPool().setWarmRestart(snapshot, 0);
+        deadline = System.currentTimeMillis() + 10000;
+        while (table.readCount < 8 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Database.getBufferPool().setWarmRestart(null, 0);
+        assertEquals(8, table.readCount);
+        touch(table, 0, 8);
+        assertEquals(8, table.readCount);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(WarmRestartTest.class);
+    }
+}